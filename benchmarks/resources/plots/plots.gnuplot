@@ -138,3 +138,24 @@ set xlabel "Number of assocs"
 plot "$data" \
     using 2:xtic(1) title col, '' using 3:xtic(1) title col, '' using 4:xtic(1) title col, '' using 5:xtic(1) title col
 
+
+#--------------------------------------------------------------------#
+# Regression charts, from the files written by `pronto.jmh.report`
+# (see benchmarks/src/clj/pronto/jmh/report.clj). Skipped when missing.
+
+if (system("test -f regression_tp.dat && echo 1") eq "1") {
+    set datafile missing "-"
+    set xtics rotate by -45
+    set title "baseline vs. current"
+    set xlabel "Benchmark"
+
+    set output "regression_tp.png"
+    set ylabel "Throughput (ops/sec)"
+    plot "regression_tp.dat" \
+        using 2:xtic(1) title col, '' using 3:xtic(1) title col
+
+    set output "regression_alloc.png"
+    set ylabel "Allocated (bytes/op)"
+    plot "regression_alloc.dat" \
+        using 2:xtic(1) title col, '' using 3:xtic(1) title col
+}
@@ -1,6 +1,14 @@
 (ns pronto.jmh.benchmarks
-  (:require [pronto.core :as p])
+  (:require [pronto.core :as p]
+            [pronto.dynamic :as d]
+            [pronto.transformations :as transform]
+            [clojure.data.json :as json]
+            [clojure.core.reducers :as r])
   (:import [org.openjdk.jmh.infra Blackhole]
+           [com.google.protobuf DescriptorProtos$FileDescriptorSet]
+           [com.google.protobuf.util JsonFormat JsonFormat$Parser JsonFormat$Printer]
+           [java.util Base64]
+           [protogen.generated People$Person People$Address]
            [protogen.generated
             Benchmarks$Strings5
             Benchmarks$Strings10
@@ -9,7 +17,13 @@
             Benchmarks$Strings50
             Benchmarks$Strings5$Builder
             Benchmarks$Strings20$Builder
-            Benchmarks$Strings10$Builder]))
+            Benchmarks$Strings10$Builder
+            Benchmarks$Event
+            Benchmarks$EventType]
+           [com.google.protobuf ByteString]
+           [java.util.concurrent ForkJoinPool]
+           [java.nio ByteBuffer]
+           [pronto SerializationBuffer Columns Columns$Enums]))
 
 
 (def the-val "hello world")
@@ -469,6 +483,9 @@
               [(p/hint proto-map10 Benchmarks$Strings10 mapper)]
               (p/p-> proto-map10 :field_0))))
 
+(defn get10_kw [^Blackhole bh]
+  (.consume bh ^Object (:field_0 proto-map10)))
+
 
 (defn get5_java [^Blackhole bh]
   (.consume bh ^Object
@@ -486,6 +503,9 @@
               [(p/hint proto-map5 Benchmarks$Strings5 mapper)]
               (p/p-> proto-map5 :field_0))))
 
+(defn get5_kw [^Blackhole bh]
+  (.consume bh ^Object (:field_0 proto-map5)))
+
 
 (defn get20_java [^Blackhole bh]
   (.consume bh ^Object
@@ -503,3 +523,516 @@
               [(p/hint proto-map20 Benchmarks$Strings20 mapper)]
               (p/p-> proto-map20 :field_0))))
 
+(defn get20_kw [^Blackhole bh]
+  (.consume bh ^Object (:field_0 proto-map20)))
+
+
+;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(def clj-map50 (into {} (map (fn [i] [(keyword (str "field_" i)) the-val]) (range 0 50))))
+
+(def ^bytes bytes50 (p/proto-map->bytes (p/clj-map->proto-map mapper Benchmarks$Strings50 clj-map50)))
+
+(def projection50_3 (p/projection mapper Benchmarks$Strings50 [:field_0 :field_1 :field_2]))
+
+(defn parse50_full [^Blackhole bh]
+  (.consume bh ^Object
+            (p/bytes->proto-map mapper Benchmarks$Strings50 bytes50)))
+
+(defn parse50_projected3 [^Blackhole bh]
+  (.consume bh ^Object
+            (p/bytes->proto-map mapper Benchmarks$Strings50 bytes50 {:fields projection50_3})))
+
+(defn parse50_projected3_uncompiled [^Blackhole bh]
+  (.consume bh ^Object
+            (p/bytes->proto-map mapper Benchmarks$Strings50 bytes50 {:fields [:field_0 :field_1 :field_2]})))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(p/defmapper deferred-mapper [Benchmarks$Strings20]
+  :max-deferred-writes 16)
+
+(def deferred-proto-map20 (p/clj-map->proto-map deferred-mapper Benchmarks$Strings20 clj-map20))
+
+(defn assocs20_10_built [^Blackhole bh]
+  (.consume bh ^Object (p/proto-map->proto
+                        (-> proto-map20
+                            (assoc :field_0 the-val)
+                            (assoc :field_1 the-val)
+                            (assoc :field_2 the-val)
+                            (assoc :field_3 the-val)
+                            (assoc :field_4 the-val)
+                            (assoc :field_5 the-val)
+                            (assoc :field_6 the-val)
+                            (assoc :field_7 the-val)
+                            (assoc :field_8 the-val)
+                            (assoc :field_9 the-val)))))
+
+(defn assocs20_10_deferred [^Blackhole bh]
+  (.consume bh ^Object (p/proto-map->proto
+                        (-> deferred-proto-map20
+                            (assoc :field_0 the-val)
+                            (assoc :field_1 the-val)
+                            (assoc :field_2 the-val)
+                            (assoc :field_3 the-val)
+                            (assoc :field_4 the-val)
+                            (assoc :field_5 the-val)
+                            (assoc :field_6 the-val)
+                            (assoc :field_7 the-val)
+                            (assoc :field_8 the-val)
+                            (assoc :field_9 the-val)))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(def proto-map50 (p/clj-map->proto-map mapper Benchmarks$Strings50 clj-map50))
+
+(def update50_10 (into {} (map (fn [i] [(keyword (str "field_" i)) "updated"]) (range 0 50 5))))
+
+(defn merge50_10_assocs [^Blackhole bh]
+  (.consume bh ^Object (reduce-kv assoc proto-map50 update50_10)))
+
+(defn merge50_10 [^Blackhole bh]
+  (.consume bh ^Object (merge proto-map50 update50_10)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(defn to_clj50_generic [^Blackhole bh]
+  (.consume bh ^Object (p/proto-map->clj-map proto-map50 (map identity))))
+
+(defn to_clj50 [^Blackhole bh]
+  (.consume bh ^Object (p/proto-map->clj-map proto-map50)))
+
+(defn from_clj50_generic [^Blackhole bh]
+  (.consume bh ^Object (transform/map->proto-map (transient (p/proto-map mapper Benchmarks$Strings50)) clj-map50)))
+
+(defn from_clj50 [^Blackhole bh]
+  (.consume bh ^Object (p/clj-map->proto-map mapper Benchmarks$Strings50 clj-map50)))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(p/defmapper people-mapper [People$Person])
+
+(p/defmapper caching-people-mapper [People$Person]
+  :cache-children? true)
+
+(def person-map {:name    "joe"
+                 :address {:city "NYC" :street "Broadway"}
+                 :likes   [{:desc "a"} {:desc "b"}]})
+
+(def person (p/clj-map->proto-map people-mapper People$Person person-map))
+
+(def caching-person (p/clj-map->proto-map caching-people-mapper People$Person person-map))
+
+(defn- read-children10 [^Blackhole bh pm]
+  (dotimes [_ 10]
+    (.consume bh ^Object (:city (:address pm)))
+    (.consume bh ^Object (:desc (nth (:likes pm) 1)))))
+
+(defn read_children10 [^Blackhole bh]
+  (read-children10 bh person))
+
+(defn read_children10_cached [^Blackhole bh]
+  (read-children10 bh caching-person))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;
+
+(def dynamic-mapper
+  (d/mapper (-> (DescriptorProtos$FileDescriptorSet/newBuilder)
+                (.addFile (.toProto (.getFile (Benchmarks$Strings10/getDescriptor))))
+                (.addFile (.toProto (.getFile (People$Person/getDescriptor))))
+                (.build))))
+
+(def dynamic-proto-map10 (d/clj-map->proto-map dynamic-mapper "protogen.generated.Strings10" clj-map10))
+
+(def dynamic-proto-map50 (d/clj-map->proto-map dynamic-mapper "protogen.generated.Strings50" clj-map50))
+
+(def dynamic-person (d/clj-map->proto-map dynamic-mapper "protogen.generated.Person" person-map))
+
+(defn get10_dynamic [^Blackhole bh]
+  (.consume bh ^Object (get dynamic-proto-map10 :field_0)))
+
+(defn get10_dynamic_kw [^Blackhole bh]
+  (.consume bh ^Object (:field_0 dynamic-proto-map10)))
+
+(defn parse50_dynamic [^Blackhole bh]
+  (.consume bh ^Object
+            (d/bytes->proto-map dynamic-mapper "protogen.generated.Strings50" bytes50)))
+
+(defn to_clj50_dynamic [^Blackhole bh]
+  (.consume bh ^Object (p/proto-map->clj-map dynamic-proto-map50)))
+
+(defn from_clj50_dynamic [^Blackhole bh]
+  (.consume bh ^Object (d/clj-map->proto-map dynamic-mapper "protogen.generated.Strings50" clj-map50)))
+
+(defn read_children10_dynamic [^Blackhole bh]
+  (read-children10 bh dynamic-person))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;; startup time: compiling a mapper over `People$Person` (13 classes), then using one of its classes
+
+(defn- eval-in-ns [form]
+  (binding [*ns* (the-ns 'pronto.jmh.benchmarks)]
+    (eval form)))
+
+(defn defmapper_eager [^Blackhole bh]
+  (eval-in-ns `(p/defmapper ~'startup-mapper [People$Person]))
+  (.consume bh ^Object (eval-in-ns `(p/proto-map ~'startup-mapper People$Address))))
+
+(defn defmapper_lazy [^Blackhole bh]
+  (eval-in-ns `(p/defmapper ~'lazy-startup-mapper [People$Person] :lazy? true))
+  (.consume bh ^Object (eval-in-ns `(p/proto-map ~'lazy-startup-mapper People$Address))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;
+
+;; `Benchmarks$Event`, a nested message with repeated, map, enum and bytes fields.
+;; Events are parameterized by `:param/items`, the number of items and of attributes they hold.
+
+(p/defmapper event-mapper [Benchmarks$Event]
+  :diff? true
+  :reusable-transients? true
+  :columns? true)
+
+(p/defmapper metered-event-mapper [Benchmarks$Event]
+  :metrics? true)
+
+(defn- make-event* [mapper items]
+  (p/clj-map->proto-map
+   mapper
+   Benchmarks$Event
+   {:id               "8b7e3f7c-3d1b-4f0e-9a51-2f6f2a1c9d10"
+    :timestamp_millis 1633024800000
+    :type             :LAUNCH
+    :device           {:os "android" :os_version "12" :model "Pixel 6" :app_version "4.2.1"}
+    :geo              {:country "US" :city "NYC" :lat 40.7128 :lon -74.006}
+    :items            (mapv (fn [i] {:sku (str "sku-" i) :quantity (inc i) :price 9.99 :tags ["a" "b"]})
+                            (range items))
+    :attributes       (into {} (map (fn [i] [(str "attr_" i) (str "value-" i)])) (range items))
+    :ids              (vec (range items))
+    :payload          (ByteString/copyFromUtf8 "payload")}))
+
+(defn make-event [items]
+  (make-event* event-mapper items))
+
+(defn make-metered-event [items]
+  (make-event* metered-event-mapper items))
+
+(defn make-event-bytes ^bytes [items]
+  (p/proto-map->bytes (make-event items)))
+
+(defn make-event-clj [items]
+  (p/proto-map->clj-map (make-event items)))
+
+(def item {:sku "new-sku" :quantity 1 :price 1.5})
+
+;; reads
+
+(defn event_get [^Blackhole bh event]
+  (.consume bh ^Object (get event :id)))
+
+(defn event_get_nested [^Blackhole bh event]
+  (.consume bh ^Object (get-in event [:device :os])))
+
+(defn event_get_enum [^Blackhole bh event]
+  (.consume bh ^Object (:type event)))
+
+(defn event_get_repeated [^Blackhole bh event]
+  (.consume bh ^Object (get-in event [:items 0 :sku])))
+
+(defn event_get_map [^Blackhole bh event]
+  (.consume bh ^Object (get-in event [:attributes "attr_0"])))
+
+;; updates
+
+(defn event_update_nested [^Blackhole bh event]
+  (.consume bh ^Object (p/p-> event (assoc-in [:device :os] "ios") (assoc-in [:geo :city] "LA"))))
+
+(defn event_update_nested_hinted [^Blackhole bh event]
+  (.consume bh ^Object
+            (p/with-hints
+              [(p/hint event Benchmarks$Event event-mapper)]
+              (p/p-> event (assoc-in [:device :os] "ios") (assoc-in [:geo :city] "LA")))))
+
+(defn event_update_enum [^Blackhole bh event]
+  (.consume bh ^Object (assoc event :type :PURCHASE)))
+
+(defn event_update_repeated [^Blackhole bh event]
+  (.consume bh ^Object (update event :items conj item)))
+
+(defn event_update_repeated_item [^Blackhole bh event]
+  (.consume bh ^Object (p/p-> event (assoc-in [:items 0 :quantity] 5))))
+
+(defn event_update_map [^Blackhole bh event]
+  (.consume bh ^Object (update event :attributes assoc "attr_new" "value")))
+
+(defn event_update_repeated_item_hinted [^Blackhole bh event]
+  (.consume bh ^Object
+            (p/with-hints
+              [(p/hint event Benchmarks$Event event-mapper)]
+              (p/p-> event (update-in [:items 0 :quantity] inc)))))
+
+(defn event_update_map_hinted [^Blackhole bh event]
+  (.consume bh ^Object
+            (p/with-hints
+              [(p/hint event Benchmarks$Event event-mapper)]
+              (p/p-> event (assoc-in [:attributes "attr_new"] "value")))))
+
+;; serialization and conversion
+
+(defn event_build [^Blackhole bh]
+  (.consume bh ^Object (p/proto-map event-mapper Benchmarks$Event
+                                    :id "id"
+                                    :timestamp_millis 1633024800000
+                                    :type :LAUNCH)))
+
+(defn event_build_reusable [^Blackhole bh]
+  (.consume bh ^Object (p/with-reusable-transient [t event-mapper Benchmarks$Event]
+                         (assoc! t :id "id")
+                         (assoc! t :timestamp_millis 1633024800000)
+                         (assoc! t :type :LAUNCH)
+                         (persistent! t))))
+
+(defn event_parse [^Blackhole bh ^bytes event-bytes]
+  (.consume bh ^Object (p/bytes->proto-map event-mapper Benchmarks$Event event-bytes)))
+
+(defn event_serialize [^Blackhole bh event]
+  (.consume bh ^Object (p/proto-map->bytes event)))
+
+(defn make-serialization-buffer []
+  (p/serialization-buffer))
+
+(defn make-direct-buffer []
+  (ByteBuffer/allocateDirect (* 1024 1024)))
+
+(defn event_write_buffer [^Blackhole bh event ^SerializationBuffer buf]
+  (.clear buf)
+  (.consume bh (long (p/write-proto-map buf event))))
+
+(defn event_write_byte_buffer [^Blackhole bh event ^ByteBuffer buf]
+  (.clear buf)
+  (.consume bh (long (p/write-proto-map buf event))))
+
+(defn event_serialized_size [^Blackhole bh event]
+  (.consume bh (long (p/serialized-size event))))
+
+(defn event_to_clj [^Blackhole bh event]
+  (.consume bh ^Object (p/proto-map->clj-map event)))
+
+(defn event_from_clj [^Blackhole bh event-clj]
+  (.consume bh ^Object (p/clj-map->proto-map event-mapper Benchmarks$Event event-clj)))
+
+;; JSON: the writers and readers generated with `:json? true`, compared to converting to (and from)
+;; a Clojure map along with a generic JSON library, and to protobuf's reflective `JsonFormat`
+
+(p/defmapper json-event-mapper [Benchmarks$Event]
+  :json? true)
+
+(defn make-json-event [items]
+  (make-event* json-event-mapper items))
+
+(defn make-event-json [items]
+  (p/proto-map->json (make-json-event items)))
+
+(def ^:private ^JsonFormat$Printer json-format-printer
+  (.preservingProtoFieldNames (JsonFormat/printer)))
+
+(def ^:private ^JsonFormat$Parser json-format-parser
+  (JsonFormat/parser))
+
+(defn make-event-json-format [items]
+  (.print json-format-printer (p/proto-map->proto (make-event items))))
+
+(defn- bytes->base64 [_ v]
+  (if (instance? ByteString v)
+    (.encodeToString (Base64/getEncoder) (.toByteArray ^ByteString v))
+    v))
+
+(defn event_to_json [^Blackhole bh json-event]
+  (.consume bh ^Object (p/proto-map->json json-event)))
+
+(defn event_to_json_clj_map [^Blackhole bh event]
+  (.consume bh ^Object (json/write-str (p/proto-map->clj-map event) :value-fn bytes->base64)))
+
+(defn event_to_json_format [^Blackhole bh event]
+  (.consume bh ^Object (.print json-format-printer (p/proto-map->proto event))))
+
+(defn event_from_json [^Blackhole bh ^String event-json]
+  (.consume bh ^Object (p/json->proto-map json-event-mapper Benchmarks$Event event-json)))
+
+(defn event_from_json_clj_map [^Blackhole bh ^String event-json]
+  ;; keys are keywordized throughout, so map keys are turned back into strings, as are enums into keywords
+  (let [m (json/read-str event-json :key-fn keyword)]
+    (.consume bh ^Object (p/clj-map->proto-map
+                          event-mapper
+                          Benchmarks$Event
+                          (-> m
+                              (update :type keyword)
+                              (update :attributes #(into {} (map (fn [[k v]] [(name k) v])) %))
+                              (update :payload #(ByteString/copyFrom (.decode (Base64/getDecoder) ^String %))))))))
+
+(defn event_from_json_format [^Blackhole bh ^String event-json-format]
+  (let [builder (Benchmarks$Event/newBuilder)]
+    (.merge json-format-parser event-json-format builder)
+    (.consume bh ^Object (p/proto->proto-map event-mapper (.build builder)))))
+
+;; zero-copy parsing: an event carrying a 64KB payload, parsed with and without `:zero-copy? true`
+
+(p/defmapper zero-copy-event-mapper [Benchmarks$Event]
+  :zero-copy? true)
+
+(defn make-blob-event-bytes ^bytes [items]
+  (p/proto-map->bytes (assoc (make-event items) :payload (ByteString/copyFrom (byte-array (* 64 1024) (byte 7))))))
+
+(defn make-blob-event-buffer [items]
+  (let [bytes (make-blob-event-bytes items)]
+    (.flip (.put (ByteBuffer/allocateDirect (alength bytes)) bytes))))
+
+(defn event_parse_blob [^Blackhole bh ^bytes event-bytes]
+  (.consume bh ^Object (p/bytes->proto-map event-mapper Benchmarks$Event event-bytes)))
+
+(defn event_parse_blob_zero_copy [^Blackhole bh ^bytes event-bytes]
+  (.consume bh ^Object (p/bytes->proto-map zero-copy-event-mapper Benchmarks$Event event-bytes)))
+
+(defn event_parse_blob_direct [^Blackhole bh event-buffer]
+  (.consume bh ^Object (p/byte-buffer->proto-map event-mapper Benchmarks$Event event-buffer)))
+
+(defn event_parse_blob_direct_zero_copy [^Blackhole bh event-buffer]
+  (.consume bh ^Object (p/byte-buffer->proto-map zero-copy-event-mapper Benchmarks$Event event-buffer)))
+
+;; diffs, between an event and a copy with two changed fields
+
+(defn make-changed-event [items]
+  (p/p-> (make-event items)
+         (assoc-in [:geo :city] "LA")
+         (assoc :type :PURCHASE)))
+
+(defn make-event-delta [items]
+  (p/diff (make-event items) (make-changed-event items)))
+
+(defn event_diff [^Blackhole bh event changed-event]
+  (.consume bh ^Object (p/diff event changed-event)))
+
+(defn event_patch [^Blackhole bh event event-delta]
+  (.consume bh ^Object (p/patch event event-delta)))
+
+;; iteration, equality and hashing
+
+(defn event_seq [^Blackhole bh event]
+  (doseq [e event]
+    (.consume bh ^Object e)))
+
+(defn event_reduce_kv [^Blackhole bh event]
+  (reduce-kv (fn [_ _ v] (.consume bh ^Object v)) nil event))
+
+(defn event_equiv [^Blackhole bh event event-copy]
+  (.consume bh (= event event-copy)))
+
+;; with `:metrics? true`
+
+(defn event_update_nested_metered [^Blackhole bh event]
+  (.consume bh ^Object (p/p-> event (assoc-in [:device :os] "ios") (assoc-in [:geo :city] "LA"))))
+
+(defn event_parse_metered [^Blackhole bh ^bytes event-bytes]
+  (.consume bh ^Object (p/bytes->proto-map metered-event-mapper Benchmarks$Event event-bytes)))
+
+;; batches of 10k events, parameterized by `:param/threads`, the parallelism of the pool
+
+(def batch-size 10000)
+
+(defn make-pool [threads]
+  (ForkJoinPool. threads))
+
+(defn make-event-batch []
+  (vec (repeatedly batch-size #(make-event 10))))
+
+(defn make-event-batch-bytes []
+  (mapv p/proto-map->bytes (make-event-batch)))
+
+(defn event_batch_decode_sequential [^Blackhole bh event-batch-bytes]
+  (.consume bh ^Object (mapv #(p/bytes->proto-map event-mapper Benchmarks$Event %) event-batch-bytes)))
+
+(defn event_batch_decode [^Blackhole bh event-batch-bytes pool]
+  (.consume bh ^Object (p/bytes-seq->proto-maps event-mapper Benchmarks$Event event-batch-bytes {:executor pool})))
+
+(defn event_batch_encode_sequential [^Blackhole bh event-batch]
+  (.consume bh ^Object (mapv p/proto-map->bytes event-batch)))
+
+(defn event_batch_encode [^Blackhole bh event-batch pool]
+  (.consume bh ^Object (p/proto-maps->byte-arrays event-batch {:executor pool})))
+
+;; decoding a batch of 10k payloads which repeat 100 distinct events, with and without a decode cache
+
+(p/defmapper decode-cache-event-mapper [Benchmarks$Event]
+  :decode-cache {Benchmarks$Event 256})
+
+(defn make-repeated-batch-bytes []
+  (let [distinct-bytes (mapv #(p/proto-map->bytes (assoc (make-event 10) :timestamp_millis %)) (range 100))]
+    ;; a new array per payload, as when read off the wire
+    (mapv #(aclone ^bytes (distinct-bytes (mod % 100))) (range batch-size))))
+
+(defn event_batch_decode_repeated [^Blackhole bh repeated-batch-bytes]
+  (.consume bh ^Object (mapv #(p/bytes->proto-map event-mapper Benchmarks$Event %) repeated-batch-bytes)))
+
+(defn event_batch_decode_repeated_cached [^Blackhole bh repeated-batch-bytes]
+  (.consume bh ^Object (mapv #(p/bytes->proto-map decode-cache-event-mapper Benchmarks$Event %) repeated-batch-bytes)))
+
+;; aggregating a batch of 10k events (summing timestamps and counting events per type),
+;; over proto-maps and over a columnar batch
+
+(defn make-aggregated-batch []
+  (into []
+        (map-indexed (fn [i event]
+                       (assoc event
+                              :timestamp_millis (+ 1633024800000 i)
+                              :type ([:INSTALL :LAUNCH :PURCHASE] (mod i 3)))))
+        (make-event-batch)))
+
+(defn make-aggregated-batch-bytes []
+  (mapv p/proto-map->bytes (make-aggregated-batch)))
+
+(defn make-aggregated-columns []
+  (p/->columns event-mapper Benchmarks$Event (make-aggregated-batch)))
+
+(defn event_batch_sum [^Blackhole bh event-batch]
+  (.consume bh (long (reduce (fn [^long acc event] (+ acc (long (:timestamp_millis event)))) 0 event-batch))))
+
+(defn event_batch_sum_columns [^Blackhole bh ^Columns columns]
+  (let [^longs timestamps (:timestamp_millis columns)]
+    (.consume bh (long (areduce timestamps i acc 0 (+ acc (aget timestamps i)))))))
+
+(defn event_batch_count_by_type [^Blackhole bh event-batch]
+  (.consume bh ^Object (frequencies (map :type event-batch))))
+
+(defn event_batch_count_by_type_columns [^Blackhole bh ^Columns columns]
+  (let [^Columns$Enums types (:type columns)
+        ^ints codes          (.codes types)
+        ^longs counts        (long-array (count (.dictionary types)))]
+    (dotimes [i (alength codes)]
+      (let [code (aget codes i)]
+        (aset counts code (inc (aget counts code)))))
+    (.consume bh counts)))
+
+(defn event_batch_to_columns [^Blackhole bh event-batch]
+  (.consume bh ^Object (p/->columns event-mapper Benchmarks$Event event-batch {:fields [:timestamp_millis :type]})))
+
+(defn event_batch_bytes_to_columns [^Blackhole bh event-batch-bytes]
+  (.consume bh ^Object (p/bytes-seq->columns event-mapper Benchmarks$Event event-batch-bytes
+                                             {:fields [:timestamp_millis :type]})))
+
+;; aggregating the items of an event with 50k items
+
+(defn make-big-event []
+  (make-event 50000))
+
+(defn- add-price ^double [^double acc item]
+  (+ acc (* (double (:quantity item)) (double (:price item)))))
+
+(defn event_items_reduce [^Blackhole bh big-event]
+  (.consume bh (double (reduce add-price 0.0 (:items big-event)))))
+
+(defn event_items_fold [^Blackhole bh big-event]
+  (.consume bh (double (r/fold + add-price (:items big-event)))))
+
+;; note that the hash code of the underlying message is memoized by protobuf
+(defn event_hash [^Blackhole bh event]
+  (.consume bh (hash event)))
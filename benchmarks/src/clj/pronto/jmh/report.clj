@@ -0,0 +1,70 @@
+(ns pronto.jmh.report
+  "Turns `lein jmh` results into data files for `plots.gnuplot`.
+
+  Run the suite twice, e.g on master and on a branch:
+
+    lein jmh '{:select :event :output \"baseline.edn\"}'
+    lein jmh '{:select :event :output \"current.edn\"}'
+
+  and then:
+
+    lein with-profile jmh run -m pronto.jmh.report baseline.edn current.edn benchmarks/resources/plots
+
+  which writes `regression_tp.dat` (throughput) and `regression_alloc.dat` (bytes allocated
+  per operation, when run with the `gc` profiler) to be plotted side by side."
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [clojure.string :as s]))
+
+(defn- score [x]
+  (if (sequential? x) (first x) x))
+
+(defn- alloc-norm
+  "The normalized allocation rate (B/op) reported by the `gc` profiler, if any."
+  [result]
+  (some (fn [[k v]]
+          (when (s/ends-with? (name k) "gc.alloc.rate.norm")
+            (score (:score v v))))
+        (:secondary result)))
+
+(defn- label [{:keys [name params]}]
+  (s/join "/" (cons (clojure.core/name name)
+                    (for [[k v] (sort-by key params)]
+                      (str (clojure.core/name k) "=" v)))))
+
+(defn- index [results f]
+  (into {}
+        (keep (fn [r]
+                (when-let [v (f r)]
+                  [(label r) v])))
+        results))
+
+(defn- read-results [file]
+  (edn/read-string {:default (fn [_ v] v)} (slurp file)))
+
+(defn- write-dat [file baseline current]
+  (with-open [w (io/writer file)]
+    (.write w "Title \"baseline\" \"current\"\n")
+    (doseq [k (sort (keys current))]
+      (.write w (format "\"%s\" %s %s\n"
+                        k
+                        (get baseline k "-")
+                        (get current k))))))
+
+(defn write-report
+  "Writes the throughput and allocation tables of `current` compared to `baseline`,
+  both seqs of `jmh-clojure` results, to `out-dir`.
+  Benchmarks missing from `baseline` are written with a missing value (`-`)."
+  [baseline current out-dir]
+  (.mkdirs (io/file out-dir))
+  (write-dat (io/file out-dir "regression_tp.dat")
+             (index baseline (comp score :score))
+             (index current (comp score :score)))
+  (write-dat (io/file out-dir "regression_alloc.dat")
+             (index baseline alloc-norm)
+             (index current alloc-norm)))
+
+(defn -main [baseline-file current-file & [out-dir]]
+  (write-report (read-results baseline-file)
+                (read-results current-file)
+                (or out-dir ".")))
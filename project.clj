@@ -40,7 +40,9 @@
                                             [lein-eftest "0.5.9"]
                                             [lein-cloverage "1.2.2"]]
                         :cloverage         {:ns-exclude-regex [#"pronto.potemkin-types"]}}
-             :jmh      {:source-paths      ["benchmarks/src/clj"]
+             :jmh      {:dependencies      [[org.clojure/data.json "2.4.0"]
+                                            [com.google.protobuf/protobuf-java-util ~protobuf-version]]
+                        :source-paths      ["benchmarks/src/clj"]
                         :java-source-paths ["benchmarks/src/java"]
                         :resource-paths    ["benchmarks/resources"]
                         ;; Removing jvm-opts so it won't accidentally disable jvm optimizations
@@ -2,16 +2,19 @@
   (:require [pronto.wrapper :as w]
             [pronto.emitters :as e]
             [pronto.type-gen :as t]
-            [pronto.transformations :as transform]
             [pronto.utils :as u]
             [pronto.protos :refer [global-ns]]
             [pronto.lens :as lens]
+            [pronto.io :as pio]
             [potemkin]
-            [clojure.string :as s])
-  (:import [pronto ProtoMap ProtoMapper]
-           [com.google.protobuf Message GeneratedMessageV3 ByteString]))
-
-(def ^:private default-values #{0 0.0 nil "" false {} [] (byte-array 0) ByteString/EMPTY})
+            [clojure.string :as s]
+            [clojure.core.reducers :as r])
+  (:import [pronto ProtoMap ProtoMapper Projection CljMapConvertible Diffable DeferredProtoMap LazyDelegates Batches
+            ProntoVector SerializationBuffer ReusableTransient JsonReader TransformIterable TransformIterable$Xf]
+           [com.google.protobuf Message GeneratedMessageV3 ByteString CodedInputStream]
+           [java.nio ByteBuffer]))
+
+(def ^:private default-values #{0 0.0 nil "" false {} [] (byte-array 0) ByteString/EMPTY (ByteBuffer/allocate 0)})
 (def remove-default-values-xf
   (remove (fn [[_ v]] (contains? default-values v))))
 
@@ -84,6 +87,38 @@
                      ~@chain))))))
 
 
+(defmacro with-reusable-transient
+  "Binds `sym` to a transient proto-map of `clazz`, created via `mapper`, and evaluates `body`.
+
+  The transient, along with its builder, is kept per thread and reused by every call rather than
+  allocated anew: it is cleared when obtained, and can no longer be used once `body` calls `persistent!`
+  on it or returns. Therefore, the transient (or vectors and maps read from it) must not escape `body`.
+  Nested calls for the same class on the same thread get a new transient.
+  Requires a mapper defined with `:reusable-transients? true`.
+
+  (with-reusable-transient [t my-mapper People$Person]
+    (assoc! t :id 1)
+    (assoc! t :name \"Joe\")
+    (persistent! t))"
+  [[sym mapper clazz] & body]
+  (let [mapper-sym     (gensym 'mapper)
+        t              (u/with-type-hint (gensym 'transient) ReusableTransient)
+        resolved-class (resolve-class clazz)]
+    `(let [~mapper-sym ~mapper
+           ~t          ~(if resolved-class
+                          (let [mapper-sym (e/with-builder-class-hint mapper-sym resolved-class)]
+                            (with-catch mapper-sym resolved-class
+                              `(. ~mapper-sym ~(e/builder-interface-get-reusable-transient-method-name resolved-class))))
+                          `(. ~(u/with-type-hint mapper-sym ProtoMapper)
+                              ~e/get-reusable-transient-method
+                              ~clazz))
+           ~sym        ~t]
+       (try
+         ~@body
+         (finally
+           (.pmap_release ~t))))))
+
+
 (defmacro clj-map->proto-map
   "Translate a map to a proto-map for the supplied class using mapper `m`.
   The converted map must not violate the class schema, i.e, it must have matching
@@ -92,11 +127,9 @@
   (let [resolved-class (resolve-class clazz)
         mapper         (e/with-builder-class-hint mapper resolved-class)]
     (with-catch mapper resolved-class
-      `(transform/map->proto-map
-        ~(if resolved-class
-           `(. ~mapper ~(e/builder-interface-get-transient-method-name resolved-class))
-           `(. ~mapper ~e/get-transient-method ~clazz))
-        ~m))))
+      (if resolved-class
+        `(. ~mapper ~(e/builder-interface-from-clj-map-method-name resolved-class) ~m)
+        `(. ~mapper ~e/from-clj-map-method ~clazz ~m)))))
 
 (defn proto->proto-map
   "Wraps a new proto-map around `proto`, a POJO."
@@ -105,7 +138,10 @@
 
 (defn proto-map->clj-map
   "Recursively converts a proto-map to a regular Clojure map."
-  ([proto-map] (proto-map->clj-map proto-map (map identity)))
+  ([proto-map]
+   (if (instance? CljMapConvertible proto-map)
+     (.pmap_toCljMap ^CljMapConvertible proto-map)
+     (proto-map->clj-map proto-map (map identity))))
   ([proto-map xform]
    (let [mapper
          (map
@@ -124,22 +160,314 @@
            xform
            proto-map))))
 
-(defmacro bytes->proto-map
-  "Deserializes `bytes` into a proto-map for the given `clazz`"
-  [mapper clazz bytes]
-  (if-let [resolved-class  (resolve-class clazz)]
+(defn- diffable
+  ^Diffable [m]
+  (let [m' (if (instance? DeferredProtoMap m)
+             (.materialize ^DeferredProtoMap m)
+             m)]
+    (if (instance? Diffable m')
+      m'
+      (throw (IllegalArgumentException.
+              (str "Not a persistent proto-map of a mapper defined with `:diff? true`: " (class m)))))))
+
+(defn diff
+  "Returns the delta from the proto-map `a` to the proto-map `b`, of the same class, as a map of:
+
+  :changes - a proto-map of that class, which only sets the fields that `b` sets to a different value than `a`.
+  Messages set in both are diffed recursively, and hold only their changed fields. Changed repeated fields
+  are held as a whole, and changed map fields hold the entries which were added or changed.
+  :cleared - a set of the paths of fields that `a` sets and `b` does not (or sets to their default value),
+  e.g `[:address :city]`, where a path to a removed map entry ends with its key, e.g `[:attributes \"k\"]`.
+
+  Messages are compared field by field, short-circuiting on identical messages and on differing hash codes.
+  Requires a mapper defined with `:diff? true`. See `patch`."
+  [a b]
+  (.pmap_diff (diffable a) b))
+
+(defn patch
+  "Returns the proto-map `m` with `delta`, as returned by `diff`, applied to it in a single builder pass,
+  such that `(patch a (diff a b))` equals `b`."
+  [m delta]
+  (.pmap_patch (diffable m) delta))
+
+(defmacro projection
+  "Compiles `fields`, a seq of field keys or key paths into message-typed fields
+  (e.g, `[:id [:address :city]]`), into a projection of `clazz` which can be passed
+  as the `:fields` option of `bytes->proto-map`."
+  [mapper clazz fields]
+  (if-let [resolved-class (resolve-class clazz)]
     (let [mapper (e/with-builder-class-hint mapper resolved-class)]
       (with-catch mapper clazz
-        `(. ~mapper ~(e/builder-interface-from-bytes-method-name resolved-class) ~bytes)))
+        `(. ~mapper ~(e/builder-interface-get-projection-method-name resolved-class) ~fields)))
+    `(. ~(u/with-type-hint mapper ProtoMapper)
+        ~e/get-projection-method
+        ~clazz ~fields)))
+
+
+(defmacro bytes->proto-map
+  "Deserializes `bytes` into a proto-map for the given `clazz`.
+
+  Supported options:
+  :fields - a seq of field keys or key paths (see `projection`), or a precompiled projection.
+  Only the listed fields are decoded, and all other fields are left at their default values.
+
+  With a mapper defined with `:zero-copy? true`, bytes fields alias `bytes` rather than being copied,
+  so `bytes` must not be modified for as long as the proto-map (or any value read from it) is used.
+  With a mapper which caches `clazz` (see `:decode-cache`), payloads which were parsed before return the
+  proto-map which was cached for them, unless `:fields` are supplied."
+  ([mapper clazz bytes]
+   (if-let [resolved-class  (resolve-class clazz)]
+     (let [mapper (e/with-builder-class-hint mapper resolved-class)]
+       (with-catch mapper clazz
+         `(. ~mapper ~(e/builder-interface-from-bytes-method-name resolved-class) ~bytes)))
+     `(. ~(u/with-type-hint mapper ProtoMapper)
+         ~e/from-bytes-method
+         ~clazz ~bytes)))
+  ([mapper clazz bytes opts]
+   (let [mapper-sym (gensym 'mapper)
+         fields     (gensym 'fields)
+         projection (u/with-type-hint (gensym 'projection) Projection)]
+     `(let [~mapper-sym ~mapper
+            ~fields     (:fields ~opts)]
+        (if (nil? ~fields)
+          (bytes->proto-map ~mapper-sym ~clazz ~bytes)
+          (let [~projection (if (instance? Projection ~fields)
+                              ~fields
+                              (projection ~mapper-sym ~clazz ~fields))]
+            ~(if-let [resolved-class (resolve-class clazz)]
+               (let [mapper-sym (e/with-builder-class-hint mapper-sym resolved-class)]
+                 (with-catch mapper-sym clazz
+                   `(. ~mapper-sym ~(e/builder-interface-from-bytes-projected-method-name resolved-class)
+                       ~bytes ~projection)))
+               `(. ~(u/with-type-hint mapper-sym ProtoMapper)
+                   ~e/from-bytes-method
+                   ~clazz ~bytes ~projection))))))))
+
+
+(defmacro byte-buffer->proto-map
+  "Deserializes the remaining bytes of `buf`, a `ByteBuffer` (heap or direct), into a proto-map for the given `clazz`.
+  The position of `buf` is left unchanged.
+  With a mapper defined with `:zero-copy? true`, bytes fields alias `buf` rather than being copied."
+  [mapper clazz buf]
+  (if-let [resolved-class (resolve-class clazz)]
+    (let [mapper-sym (e/with-builder-class-hint (gensym 'mapper) resolved-class)]
+      `(let [~mapper-sym ~mapper]
+         ~(with-catch mapper-sym clazz
+            `(. ~mapper-sym ~(e/builder-interface-from-coded-input-stream-method-name resolved-class)
+                (pio/coded-input ~(u/with-type-hint buf ByteBuffer))))))
     `(. ~(u/with-type-hint mapper ProtoMapper)
-        ~e/from-bytes-method
-        ~clazz ~bytes)))
+        ~e/from-coded-input-stream-method
+        ~clazz (pio/coded-input ~(u/with-type-hint buf ByteBuffer)))))
 
 
 (defn proto-map->bytes
   "Serializes `proto-map` to protobuf binary"
   [proto-map]
-  (.toByteArray ^GeneratedMessageV3 (u/proto-map->proto proto-map)))
+  (let [bytes (.toByteArray ^GeneratedMessageV3 (u/proto-map->proto proto-map))]
+    (pio/count-serialized proto-map (alength bytes))
+    bytes))
+
+
+(defn serialized-size
+  "Returns the size of `proto-map` in protobuf binary, in bytes.
+  The size is computed once per message."
+  [proto-map]
+  (.getSerializedSize (pio/proto-map->message proto-map)))
+
+
+(defn serialization-buffer
+  "Returns a new growable buffer to serialize proto-maps into via `write-proto-map`,
+  meant to be cleared and reused (see `pronto.SerializationBuffer`)."
+  (^SerializationBuffer []
+   (serialization-buffer 4096))
+  (^SerializationBuffer [capacity]
+   (SerializationBuffer. capacity)))
+
+
+(defn write-proto-map
+  "Serializes `proto-map` straight into `sink`, without allocating an intermediate byte array.
+  `sink` may be an `OutputStream`, a `ByteBuffer` (written at its position, which must leave enough room)
+  or a serialization buffer (appended to, see `serialization-buffer`). Transient proto-maps are serialized
+  from their current state. Returns the number of bytes written.
+
+  Supported options:
+  :delimited? - when true, the message is preceded by its size, as in `proto-maps->delimited`"
+  ([sink proto-map]
+   (pio/write-proto-map sink proto-map false))
+  ([sink proto-map {:keys [delimited?]}]
+   (pio/write-proto-map sink proto-map delimited?)))
+
+(defmacro bytes-seq->proto-maps
+  "Deserializes every byte array of `byte-arrays` into a proto-map for the given `clazz`, in parallel,
+  and returns a vector of the proto-maps in the same order.
+
+  The batch is split into chunks of consecutive messages, each parsed by a single task.
+  Supported options:
+  :executor - the `ExecutorService` running the tasks, default the common `ForkJoinPool`
+
+  :chunk-size - the number of messages per task, default 256"
+  ([mapper clazz byte-arrays]
+   `(bytes-seq->proto-maps ~mapper ~clazz ~byte-arrays nil))
+  ([mapper clazz byte-arrays opts]
+   (let [mapper-sym (gensym 'mapper)
+         opts-sym   (gensym 'opts)
+         bytea      (with-meta (gensym 'bytea) {:tag "[B"})]
+     `(let [~mapper-sym ~mapper
+            ~opts-sym   ~opts]
+        (Batches/map (fn [~bytea] (bytes->proto-map ~mapper-sym ~clazz ~bytea))
+                     ~byte-arrays
+                     (:executor ~opts-sym)
+                     (or (:chunk-size ~opts-sym) 0))))))
+
+
+(defn proto-maps->byte-arrays
+  "Serializes every proto-map of `proto-maps` to protobuf binary, in parallel,
+  and returns a vector of the byte arrays in the same order.
+  Takes the same options as `bytes-seq->proto-maps`."
+  ([proto-maps]
+   (proto-maps->byte-arrays proto-maps nil))
+  ([proto-maps {:keys [executor chunk-size]}]
+   (Batches/map proto-map->bytes proto-maps executor (or chunk-size 0))))
+
+
+(defn ->columns
+  "Returns a columnar batch (`pronto.Columns`) of `proto-maps`, a collection of proto-maps of the given `clazz`.
+  The batch holds a column per singular numeric, boolean, string and enum field (other than optional fields),
+  which holds the values of the field for every proto-map, in order:
+  numeric and boolean fields as primitive arrays, enum fields as `pronto.Columns$Enums` (an array of codes into
+  a dictionary of keywords) and strings as `pronto.Columns$Strings` (UTF-8 bytes and their offsets).
+
+  Columns are looked up by field key, e.g `(:price columns)`, and the batch is also a collection of rows,
+  read-only maps of the columns' values, e.g `(nth columns 3)`. Requires a mapper defined with `:columns? true`.
+
+  Supported options:
+  :fields - a seq of the field keys of the columns to hold, default all the fields which have a column"
+  (^pronto.Columns [mapper clazz proto-maps]
+   (->columns mapper clazz proto-maps nil))
+  (^pronto.Columns [mapper clazz proto-maps {:keys [fields]}]
+   (.toColumns ^ProtoMapper mapper
+               clazz
+               (TransformIterable. (or proto-maps [])
+                                   (reify TransformIterable$Xf
+                                     (transform [_ proto-map]
+                                       (u/proto-map->proto proto-map))))
+               (some-> fields set)
+               (if (counted? proto-maps) (count proto-maps) 0))))
+
+
+(defn bytes-seq->columns
+  "Returns a columnar batch (see `->columns`) of the messages of the given `clazz` serialized in `byte-arrays`.
+  Messages are parsed one at a time and not retained, and when `:fields` is supplied only the fields
+  of its columns are parsed (see `projection`). Takes the same options as `->columns`."
+  (^pronto.Columns [mapper clazz byte-arrays]
+   (bytes-seq->columns mapper clazz byte-arrays nil))
+  (^pronto.Columns [mapper clazz byte-arrays {:keys [fields]}]
+   (let [^ProtoMapper mapper     mapper
+         ^Projection projection (when fields
+                                  (.getProjection mapper clazz fields))]
+     (.toColumns mapper
+                 clazz
+                 (TransformIterable. (or byte-arrays [])
+                                     (reify TransformIterable$Xf
+                                       (transform [_ bytea]
+                                         (u/proto-map->proto
+                                          (if projection
+                                            (.fromBytes mapper clazz bytea projection)
+                                            (.fromBytes mapper clazz ^bytes bytea))))))
+                 (some-> fields set)
+                 (if (counted? byte-arrays) (count byte-arrays) 0)))))
+
+
+(defmacro delimited->proto-maps
+  "Returns a reducible (`IReduceInit`) of proto-maps for the given `clazz`, read from `source`
+  which holds length-delimited messages (see `proto-maps->delimited`).
+  `source` may be an `InputStream`, a `ByteBuffer`, a byte array or a memory-mapped file region (see `map-region`).
+
+  A single `CodedInputStream` is used per reduction. Note that an `InputStream` source can only be reduced once.
+  With a mapper defined with `:zero-copy? true`, bytes fields alias any source but an `InputStream` rather than
+  being copied, including mapped regions, whose file must then not change while they are used."
+  [mapper clazz source]
+  (let [cis (u/with-type-hint (gensym 'cis) CodedInputStream)]
+    (if-let [resolved-class (resolve-class clazz)]
+      (let [mapper-sym (e/with-builder-class-hint (gensym 'mapper) resolved-class)]
+        `(let [~mapper-sym ~mapper]
+           (pio/delimited-reducible
+            ~source
+            (fn [~cis]
+              ~(with-catch mapper-sym clazz
+                 `(. ~mapper-sym ~(e/builder-interface-from-coded-input-stream-method-name resolved-class) ~cis))))))
+      (let [mapper-sym (u/with-type-hint (gensym 'mapper) ProtoMapper)]
+        `(let [~mapper-sym ~mapper
+               clazz#      ~clazz]
+           (pio/delimited-reducible
+            ~source
+            (fn [~cis]
+              (. ~mapper-sym ~e/from-coded-input-stream-method clazz# ~cis))))))))
+
+
+(defn proto-maps->delimited
+  "Writes `proto-maps` to `sink`, an `OutputStream` or a `ByteBuffer`, as length-delimited
+  messages through a single `CodedOutputStream`. Returns the number of messages written."
+  [sink proto-maps]
+  (pio/write-delimited sink proto-maps))
+
+
+(defn proto-map->json
+  "Serializes `proto-map` to a JSON string, by the writer generated for its class by a mapper
+  defined with `:json? true`. The JSON object has the same keys and values as `proto-map->clj-map`
+  returns (see `write-json`)."
+  ^String [proto-map]
+  (pio/proto-map->json proto-map))
+
+
+(defn write-json
+  "Writes `proto-map` as a JSON object straight into `sink`, a `Writer`, an `OutputStream` (in UTF-8)
+  or a `pronto.JsonWriter`, by the writer generated for its class by a mapper defined with `:json? true`.
+  Fields are read by their getters, and no intermediate Clojure map is built.
+
+  Keys are named by `:key-name-fn` and enum values by `:enum-value-fn`, unset messages and optional fields
+  are null, bytes are base64 strings, and fields of encoded (or well-known) types are written as the Clojure
+  data their encoder returns. With `:skip-default-values?`, fields holding their default value are left out.
+  Unless `sink` is a `JsonWriter`, which is left for the caller to flush, the text is flushed to `sink`."
+  [sink proto-map]
+  (pio/write-json sink proto-map))
+
+
+(defmacro json->proto-map
+  "Reads a JSON object, as written by `write-json`, from `source` into a proto-map for the given `clazz`,
+  by the reader generated for it by a mapper defined with `:json? true`. `source` may be a string,
+  a `Reader`, an `InputStream` (in UTF-8) or a `pronto.JsonReader`, which may hold more values
+  to be read after the object.
+
+  Fields are set on a builder as they are read, without an intermediate Clojure map. Enum values may also
+  be given by their number, and 64-bit integers as strings. Members whose value is null are skipped,
+  and unknown members throw."
+  [mapper clazz source]
+  (if-let [resolved-class (resolve-class clazz)]
+    (let [mapper-sym (e/with-builder-class-hint (gensym 'mapper) resolved-class)
+          reader     (gensym 'reader)]
+      `(let [~mapper-sym ~mapper]
+         (pio/read-json
+          ~source
+          (fn [~reader]
+            ~(with-catch mapper-sym clazz
+               `(. ~mapper-sym ~(e/builder-interface-from-json-method-name resolved-class) ~reader))))))
+    (let [mapper-sym (u/with-type-hint (gensym 'mapper) ProtoMapper)
+          reader     (u/with-type-hint (gensym 'reader) JsonReader)]
+      `(let [~mapper-sym ~mapper
+             clazz#      ~clazz]
+         (pio/read-json
+          ~source
+          (fn [~reader]
+            (. ~mapper-sym ~e/from-json-method clazz# ~reader)))))))
+
+
+;; repeated fields (and batches) are folded in parallel by `r/fold`, like persistent vectors
+(extend-protocol r/CollFold
+  ProntoVector
+  (coll-fold [v n combinef reducef]
+    (.fold v n combinef reducef)))
+
 
 (defn remap
   "Remaps `proto-map` using `mapper`.
@@ -194,6 +522,13 @@
                            (cond-> k
                              (symbol? k) resolve)]
                        [resolved-k v])))
+                  (eval %)))
+       (update' :decode-cache
+                #(into
+                  {}
+                  (map
+                   (fn [[k capacity]]
+                     [(cond-> k (symbol? k) resolve) capacity]))
                   (eval %))))))
 
 
@@ -207,10 +542,59 @@
   (boolean (get (dependencies dependent) dependency)))
 
 
+(defn metrics
+  "Returns a snapshot of the operation counters of `mapper`, `{class {:assoc n, :to-builder n, ...}}`,
+  or nil unless it was defined with `:metrics? true`. Counters only grow, so rates are obtained by
+  diffing two snapshots."
+  [^ProtoMapper mapper]
+  (.getMetrics mapper))
+
+
+(defn decode-cache-stats
+  "Returns the counters of the decode caches of `mapper`, `{class {:hits n, :misses n, :evictions n, :size n,
+  :capacity n}}`, or nil unless it was defined with `:decode-cache`. Classes whose proto-map classes were not
+  generated yet (see `:lazy?`) are left out."
+  [^ProtoMapper mapper]
+  (.getDecodeCacheStats mapper))
+
+
 (defn- proto-ns-name [mapper-sym-name]
   (s/join "." [global-ns *ns* mapper-sym-name]))
 
 
+(defn- emit-proto-maps [classes ctx]
+  `(do
+     ~(e/emit-decls classes ctx)
+     ~@(doall
+         (for [clazz classes]
+           (e/emit-proto-map clazz ctx)))))
+
+
+(defn lazy-delegates
+  "Returns the delegates of a mapper defined via `defmapper` with `:lazy? true`.
+  The proto-map classes of a class, and of any of its dependencies which were not generated yet,
+  are generated and loaded the first time the class is used through the mapper.
+  Used by `defmapper`, and not meant to be called directly."
+  [mapper-ns-name proto-ns-name opts classes]
+  (let [generated (volatile! #{})
+        ctx       (delay
+                    (binding [*ns* (the-ns mapper-ns-name)]
+                      (assoc (init-ctx opts) :ns proto-ns-name)))]
+    (LazyDelegates.
+     (count classes)
+     (fn [i mapper]
+       (let [clazz (nth classes i)
+             ctx   @ctx
+             deps  (->> (concat (reverse (resolve-deps ctx clazz)) [clazz])
+                        distinct
+                        (remove @generated))]
+         (binding [*ns* (the-ns mapper-ns-name)]
+           (when (seq deps)
+             (eval `(u/with-ns ~proto-ns-name ~(emit-proto-maps deps ctx)))
+             (vswap! generated into deps))
+           ((eval (e/emit-lazy-delegate clazz ctx)) mapper)))))))
+
+
 (defmacro defmapper
   "Define a new proto mapper for the supplied classes using the supplied options.
 
@@ -221,7 +605,47 @@
 
   :iter-xf - a transducer for key-value map pairs
 
-  :encoders - encoders map, `{class->{:from-proto fn, :to-proto fn}}`"
+  :skip-default-values? - when true, fields which are unset or hold their default value
+  are skipped when iterating or reducing over a proto-map (lookups are not affected)
+
+  :encoders - encoders map, `{class->{:from-proto fn, :to-proto fn}}`
+
+  :max-deferred-writes - when set, `assoc` on a proto-map defers building the underlying message
+  until it is needed, or until more than this many writes are pending (see `pronto.DeferredProtoMap`)
+
+  :cache-children? - when true, a proto-map caches the proto-maps and vector/map views it returns for
+  its message-typed, repeated and map fields, so reading them again does not allocate
+
+  :lazy? - when true, only the mapper itself is compiled. The proto-map classes of a class (and of its
+  dependencies) are generated and loaded the first time the class is used through the mapper, which cuts
+  the compile time of mappers over large schemas which are only partially used. This option is ignored
+  when AOT compiling, so that all classes are compiled ahead of time
+
+  :metrics? - when true, proto-maps count their operations (assocs, builder copies and builds,
+  proto-map allocations, `persistent!` calls, parsing and serialization and their sizes in bytes,
+  conversions from and to Clojure maps, and type errors) per class, see `metrics`.
+  When false (the default), no counting code is generated at all
+
+  :json? - when true, a JSON writer and reader are generated per class, see `write-json` and `json->proto-map`
+
+  :diff? - when true, a diff, patch and clear-path function is generated per class, see `diff` and `patch`
+
+  :reusable-transients? - when true, a per-thread transient is generated per class, see `with-reusable-transient`
+
+  :columns? - when true, a function which copies messages into columns is generated per class, see `->columns`
+
+  :zero-copy? - when true, bytes fields of messages parsed from byte arrays and `ByteBuffer`s (see `bytes->proto-map`,
+  `byte-buffer->proto-map` and `delimited->proto-maps`) alias the parsed buffer rather than being copied.
+  The buffer must not be modified for as long as any proto-map parsed from it, or bytes value read from one, is used
+
+  :byte-buffer-views? - when true, bytes fields are returned as read-only `ByteBuffer` views of their
+  `ByteString`s, without copying. Both `ByteBuffer`s (which are copied) and `ByteString`s may be set
+
+  :decode-cache - a map of class to capacity, `{class n}`. Parsing a byte array of one of these classes (see
+  `bytes->proto-map`) first looks it up in a cache of the last parsed payloads of the class, holding at most `n`
+  entries, and returns the very same proto-map for a payload identical to a cached one. Lookups hash the payload
+  and compare it byte for byte, and each entry keeps a copy of its payload, so this pays off for classes whose
+  payloads repeat often (e.g, config or lookup messages) and are small. See `decode-cache-stats`"
   [name classes & opts]
   {:pre [(symbol? name)
          (vector? classes)
@@ -237,14 +661,14 @@
                              (mapcat (partial resolve-deps ctx))
                              reverse)
           deps          (distinct (concat sub-deps resolved-classes))]
-      `(do
-         (u/with-ns ~proto-ns-name
-           ~(e/emit-decls deps)
-           ~@(doall
-               (for [dep deps]
-                 (e/emit-proto-map dep ctx))))
+      (if (and (:lazy? ctx) (not *compile-files*))
+        (e/emit-mapper name deps ctx proto-ns-name
+                       `(lazy-delegates '~(ns-name *ns*) ~proto-ns-name '~opts [~@deps]))
+        `(do
+           (u/with-ns ~proto-ns-name
+             ~(emit-proto-maps deps ctx))
 
-         ~(e/emit-mapper name deps ctx proto-ns-name)))))
+           ~(e/emit-mapper name deps ctx proto-ns-name))))))
 
 
 
@@ -256,6 +680,8 @@
                        assoc-if
                        hint
                        with-hints]
+                      [pronto.io
+                       map-region]
                       [pronto.utils
                        ->kebab-case
                        proto-map?
@@ -0,0 +1,88 @@
+(ns pronto.dynamic
+  "Proto-maps for message types which are only known at runtime.
+
+  A dynamic mapper is built from a `FileDescriptorSet` (e.g, as produced by
+  `protoc --descriptor_set_out`, or fetched from a schema registry) rather than from
+  generated classes, so no code is emitted at macro-expansion time.
+  Message types are referred to by their full protobuf name, e.g `\"protogen.generated.Person\"`."
+  (:import [pronto DynamicProtoMapper DynamicProtoMap]
+           [com.google.protobuf DescriptorProtos$FileDescriptorSet Message]
+           [java.io InputStream]))
+
+(defn- ->descriptor-set ^DescriptorProtos$FileDescriptorSet [x]
+  (cond
+    (instance? DescriptorProtos$FileDescriptorSet x) x
+    (bytes? x)                                      (DescriptorProtos$FileDescriptorSet/parseFrom ^bytes x)
+    (instance? InputStream x)                       (DescriptorProtos$FileDescriptorSet/parseFrom ^InputStream x)
+    :else (throw (IllegalArgumentException. (str "Cannot read a descriptor set from " (class x))))))
+
+(defn mapper
+  "Returns a mapper for all message types defined in `descriptor-set`, a `FileDescriptorSet`
+  or its serialized form (a byte array or an `InputStream`).
+  Dependencies on well-known types (e.g, `google/protobuf/wrappers.proto`) may be left out of the set.
+
+  Supported options:
+  :key-name-fn - a function that maps a field name, default `identity`
+
+  :enum-value-fn - a function that maps enum values, default `identity`"
+  ^DynamicProtoMapper [descriptor-set & {:keys [key-name-fn enum-value-fn]}]
+  (DynamicProtoMapper/fromFileDescriptorSet
+   (->descriptor-set descriptor-set)
+   key-name-fn
+   enum-value-fn))
+
+(defn message-types
+  "Returns the full names of the message types loaded by `mapper`."
+  [^DynamicProtoMapper mapper]
+  (.getMessageTypes mapper))
+
+(defn proto-map
+  "Returns a new proto-map for `message-type` via `mapper`, initialized
+  to the optionally supplied key-value pairs."
+  [^DynamicProtoMapper mapper message-type & kvs]
+  {:pre [(even? (count kvs))]}
+  (let [m (.getProto mapper message-type)]
+    (if (empty? kvs)
+      m
+      (persistent!
+       (reduce (fn [m [k v]] (assoc! m k v))
+               (transient m)
+               (partition 2 kvs))))))
+
+(defn clj-map->proto-map
+  "Translate `m` to a proto-map for `message-type` using `mapper`."
+  [^DynamicProtoMapper mapper message-type m]
+  (.fromCljMap mapper message-type m))
+
+(defn bytes->proto-map
+  "Deserializes `bytes` into a proto-map for `message-type`."
+  [^DynamicProtoMapper mapper message-type ^bytes bytes]
+  (.fromBytes mapper message-type bytes))
+
+(defn proto->proto-map
+  "Wraps a new proto-map around `proto`, a `DynamicMessage` or a generated message
+  of a type loaded by `mapper`."
+  [^DynamicProtoMapper mapper ^Message proto]
+  (.fromMessage mapper proto))
+
+(defn proto-map->proto
+  "Returns the message underlying `proto-map`."
+  ^Message [^DynamicProtoMap proto-map]
+  (.getMessage proto-map))
+
+(defn proto-map->bytes
+  "Serializes `proto-map` to protobuf binary."
+  [^DynamicProtoMap proto-map]
+  (.toByteArray (.getMessage proto-map)))
+
+(defn has-field?
+  "Returns true iff field `k` is set in `m`.
+  `k` must be a message type (i.e, non-scalar) or an optional field."
+  [^DynamicProtoMap m k]
+  (.hasField m k))
+
+(defn which-one-of
+  "Returns a keyword corresponding to which field is set for `k`,
+  a one-of type (or `nil` if none set)."
+  [^DynamicProtoMap m k]
+  (.whichOneOf m k))
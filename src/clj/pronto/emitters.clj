@@ -4,13 +4,20 @@
             [pronto.protos :refer [global-ns]]
             [pronto.reflection :as r]
             [clojure.string :as s]
-            [pronto.reflection :as reflect])
+            [pronto.reflection :as reflect]
+            [pronto.wrapper :as w]
+            [pronto.io :as pio])
   (:import [com.google.protobuf
+            Descriptors$EnumValueDescriptor
             Descriptors$FieldDescriptor
+            Descriptors$FieldDescriptor$JavaType
+            Descriptors$FileDescriptor$Syntax
             Descriptors$OneofDescriptor]
-           [com.google.protobuf Internal$EnumLite]
+           [com.google.protobuf Internal$EnumLite CodedInputStream UnsafeByteOperations]
            [java.lang.reflect Method]
-           [pronto ProtoMapper]))
+           [pronto ProtoMap ProtoMapper ProtoMapMetrics DecodeCache Projection Projection$Builders ProntoVector ReusableTransient
+            JsonReader JsonWriter Columns Columns$IntsBuilder Columns$LongsBuilder Columns$FloatsBuilder
+            Columns$DoublesBuilder Columns$BooleansBuilder Columns$StringsBuilder Columns$EnumsBuilder]))
 
 
 (defn- empty-map-var-name
@@ -19,6 +26,12 @@
    (symbol ns (str "__EMPTY_" (u/sanitized-class-name clazz)))))
 
 
+(defn- reusable-transient-var-name
+  ([clazz] (reusable-transient-var-name clazz nil))
+  ([^Class clazz ns]
+   (symbol ns (str "__REUSABLE_" (u/sanitized-class-name clazz)))))
+
+
 (defn- proto-or-builder-interface [^Class clazz]
   ;; TODO: not the best way to go about this.
   (first (.getInterfaces clazz)))
@@ -30,14 +43,14 @@
                        (r/get-builder-class (:class field))))))
 
 
-(defn- emit-default-ctor [^Class clazz]
+(defn- emit-default-ctor [^Class clazz ctx]
   (let [wrapper-class-name (u/class->map-class-name clazz)]
-    `(new ~wrapper-class-name (.build (~(u/static-call clazz "newBuilder"))) nil)))
+    (u/proto-map-ctor ctx wrapper-class-name `(.build (~(u/static-call clazz "newBuilder"))) nil)))
 
 
 (defn- emit-default-transient-ctor [^Class clazz ns]
   (let [transient-wrapper-class-name (u/class->transient-class-name clazz)]
-    `(~(symbol ns (str '-> transient-wrapper-class-name)) (~(u/static-call clazz "newBuilder")) true)))
+    `(~(symbol ns (str '-> transient-wrapper-class-name)) (~(u/static-call clazz "newBuilder")) true nil false)))
 
 
 (defn- emit-interfaces
@@ -55,8 +68,14 @@
 
 
 (def from-bytes-method 'fromBytes)
+(def from-coded-input-stream-method 'fromCodedInputStream)
+(def get-projection-method 'getProjection)
 (def get-transient-method 'getTransient)
+(def get-reusable-transient-method 'getReusableTransient)
 (def get-proto-method 'getProto)
+(def from-clj-map-method 'fromCljMap)
+(def from-json-method 'fromJson)
+(def to-columns-method 'toColumns)
 
 
 (defn- builder-interface-name [^Class clazz]
@@ -71,27 +90,72 @@
 (defn builder-interface-from-bytes-method-name [^Class clazz]
   (symbol (str from-bytes-method "_" (u/sanitized-class-name clazz))))
 
+(defn builder-interface-from-coded-input-stream-method-name [^Class clazz]
+  (symbol (str from-coded-input-stream-method "_" (u/sanitized-class-name clazz))))
+
 (defn builder-interface-get-transient-method-name [^Class clazz]
   (symbol (str "getTransient_" (u/sanitized-class-name clazz))))
 
-(defn- proto-builder-interface [ns ^Class clazz]
-  (let [intf-name     (builder-interface-name clazz)
+(defn builder-interface-get-reusable-transient-method-name [^Class clazz]
+  (symbol (str get-reusable-transient-method "_" (u/sanitized-class-name clazz))))
+
+(defn builder-interface-get-projection-method-name [^Class clazz]
+  (symbol (str get-projection-method "_" (u/sanitized-class-name clazz))))
+
+(defn builder-interface-from-bytes-projected-method-name [^Class clazz]
+  (symbol (str from-bytes-method "Projected_" (u/sanitized-class-name clazz))))
+
+(defn builder-interface-from-clj-map-method-name [^Class clazz]
+  (symbol (str from-clj-map-method "_" (u/sanitized-class-name clazz))))
+
+(defn builder-interface-from-json-method-name [^Class clazz]
+  (symbol (str from-json-method "_" (u/sanitized-class-name clazz))))
+
+(defn builder-interface-to-columns-method-name [^Class clazz]
+  (symbol (str to-columns-method "_" (u/sanitized-class-name clazz))))
+
+(declare emit-compile-projection with-builder-class-hint with-error-metric)
+
+(defn- builder-interface-methods [^Class clazz]
+  [[(builder-interface-get-proto-method-name clazz) []]
+   [(builder-interface-from-proto-method-name clazz) ['proto-obj]]
+   [(builder-interface-get-transient-method-name clazz) []]
+   [(builder-interface-get-reusable-transient-method-name clazz) []]
+   [(builder-interface-from-bytes-method-name clazz) ['bytea]]
+   [(builder-interface-from-coded-input-stream-method-name clazz) ['cis]]
+   [(builder-interface-get-projection-method-name clazz) ['fields]]
+   [(builder-interface-from-bytes-projected-method-name clazz) ['bytea 'projection]]
+   [(builder-interface-from-clj-map-method-name clazz) ['m]]
+   [(builder-interface-from-json-method-name clazz) ['json-reader]]
+   [(builder-interface-to-columns-method-name clazz) ['messages 'fields 'capacity]]])
+
+(defn- proto-builder-interface
+  "Returns the builder interface of `clazz`, along with its implementation.
+  Projections into nested classes are compiled via `mapper`, which defaults to the implementing object."
+  [ctx ^Class clazz & [mapper]]
+  (let [ns            (:ns ctx)
+        intf-name     (builder-interface-name clazz)
         proto-obj-sym (gensym 'pos)
-        bytea         (gensym 'bytea)]
+        bytea         (gensym 'bytea)
+        cis           (gensym 'cis)
+        this          (gensym 'this)
+        fields        (gensym 'fields)
+        projection    (gensym 'projection)
+        m             (gensym 'm)
+        json-reader   (gensym 'json-reader)
+        messages      (gensym 'messages)
+        capacity      (gensym 'capacity)
+        builder       (u/with-type-hint (gensym 'builder) (r/get-builder-class clazz))
+        wrapper-class (symbol (str (u/javaify ns) "." (u/class->map-class-name clazz)))
+        read-bytes    (gensym 'read-bytes)
+        reusable      (u/with-type-hint (gensym 'reusable) ReusableTransient)
+        hinted-cis    (u/with-type-hint cis CodedInputStream)
+        hinted-bytea  (with-meta bytea {:tag "[B"})]
     {:name (symbol (str (u/javaify global-ns) "." intf-name))
      :intf
      `(definterface ~intf-name
-        (~(builder-interface-get-proto-method-name clazz)
-         [])
-
-        (~(builder-interface-from-proto-method-name clazz)
-         [~'proto-obj])
-
-        (~(builder-interface-get-transient-method-name clazz)
-         [])
-
-        (~(builder-interface-from-bytes-method-name clazz)
-         [~'bytea]))
+        ~@(for [[method args] (builder-interface-methods clazz)]
+            (list method args)))
      :impl
      `((~(builder-interface-get-proto-method-name clazz)
         [~'_]
@@ -99,19 +163,99 @@
 
        (~(builder-interface-from-proto-method-name clazz)
         [~'_ ~proto-obj-sym]
-        (new ~(symbol (str (u/javaify ns) "." (u/class->map-class-name clazz)))
-             ~proto-obj-sym
-             nil))
+        ~(u/proto-map-ctor ctx wrapper-class proto-obj-sym nil))
 
        (~(builder-interface-get-transient-method-name clazz)
         [~'_]
         ~(emit-default-transient-ctor clazz ns))
 
+       (~(builder-interface-get-reusable-transient-method-name clazz)
+        [~'_]
+        ~(if (:reusable-transients? ctx)
+           `(let [~reusable (.get ~(with-meta (reusable-transient-var-name clazz ns) {:tag 'ThreadLocal}))]
+              (if (.pmap_isEditable ~reusable)
+                ;; in use by an enclosing `with-reusable-transient` on this thread
+                ~(emit-default-transient-ctor clazz ns)
+                (do (.pmap_reset ~reusable)
+                    ~reusable)))
+           `(throw (UnsupportedOperationException.
+                    "Reusable transients are only generated by mappers defined with `:reusable-transients? true`"))))
+
        (~(builder-interface-from-bytes-method-name clazz)
-        [this# ~bytea]
-        (. this# ~(builder-interface-from-proto-method-name clazz)
-          (~(u/static-call clazz "parseFrom")
-           ~(with-meta bytea {:tag "[B"})))))}))
+        [~this ~bytea]
+        ~(let [parse (fn [bytea]
+                       `(do
+                          ~@(u/metric ctx wrapper-class '.onParse `(alength ~bytea))
+                          (. ~this ~(builder-interface-from-proto-method-name clazz)
+                             (~(u/static-call clazz "parseFrom")
+                              ~(if (:zero-copy? ctx)
+                                 ;; bytes fields alias the array rather than copying it
+                                 `(doto (.newCodedInput (UnsafeByteOperations/unsafeWrap ~bytea))
+                                    (.enableAliasing true))
+                                 bytea)))))]
+           (if (u/decode-cache-capacity ctx clazz)
+             (let [cache (with-meta (u/decode-cache-var-name ctx wrapper-class) {:tag 'pronto.DecodeCache})
+                   copy  (with-meta (gensym 'copy) {:tag "[B"})]
+               `(let [~hinted-bytea ~bytea
+                      hash#         (DecodeCache/hash ~hinted-bytea)
+                      m#            (.get ~cache hash# ~hinted-bytea)]
+                  (if (nil? m#)
+                    ;; parse a private copy of the payload, which the cache verifies hits against, so neither
+                    ;; changes when the caller reuses its array (even if bytes fields alias it, see `:zero-copy?`)
+                    (let [~copy (aclone ~hinted-bytea)]
+                      (.put ~cache hash# ~copy ~(parse copy)))
+                    m#)))
+             (parse hinted-bytea))))
+
+       (~(builder-interface-from-coded-input-stream-method-name clazz)
+        [~this ~cis]
+        ~@(when (:zero-copy? ctx)
+            [`(.enableAliasing ~hinted-cis true)])
+        ~(if (:metrics? ctx)
+           `(let [~read-bytes (.getTotalBytesRead ~hinted-cis)
+                  ~m          (. ~this ~(builder-interface-from-proto-method-name clazz)
+                                 (~(u/static-call clazz "parseFrom") ~hinted-cis))]
+              ~@(u/metric ctx wrapper-class '.onParse `(- (.getTotalBytesRead ~hinted-cis) ~read-bytes))
+              ~m)
+           `(. ~this ~(builder-interface-from-proto-method-name clazz)
+               (~(u/static-call clazz "parseFrom") ~hinted-cis))))
+
+       (~(builder-interface-get-projection-method-name clazz)
+        [~this ~fields]
+        ~(emit-compile-projection clazz ctx (or mapper this) fields))
+
+       (~(builder-interface-from-bytes-projected-method-name clazz)
+        [~this ~bytea ~projection]
+        (let [~builder (~(u/static-call clazz "newBuilder"))]
+          (Projection/mergeFrom ~hinted-bytea ~(u/with-type-hint projection Projection) ~builder
+                                ~(boolean (:zero-copy? ctx)))
+          ~@(u/metric ctx wrapper-class '.onParse `(alength ~hinted-bytea))
+          (. ~this ~(builder-interface-from-proto-method-name clazz) (.build ~builder))))
+
+       (~(builder-interface-from-clj-map-method-name clazz)
+        [~this ~m]
+        ~@(u/metric ctx wrapper-class '.onFromCljMap)
+        (let [~builder (~(u/static-call clazz "newBuilder"))]
+          ~(with-error-metric ctx wrapper-class
+             `(~(symbol (str ns) (str (u/class->from-clj-map-fn-name clazz))) ~builder ~m))
+          ~@(u/metric ctx wrapper-class '.onBuild)
+          ~(u/proto-map-ctor ctx wrapper-class `(.build ~builder) `(meta ~m))))
+
+       (~(builder-interface-from-json-method-name clazz)
+        [~this ~json-reader]
+        ~(if (:json? ctx)
+           `(let [~builder (~(u/static-call clazz "newBuilder"))]
+              ~(with-error-metric ctx wrapper-class
+                 `(~(symbol (str ns) (str (u/class->read-json-fn-name clazz))) ~json-reader ~builder))
+              ~@(u/metric ctx wrapper-class '.onBuild)
+              ~(u/proto-map-ctor ctx wrapper-class `(.build ~builder) nil))
+           `(throw (UnsupportedOperationException. "JSON readers are only generated by mappers defined with `:json? true`"))))
+
+       (~(builder-interface-to-columns-method-name clazz)
+        [~this ~messages ~fields ~capacity]
+        ~(if (:columns? ctx)
+           `(~(symbol (str ns) (str (u/class->to-columns-fn-name clazz))) ~messages ~fields ~capacity)
+           `(throw (UnsupportedOperationException. "Columnar batches are only generated by mappers defined with `:columns? true`")))))}))
 
 
 (defn- delegate-method [^Method method delegate-sym]
@@ -162,6 +306,65 @@
     (emit-case k branches not-found)))
 
 
+(defn- emit-projection-builders
+  "Returns a `Projection$Builders` of `clazz`, whose message fields are projected into the builders
+  returned by their `getXBuilder`, or `addXBuilder` for repeated fields."
+  [^Class clazz ctx]
+  (let [builder (gensym 'builder)
+        b       (u/with-type-hint (gensym 'b) (r/get-builder-class clazz))
+        n       (gensym 'n)]
+    `(reify Projection$Builders
+       (~'nestedBuilder [~'_ ~builder ~n]
+        (let [~b ~builder]
+          (case ~n
+            ~@(mapcat
+               (fn [field]
+                 (let [^Descriptors$FieldDescriptor fd (:fd field)
+                       cc                              (u/field->camel-case fd)]
+                   (cond
+                     (u/struct? fd)
+                     [(.getNumber fd) `(. ~b ~(symbol (str "get" cc "Builder")))]
+
+                     (and (u/message? fd) (not (.isMapField fd)))
+                     [(.getNumber fd) `(. ~b ~(symbol (str "add" cc "Builder")))])))
+               (t/get-field-handles clazz ctx))
+            (throw (IllegalArgumentException. (str "Cannot project into field number " ~n)))))))))
+
+
+(defn- emit-compile-projection [^Class clazz ctx this fields]
+  (let [field-handles (t/get-field-handles clazz ctx)
+        k             (gensym 'k)
+        sub-fields    (gensym 'sub-fields)]
+    `(pio/compile-projection
+      ~fields
+      (fn [~k]
+        ~(emit-fields-case
+          field-handles k true
+          (fn [field]
+            (.getNumber ^Descriptors$FieldDescriptor (:fd field)))))
+      (fn [~k ~sub-fields]
+        ~(emit-fields-case
+          field-handles k true
+          (fn [field]
+            (let [^Descriptors$FieldDescriptor fd (:fd field)]
+              (cond
+                (u/struct? fd)
+                (let [sub-class (t/field-type clazz fd)]
+                  `(. ~(with-builder-class-hint this sub-class)
+                      ~(builder-interface-get-projection-method-name sub-class)
+                      ~sub-fields))
+
+                (and (u/message? fd) (not (.isMapField fd)))
+                (let [sub-class (t/repeated-type-info clazz fd)]
+                  `(. ~(with-builder-class-hint this sub-class)
+                      ~(builder-interface-get-projection-method-name sub-class)
+                      ~sub-fields))
+
+                :else
+                `(throw (IllegalArgumentException. (str "Cannot project into field " ~k))))))))
+      ~(emit-projection-builders clazz ctx))))
+
+
 (defn setter [clazz field builder-sym val-sym instrument?]
   (let [builder-class                              (r/get-builder-class clazz)
         ex                                         (gensym 'ex)
@@ -203,11 +406,78 @@
         proto-interface))))
 
 
-(defn- emit-val-at [clazz fields this k]
-  (emit-fields-case
-    fields k true
-    (fn [fd]
-      (getter clazz fd this))))
+(defn- message-wrapper? [^Class clazz ctx]
+  (= :message (w/wrapper-type clazz ctx)))
+
+
+(defn- cached-child?
+  "Returns true iff reading `field` allocates a view or a wrapper, which is worth caching."
+  [^Class clazz ctx field]
+  (let [^Descriptors$FieldDescriptor fd (:fd field)]
+    (or (.isRepeated fd)
+        (and (u/struct? fd)
+             (message-wrapper? (t/field-type clazz fd) ctx)))))
+
+
+(defn- cached-getter
+  "Returns a function which emits a getter for a field, which first looks up the field's value
+  in `children`, a slot array which is only allocated once a child is cached."
+  [^Class clazz ctx fields this children]
+  (let [cached    (filter (partial cached-child? clazz ctx) fields)
+        slots     (zipmap (map :kw cached) (range))
+        n         (count cached)
+        cs        (with-meta (gensym 'cs) {:tag 'objects})
+        c         (gensym 'c)
+        v         (gensym 'v)]
+    (fn [field]
+      (if-let [slot (get slots (:kw field))]
+        `(let [~cs ~children
+               ~c  (when-not (nil? ~cs) (aget ~cs ~slot))]
+           (if-not (nil? ~c)
+             ~c
+             (let [~v ~(getter clazz field this)]
+               (when-not (nil? ~v)
+                 (let [~cs (if (nil? ~children)
+                             (let [~cs (object-array ~n)]
+                               (set! ~children ~cs)
+                               ~cs)
+                             ~children)]
+                   (aset ~cs ~slot ~v)))
+               ~v)))
+        (getter clazz field this)))))
+
+
+(defn- emit-lookup-thunks
+  "Emits an implementation of `IKeywordLookup`, whose thunks let keyword call sites, e.g, `(:id m)`,
+  invoke a field's getter directly rather than dispatching on the keyword in `valAt`."
+  [^Class clazz ctx fields wrapper-class-name]
+  (let [k      (gensym 'k)
+        thunk  (gensym 'thunk)
+        target (gensym 'target)
+        cached? (if (:cache-children? ctx)
+                  (partial cached-child? clazz ctx)
+                  (constantly false))]
+    `(clojure.lang.IKeywordLookup
+
+      (getLookupThunk [this# ~k]
+        ~(emit-fields-case
+          (map-indexed #(assoc %2 ::index %1) fields) k false
+          (fn [field]
+            `(reify clojure.lang.ILookupThunk
+               (get [~thunk ~target]
+                 (if (identical? (class ~target) ~wrapper-class-name)
+                   ;; cached children are only set by the proto-map's own methods
+                   ~(if (cached? field)
+                      `(.pmap_fieldVal ~(u/with-type-hint target pronto.IndexedFields) ~(::index field))
+                      (getter clazz field target))
+                   ~thunk)))))))))
+
+
+(defn- emit-val-at
+  ([clazz fields this k]
+   (emit-val-at fields k #(getter clazz % this)))
+  ([fields k get-field]
+   (emit-fields-case fields k true get-field)))
 
 
 (defn- emit-clear [fields builder k]
@@ -268,6 +538,58 @@
           (empty-map-var-name (t/field-type clazz fd)))))))
 
 
+(defn- has-presence?
+  "Returns true iff whether `fd` is set is tracked apart from its value, e.g for message and one-of fields."
+  [^Descriptors$FieldDescriptor fd]
+  (or (u/struct? fd)
+      (some? (.getContainingOneof fd))
+      (= Descriptors$FileDescriptor$Syntax/PROTO2 (.getSyntax (.getFile fd)))))
+
+
+(defn- emit-default-value? [field o]
+  (let [^Descriptors$FieldDescriptor fd (:fd field)
+        cc                              (u/field->camel-case fd)
+        get-method                      (symbol (str ".get" cc))]
+    (cond
+      (or (.isMapField fd) (.isRepeated fd))
+      `(zero? (~(symbol (str ".get" cc "Count")) ~o))
+
+      (has-presence? fd)
+      `(not (~(symbol (str ".has" cc)) ~o))
+
+      (u/enum? fd)
+      `(zero? (~(symbol (str ".get" cc "Value")) ~o))
+
+      :else
+      (condp = (.getJavaType fd)
+        Descriptors$FieldDescriptor$JavaType/BOOLEAN     `(not (~get-method ~o))
+        Descriptors$FieldDescriptor$JavaType/STRING      `(.isEmpty (~get-method ~o))
+        Descriptors$FieldDescriptor$JavaType/BYTE_STRING `(.isEmpty (~get-method ~o))
+        `(== 0 (~get-method ~o))))))
+
+
+(defn- emit-indexed-fields [fields o skip-defaults? this get-field]
+  (let [i (gensym 'i)
+        indexed (fn [f]
+                  `(case ~i
+                     ~@(mapcat (fn [idx field] [idx (f field)])
+                               (range)
+                               fields)
+                     (throw (IndexOutOfBoundsException. (str ~i)))))]
+    `(pronto.IndexedFields
+
+      (pmap_fieldCount [this#] ~(count fields))
+
+      (pmap_fieldKey [this# ~i]
+        ~(indexed :kw))
+
+      (pmap_fieldVal [~this ~i]
+        ~(indexed get-field))
+
+      (pmap_isDefault [this# ~i]
+        ~(indexed #(emit-default-value? % o))))))
+
+
 (defprotocol ProtoMapBuilder
   (proto->proto-map [this mapper]))
 
@@ -275,6 +597,27 @@
 (def ^:private pojo (gensym 'pojo))
 
 
+(defn- with-error-metric
+  "Emits `body`, counting the type errors it throws when the mapper was defined with `:metrics? true`."
+  [ctx wrapper-class body]
+  (if (:metrics? ctx)
+    (let [ex (gensym 'ex)]
+      `(try
+         ~body
+         (catch Exception ~ex
+           ~@(u/metric ctx wrapper-class '.onError ex)
+           (throw ~ex))))
+    body))
+
+
+(defn- replaces-all-fields?
+  "Returns true iff conj'ing a proto-map onto another proto-map of the same class
+  assocs every single field, i.e, iff proto-maps are not iterated partially."
+  [ctx]
+  (and (nil? (:iter-xf ctx))
+       (not (:skip-default-values? ctx))))
+
+
 (defn- emit-deftype [^Class clazz ctx]
   (let [fields               (t/get-field-handles clazz ctx)
         o                    (u/with-type-hint pojo clazz)
@@ -283,8 +626,14 @@
         md                   (gensym 'md)
         mapper               (gensym 'mapper)
         builder-class (r/get-builder-class clazz)
-        builder-sym   (u/with-type-hint (gensym 'builder) builder-class)]
-    `(deftype ~wrapper-class-name [~o ~md]
+        builder-sym   (u/with-type-hint (gensym 'builder) builder-class)
+        skip-defaults? (boolean (:skip-default-values? ctx))
+        children       (with-meta (gensym 'children) {:unsynchronized-mutable true :tag 'objects})
+        this           (gensym 'this)
+        get-field      (if (:cache-children? ctx)
+                         (cached-getter clazz ctx fields this children)
+                         #(getter clazz % this))]
+    `(deftype ~wrapper-class-name [~o ~md ~@(when (:cache-children? ctx) [children])]
 
        clojure.lang.IPersistentMap
 
@@ -296,18 +645,29 @@
        ~(let [this (gensym 'this)
               k    (gensym 'k)
               v    (gensym 'v)]
-          `(assoc [~this ~k ~v]
-                  (let [~builder-sym (.pmap_getBuilder ~this)]
-                    ~(emit-assoc clazz fields this builder-sym k v)
-                    (.copy ~this ~builder-sym))))
+          (if-let [max-writes (:max-deferred-writes ctx)]
+            `(assoc [~this ~k ~v]
+                    ~@(u/metric ctx wrapper-class-name '.onAssoc)
+                    (pronto.DeferredProtoMap/assoc ~this ~k ~v ~max-writes ~md))
+            `(assoc [~this ~k ~v]
+                    ~@(u/metric ctx wrapper-class-name '.onAssoc)
+                    (let [~builder-sym (.pmap_getBuilder ~this)]
+                      ~(with-error-metric ctx wrapper-class-name
+                         (emit-assoc clazz fields this builder-sym k v))
+                      (.copy ~this ~builder-sym)))))
 
        pronto.ProtoMap
 
        (isMutable [this#] false)
 
-       (pmap_getBuilder [this#] (.toBuilder ~o))
+       (pmap_getBuilder [this#]
+         ~@(u/metric ctx wrapper-class-name '.onToBuilder)
+         (.toBuilder ~o))
 
-       (copy [this# builder#] (new ~wrapper-class-name (.build builder#) ~md))
+       ~(let [builder (gensym 'builder)]
+          `(copy [this# ~builder]
+                 ~@(u/metric ctx wrapper-class-name '.onBuild)
+                 ~(u/proto-map-ctor ctx wrapper-class-name `(.build ~builder) md)))
 
        (remap [this# ~mapper]
          ~(let [mapper (with-meta mapper
@@ -350,14 +710,15 @@
 
        clojure.lang.ILookup
 
-       ~(let [k    (gensym 'k)
-              this (gensym 'this)]
+       ~(let [k (gensym 'k)]
           `(valAt [~this ~k]
-                  ~(emit-val-at clazz fields this k)))
+                  ~(emit-val-at fields k get-field)))
 
        (valAt [this# k# not-found#]
          (.valAt this# k#))
 
+       ~@(emit-lookup-thunks clazz ctx fields wrapper-class-name)
+
        pronto.DefaultingFn
 
        (invoke [this# arg1#]
@@ -372,17 +733,26 @@
 
        clojure.lang.IObj
 
-       (withMeta [this# meta-map#]
-         (if (nil? meta-map#)
-           this#
-           (new ~wrapper-class-name ~o meta-map#)))
+       ~(let [meta-map (gensym 'meta-map)]
+          `(withMeta [this# ~meta-map]
+                     (if (identical? ~meta-map ~md)
+                       this#
+                       ;; the message is the same, and so are its children
+                       ~(u/proto-map-ctor ctx wrapper-class-name o meta-map children))))
 
        (meta [this#] ~md)
 
        clojure.lang.IPersistentCollection
 
-       (cons [this# o#]
-         (pronto.PersistentMapHelpers/cons this# o#))
+       ~(let [this (gensym 'this)
+              v    (gensym 'v)]
+          `(cons [~this ~v]
+                 ~(if (replaces-all-fields? ctx)
+                    ;; a proto-map of this very class carries every field, so conj'ing it results in its message
+                    `(if (instance? ~wrapper-class-name ~v)
+                       ~(u/proto-map-ctor ctx wrapper-class-name `(.pmap_getProto ~(u/with-type-hint v ProtoMap)) md)
+                       (pronto.PersistentMapHelpers/consAll ~this ~v))
+                    `(pronto.PersistentMapHelpers/consAll ~this ~v))))
 
        (empty
          [this#]
@@ -390,25 +760,22 @@
 
        (count [this#] ~(count fields))
 
-       (equiv [this# other#]
-         (pronto.PersistentMapHelpers/equiv
-          this#
-          (if (instance? ~clazz other#)
-            (new ~wrapper-class-name other# nil)
-            other#)))
+       ~(let [other (gensym 'other)]
+          `(equiv [this# ~other]
+                  (pronto.PersistentMapHelpers/equiv
+                   this#
+                   (if (instance? ~clazz ~other)
+                     ~(u/proto-map-ctor ctx wrapper-class-name other nil)
+                     ~other))))
 
        clojure.lang.Seqable
 
        ~(let [this    (gensym 'this)
-              entries (mapv (fn [fd]
-                              `(clojure.lang.MapEntry/create
-                                ~(:kw fd)
-                                ~(getter clazz fd this)))
-                            fields)]
+              entries `(pronto.IndexedFieldsHelpers/seq ~this ~skip-defaults?)]
           `(seq
             [~this]
             ~(if (nil? (:iter-xf ctx))
-               `(clojure.lang.RT/seq ~entries)
+               entries
                `(sequence
                  ~(:iter-xf ctx)
                  ~entries))))
@@ -416,17 +783,13 @@
        clojure.lang.IEditableCollection
 
        (asTransient [this#]
-         (new ~transient-class-name (.toBuilder ~o) true))
+         ~@(u/metric ctx wrapper-class-name '.onToBuilder)
+         (new ~transient-class-name (.toBuilder ~o) true nil false))
 
        java.lang.Iterable
 
        ~(let [this         (gensym 'this)
-              entries-iter `(clojure.lang.RT/iter
-                             ~(mapv (fn [fd]
-                                      `(clojure.lang.MapEntry/create
-                                        ~(:kw fd)
-                                        ~(getter clazz fd this)))
-                                    fields))]
+              entries-iter `(pronto.IndexedFieldsHelpers/iterator ~this ~skip-defaults?)]
           `(iterator
             [~this]
             ~(if (nil? (:iter-xf ctx))
@@ -435,6 +798,71 @@
                  ~(:iter-xf ctx)
                  ~entries-iter))))
 
+       ~@(emit-indexed-fields fields o skip-defaults? this get-field)
+
+       ~@(when (:metrics? ctx)
+           `(pronto.ProtoMapMetrics$Metered
+
+             (pmap_getMetrics [this#] ~(u/metrics-var-name ctx wrapper-class-name))))
+
+       ;; with an `:iter-xf`, reductions go through the (transformed) seq
+       ~@(when (nil? (:iter-xf ctx))
+           `(clojure.lang.IKVReduce
+
+             (kvreduce [this# f# init#]
+               (pronto.IndexedFieldsHelpers/kvreduce this# f# init# ~skip-defaults?))
+
+             clojure.lang.IReduceInit
+
+             (reduce [this# f# init#]
+               (pronto.IndexedFieldsHelpers/reduce this# f# init# ~skip-defaults?))
+
+             pronto.CljMapConvertible
+
+             (pmap_toCljMap [this#]
+               (~(u/class->to-clj-map-fn-name clazz) this#))))
+
+       ~@(when (:diff? ctx)
+           ['pronto.Diffable
+
+            (let [other   (gensym 'other)
+                  b       (u/with-type-hint (gensym 'b) clazz)
+                  changes (gensym 'changes)
+                  cleared (gensym 'cleared)]
+              `(pmap_diff [this# ~other]
+                          (let [~b       (.pmap_getProto ~(u/with-type-hint other ProtoMap))
+                                ~changes (~(u/static-call clazz "newBuilder"))
+                                ~cleared (java.util.ArrayList.)]
+                            (when-not (instance? ~clazz ~b)
+                              (throw (IllegalArgumentException. (str "Cannot diff " ~(.getName clazz) " with " (class ~b)))))
+                            (when-not (pronto.RT/sameMessage ~o ~b)
+                              (~(u/class->diff-fn-name clazz) ~o ~b ~changes [] ~cleared))
+                            {:changes ~(u/proto-map-ctor ctx wrapper-class-name `(.build ~changes) nil)
+                             :cleared (set ~cleared)})))
+
+            (let [delta   (gensym 'delta)
+                  changes (gensym 'changes)
+                  path    (gensym 'path)]
+              `(pmap_patch [this# ~delta]
+                           (let [~builder-sym (.toBuilder ~o)
+                                 ~changes     (:changes ~delta)]
+                             ~@(u/metric ctx wrapper-class-name '.onToBuilder)
+                             (doseq [~path (:cleared ~delta)]
+                               (~(u/class->clear-path-fn-name clazz) ~builder-sym ~path 0))
+                             (when (some? ~changes)
+                               (let [~changes (.pmap_getProto ~(u/with-type-hint changes ProtoMap))]
+                                 (when-not (instance? ~clazz ~changes)
+                                   (throw (IllegalArgumentException. (str "Cannot patch " ~(.getName clazz) " with " (class ~changes)))))
+                                 (~(u/class->patch-fn-name clazz) ~builder-sym ~changes)))
+                             ~@(u/metric ctx wrapper-class-name '.onBuild)
+                             ~(u/proto-map-ctor ctx wrapper-class-name `(.build ~builder-sym) md))))])
+
+       ~@(when (:json? ctx)
+           `(pronto.JsonWritable
+
+             (pmap_writeJson [this# w#]
+               (~(u/class->write-json-fn-name clazz) w# ~o))))
+
        java.util.Map
 
        (clear [this#] (throw (UnsupportedOperationException.)))
@@ -480,6 +908,44 @@
   (when-not editable?
     (throw (IllegalAccessError. "Transient used after persistent! call"))))
 
+(defn- emit-bump-field-version
+  "Emits counting a write to the field `k` of a transient, if it is a repeated or map field, in `versions`
+  (allocated on the first such write). Vectors and maps read from the transient only write back their pending
+  changes while the version they were read at is current (see `pmap_fieldVersion`)."
+  [fields versions k]
+  (let [view-fields (filter (fn [{:keys [^Descriptors$FieldDescriptor fd]}] (.isRepeated fd)) fields)
+        vs          (with-meta (gensym 'vs) {:tag 'ints})]
+    (when (seq view-fields)
+      (let [n (inc (apply max (map (fn [{:keys [^Descriptors$FieldDescriptor fd]}] (.getIndex fd)) view-fields)))]
+        `(case ~k
+           ~@(mapcat
+              (fn [{:keys [^Descriptors$FieldDescriptor fd kw]}]
+                [kw `(let [~vs (or ~versions (set! ~versions (int-array ~n)))]
+                       (aset ~vs ~(.getIndex fd) (unchecked-inc-int (aget ~vs ~(.getIndex fd)))))])
+              view-fields)
+           nil)))))
+
+
+(defn- emit-bump-field-versions
+  "Emits counting a write to every field of a transient (see `emit-bump-field-version`)."
+  [versions]
+  (let [vs (with-meta (gensym 'vs) {:tag 'ints})
+        i  (gensym 'i)]
+    `(let [~vs ~versions]
+       (when-not (nil? ~vs)
+         (dotimes [~i (alength ~vs)]
+           (aset ~vs ~i (unchecked-inc-int (aget ~vs ~i))))))))
+
+
+(defn- emit-unshare-fields
+  "Emits freezing the builder `o` of a transient if vectors or maps were read from it since it was last frozen,
+  so that it copies its lists and maps before writing to them again and the values read stay unchanged."
+  [o shared?]
+  `(when ~shared?
+     (.buildPartial ~o)
+     (set! ~shared? false)))
+
+
 (defn- emit-transient [^Class clazz ctx]
   (let [fields                       (t/get-field-handles clazz ctx)
         builder-class                (r/get-builder-class clazz)
@@ -489,7 +955,9 @@
         builder-class (r/get-builder-class clazz)
         builder-sym   (u/with-type-hint (gensym 'builder) builder-class)]
     `(deftype ~transient-wrapper-class-name [~(with-meta o {:unsynchronized-mutable true})
-                                             ~(with-meta 'editable? {:unsynchronized-mutable true})]
+                                             ~(with-meta 'editable? {:unsynchronized-mutable true})
+                                             ~(with-meta 'versions {:unsynchronized-mutable true :tag 'ints})
+                                             ~(with-meta 'shared? {:unsynchronized-mutable true})]
 
        pronto.ProtoMap
 
@@ -501,15 +969,26 @@
          (set! ~o builder#)
          this#)
 
-       (fromBuilder [this# builder#]
-         (new ~wrapper-class-name (.build builder#) nil))
+       (pmap_fieldVersion [this# i#]
+         (let [vs# ~'versions]
+           (if (nil? vs#) 0 (aget vs# i#))))
+
+       (pmap_shareFields [this#]
+         (set! ~'shared? true))
+
+       ~(let [builder (gensym 'builder)]
+          `(fromBuilder [this# ~builder]
+                        ~@(u/metric ctx wrapper-class-name '.onBuild)
+                        ~(u/proto-map-ctor ctx wrapper-class-name `(.build ~builder) nil)))
 
        (pmap_getProto [this#] ~pojo)
 
        ~(let [k (gensym 'k)]
           `(clearField [this# ~k]
                        (let [~builder-sym (.pmap_getBuilder this#)]
+                         ~(emit-unshare-fields builder-sym 'shared?)
                          ~(emit-clear fields builder-sym k)
+                         ~(emit-bump-field-version fields 'versions k)
                          (.copy this# ~builder-sym))))
 
        ~(let [k (gensym 'k)]
@@ -546,6 +1025,22 @@
 
        ~@(implement-message-or-builder-interface clazz o)
 
+       pronto.ReusableTransient
+
+       (pmap_isEditable [this#] ~'editable?)
+
+       (pmap_reset [this#]
+         (set! ~'shared? false)
+         ~(if (some (fn [{:keys [^Descriptors$FieldDescriptor fd]}] (.isMapField fd)) fields)
+            ;; clearing a built map field allocates a new mutable one, which costs more than a new builder
+            `(set! ~o (~(u/static-call clazz "newBuilder")))
+            `(.clear ~o))
+         ~(emit-bump-field-versions 'versions)
+         (set! ~'editable? true))
+
+       (pmap_release [this#]
+         (set! ~'editable? false))
+
        clojure.lang.ITransientMap
 
        ~(let [this (gensym 'this)
@@ -553,13 +1048,20 @@
               v    (gensym 'v)]
           `(~'assoc [~this ~k ~v]
                     (check-editable! ~'editable?)
-                    ~(emit-assoc clazz fields this o k v)
+                    ~@(u/metric ctx wrapper-class-name '.onAssoc)
+                    ~(emit-unshare-fields o 'shared?)
+                    ~(with-error-metric ctx wrapper-class-name
+                       (emit-assoc clazz fields this o k v))
+                    ~(emit-bump-field-version fields 'versions k)
                     ~this))
 
        (persistent
          [this#]
+         (check-editable! ~'editable?)
          (set! ~'editable? false)
-         (new ~wrapper-class-name (.build ~o) nil))
+         ~@(u/metric ctx wrapper-class-name '.onPersistent)
+         ~@(u/metric ctx wrapper-class-name '.onBuild)
+         ~(u/proto-map-ctor ctx wrapper-class-name `(.build ~o) nil))
 
        (count [this#]
          ~(count fields))
@@ -576,9 +1078,22 @@
 
        clojure.lang.ITransientCollection
 
-       (conj [this# val#]
-         (check-editable! ~'editable?)
-         (pronto.TransientMapHelpers/conj this# val#)))))
+       ~(let [this (gensym 'this)
+              v    (gensym 'v)
+              p    (u/with-type-hint (gensym 'p) clazz)]
+          `(conj [~this ~v]
+                 (check-editable! ~'editable?)
+                 ~(if (replaces-all-fields? ctx)
+                    `(if (instance? ~wrapper-class-name ~v)
+                       (let [~p           (.pmap_getProto ~(u/with-type-hint v ProtoMap))
+                             ~builder-sym ~o]
+                         ~(emit-unshare-fields builder-sym 'shared?)
+                         (.clear ~builder-sym)
+                         (.mergeFrom ~builder-sym ~p)
+                         ~(emit-bump-field-versions 'versions)
+                         ~this)
+                       (pronto.TransientMapHelpers/conj ~this ~v))
+                    `(pronto.TransientMapHelpers/conj ~this ~v)))))))
 
 
 (defn- emit-builder [^Class clazz]
@@ -597,27 +1112,774 @@
   `(declare ~(empty-map-var-name clazz)))
 
 
-(defn- emit-empty-map [^Class clazz]
-  `(def ~(empty-map-var-name clazz)
-     ~(emit-default-ctor clazz)))
+(defn- declare-converters [^Class clazz ctx]
+  `(declare ~(u/class->to-clj-map-fn-name clazz)
+            ~(u/class->from-clj-map-fn-name clazz)
+            ~@(when (:diff? ctx)
+                [(u/class->diff-fn-name clazz)
+                 (u/class->patch-fn-name clazz)
+                 (u/class->clear-path-fn-name clazz)])
+            ~@(when (:json? ctx)
+                [(u/class->write-json-fn-name clazz)
+                 (u/class->read-json-fn-name clazz)])))
 
 
-(defn emit-decls [classes]
+(defn- emit-reusable-transient
+  "Emits the thread-local transient of `clazz` reused by `with-reusable-transient`."
+  [^Class clazz ctx]
+  `(def ~(reusable-transient-var-name clazz)
+     (ThreadLocal/withInitial
+      (reify java.util.function.Supplier
+        (get [_#]
+          (new ~(u/class->transient-class-name clazz) (~(u/static-call clazz "newBuilder")) false nil false))))))
+
+
+(defn- emit-empty-map [^Class clazz ctx]
+  `(def ~(empty-map-var-name clazz)
+     ~(emit-default-ctor clazz ctx)))
+
+
+(defn- emit-to-clj-val [^Class clazz ctx field pm]
+  (let [^Descriptors$FieldDescriptor fd (:fd field)
+        v                               (gensym 'v)
+        convert                         (fn [nested-class x]
+                                          `(if (instance? ~(u/class->map-class-name nested-class) ~x)
+                                             (~(u/class->to-clj-map-fn-name nested-class) ~x)
+                                             ~x))]
+    (cond
+      (and (u/struct? fd)
+           (message-wrapper? (t/field-type clazz fd) ctx))
+      `(let [~v ~(getter clazz field pm)]
+         ~(convert (t/field-type clazz fd) v))
+
+      (and (u/message? fd)
+           (.isRepeated fd)
+           (not (.isMapField fd))
+           (message-wrapper? (t/repeated-type-info clazz fd) ctx))
+      (let [v   (u/with-type-hint v ProntoVector)
+            n   (gensym 'n)
+            i   (gensym 'i)
+            acc (gensym 'acc)]
+        `(let [~v ~(getter clazz field pm)
+               ~n (.count ~v)]
+           (if (zero? ~n)
+             ~v
+             (loop [~i   0
+                    ~acc (transient [])]
+               (if (< ~i ~n)
+                 (recur (unchecked-inc ~i)
+                        (conj! ~acc ~(convert (t/repeated-type-info clazz fd) `(.nth ~v ~i))))
+                 (persistent! ~acc))))))
+
+      :else
+      (getter clazz field pm))))
+
+
+(defn- emit-to-clj-map
+  "Emits a function which converts a proto-map of `clazz` to a Clojure map, reading each field
+  by its getter and converting nested proto-maps by the functions emitted for their classes."
+  [^Class clazz ctx]
+  (let [fields         (t/get-field-handles clazz ctx)
+        pm             (gensym 'pm)
+        o              (u/with-type-hint (gensym 'o) clazz)
+        kvs            (gensym 'kvs)
+        m              (gensym 'm)]
+    `(defn ~(u/class->to-clj-map-fn-name clazz) [~pm]
+       ~@(u/metric ctx (u/class->map-class-name clazz) '.onToCljMap)
+       ~(if (:skip-default-values? ctx)
+          `(let [~o (.pmap_getProto ~(u/with-type-hint pm ProtoMap))
+                 ~m (transient {})]
+             ~@(for [field fields]
+                 `(when-not ~(emit-default-value? field o)
+                    (assoc! ~m ~(:kw field) ~(emit-to-clj-val clazz ctx field pm))))
+             (persistent! ~m))
+          ;; every field is included, so the keys are known to be unique
+          `(let [~kvs (object-array ~(* 2 (count fields)))]
+             ~@(mapcat
+                (fn [i field]
+                  [`(aset ~kvs ~(* 2 i) ~(:kw field))
+                   `(aset ~kvs ~(inc (* 2 i)) (clojure.lang.RT/box ~(emit-to-clj-val clazz ctx field pm)))])
+                (range)
+                fields)
+             (clojure.lang.RT/mapUniqueKeys ~kvs))))))
+
+
+(defn- emit-from-clj-val [^Class clazz ctx field builder v]
+  (let [^Descriptors$FieldDescriptor fd (:fd field)
+        cc                              (u/field->camel-case fd)
+        plain-map?                      (fn [x] `(and (map? ~x) (not (instance? ProtoMap ~x))))]
+    (cond
+      (and (u/struct? fd)
+           (message-wrapper? (t/field-type clazz fd) ctx))
+      `(if ~(plain-map? v)
+         (~(u/class->from-clj-map-fn-name (t/field-type clazz fd))
+          (~(symbol (str ".get" cc "Builder")) ~builder)
+          ~v)
+         ~(setter clazz field builder v true))
+
+      (and (u/message? fd)
+           (.isRepeated fd)
+           (not (.isMapField fd))
+           (message-wrapper? (t/repeated-type-info clazz fd) ctx))
+      (let [nested-class (t/repeated-type-info clazz fd)
+            wrapper      (w/gen-wrapper nested-class (assoc ctx :class clazz :fd fd :instrument? true))
+            item         (gensym 'item)
+            p            (u/with-type-hint (gensym 'p) nested-class)]
+        `(if (and (sequential? ~v) (not (instance? ProntoVector ~v)))
+           (do
+             (~(symbol (str ".clear" cc)) ~builder)
+             (doseq [~item ~v]
+               (if ~(plain-map? item)
+                 (~(u/class->from-clj-map-fn-name nested-class)
+                  (~(symbol (str ".add" cc "Builder")) ~builder)
+                  ~item)
+                 (let [~p ~(w/unwrap wrapper item)]
+                   (~(symbol (str ".add" cc)) ~builder ~p)))))
+           ~(setter clazz field builder v true)))
+
+      :else
+      (setter clazz field builder v true))))
+
+
+(defn- emit-from-clj-map
+  "Emits a function which sets the fields of a new builder of `clazz` from the entries of a Clojure map.
+  Values of message-typed fields which are Clojure maps are written into the field's own builder
+  by the function emitted for its class, rather than being built separately."
+  [^Class clazz ctx]
+  (let [fields  (t/get-field-handles clazz ctx)
+        builder (u/with-type-hint (gensym 'builder) (r/get-builder-class clazz))
+        k       (gensym 'k)
+        v       (gensym 'v)
+        m       (gensym 'm)
+        kv-fn   (gensym 'kv-fn)]
+    `(let [~kv-fn (fn [~builder ~k ~v]
+                    ~(emit-fields-case
+                      fields k true
+                      (fn [field]
+                        (emit-from-clj-val clazz ctx field builder v)))
+                    ~builder)]
+       (defn ~(u/class->from-clj-map-fn-name clazz) [~builder ~m]
+         (reduce-kv ~kv-fn ~builder ~m)))))
+
+
+(defn- field-method [field prefix & [suffix]]
+  (symbol (str "." prefix (u/field->camel-case (:fd field)) suffix)))
+
+
+(defn- enum-values?
+  "Returns true iff the values of `fd` are enums read and written by their numbers (via the `...Value` methods),
+  which also preserves unrecognized values."
+  [^Descriptors$FieldDescriptor fd]
+  (let [value-fd (if (.isMapField fd)
+                   (.findFieldByName (.getMessageType fd) "value")
+                   fd)]
+    (and (u/enum? value-fd)
+         (not= Descriptors$FileDescriptor$Syntax/PROTO2 (.getSyntax (.getFile fd))))))
+
+
+;; like protobuf's `equals`, floating point values are compared by their bits
+(defn- emit-scalar-equals [^Descriptors$FieldDescriptor fd enum-values? x y]
+  (if enum-values?
+    `(== ~x ~y)
+    (condp = (.getJavaType fd)
+      Descriptors$FieldDescriptor$JavaType/INT     `(== ~x ~y)
+      Descriptors$FieldDescriptor$JavaType/LONG    `(== ~x ~y)
+      Descriptors$FieldDescriptor$JavaType/FLOAT   `(== (Float/floatToIntBits ~x) (Float/floatToIntBits ~y))
+      Descriptors$FieldDescriptor$JavaType/DOUBLE  `(== (Double/doubleToLongBits ~x) (Double/doubleToLongBits ~y))
+      Descriptors$FieldDescriptor$JavaType/BOOLEAN `(= ~x ~y)
+      `(.equals ~x ~y))))
+
+
+(defn- emit-diff-field [^Class clazz ctx field a b changes path cleared]
+  (let [^Descriptors$FieldDescriptor fd (:fd field)
+        value-sfx                       (when (enum-values? fd) "Value")
+        get                             (fn [o] `(~(field-method field "get" value-sfx) ~o))
+        set                             (fn [v] `(~(field-method field "set" value-sfx) ~changes ~v))
+        has                             (fn [o] `(~(field-method field "has") ~o))
+        clear!                          `(.add ~cleared (conj ~path ~(:kw field)))]
+    (cond
+      (.isMapField fd)
+      (let [ma      (u/with-type-hint (gensym 'ma) java.util.Map)
+            mb      (u/with-type-hint (gensym 'mb) java.util.Map)
+            changed (u/with-type-hint (gensym 'changed) java.util.Map)
+            e       (u/with-type-hint (gensym 'e) java.util.Map$Entry)
+            k       (gensym 'k)]
+        `(let [~ma (~(field-method field "get" (str value-sfx "Map")) ~a)
+               ~mb (~(field-method field "get" (str value-sfx "Map")) ~b)]
+           (when-not (.equals ~ma ~mb)
+             (let [~changed (java.util.HashMap.)]
+               (doseq [~e (.entrySet ~mb)]
+                 (when-not (.equals (.getValue ~e) (.get ~ma (.getKey ~e)))
+                   (.put ~changed (.getKey ~e) (.getValue ~e))))
+               (~(field-method field "putAll" value-sfx) ~changes ~changed))
+             (doseq [~k (.keySet ~ma)]
+               (when-not (.containsKey ~mb ~k)
+                 (.add ~cleared (conj ~path ~(:kw field) ~k)))))))
+
+      (.isRepeated fd)
+      (let [la (u/with-type-hint (gensym 'la) java.util.List)
+            lb (u/with-type-hint (gensym 'lb) java.util.List)]
+        `(let [~la (~(field-method field "get" (str value-sfx "List")) ~a)
+               ~lb (~(field-method field "get" (str value-sfx "List")) ~b)]
+           (when-not (.equals ~la ~lb)
+             (if (.isEmpty ~lb)
+               ~clear!
+               (~(field-method field "addAll" value-sfx) ~changes ~lb)))))
+
+      (u/struct? fd)
+      (let [sub-class (t/field-type clazz fd)
+            x         (gensym 'x)
+            y         (gensym 'y)
+            sub       (u/with-type-hint (gensym 'sub) (r/get-builder-class sub-class))
+            d         (u/with-type-hint (gensym 'd) sub-class)]
+        `(if ~(has b)
+           (let [~x ~(get a)
+                 ~y ~(get b)]
+             (if ~(has a)
+               (when-not (pronto.RT/sameMessage ~x ~y)
+                 ~(if (message-wrapper? sub-class ctx)
+                    ;; only the changed fields of a message set on both sides are kept, and the field is
+                    ;; left unset when there are none (e.g, equal but distinct messages)
+                    `(let [~sub (~(u/static-call sub-class "newBuilder"))]
+                       (~(u/class->diff-fn-name sub-class) ~x ~y ~sub (conj ~path ~(:kw field)) ~cleared)
+                       (let [~d (.build ~sub)]
+                         (when-not (.equals ~d (~(u/static-call sub-class "getDefaultInstance")))
+                           ~(set d))))
+                    (set y)))
+               ~(set y)))
+           (when ~(has a)
+             ~clear!)))
+
+      (has-presence? fd)
+      `(if ~(has b)
+         (when-not (and ~(has a) ~(emit-scalar-equals fd value-sfx (get a) (get b)))
+           ~(set (get b)))
+         (when ~(has a)
+           ~clear!))
+
+      :else
+      ;; a default value cannot be told apart from an unchanged field in `changes`, so it is cleared instead
+      `(when-not ~(emit-scalar-equals fd value-sfx (get a) (get b))
+         (if ~(emit-default-value? field b)
+           ~clear!
+           ~(set (get b)))))))
+
+
+(defn- emit-diff
+  "Emits a function which writes the fields that the message `b` sets differently than the message `a`, both of `clazz`,
+  into `changes`, a builder of `clazz`, and adds the paths of fields which `a` sets and `b` does not to `cleared`.
+  Nested messages set on both sides are compared recursively, unless they are identical or their hash codes differ."
+  [^Class clazz ctx]
+  (let [fields  (t/get-field-handles clazz ctx)
+        a       (u/with-type-hint (gensym 'a) clazz)
+        b       (u/with-type-hint (gensym 'b) clazz)
+        changes (u/with-type-hint (gensym 'changes) (r/get-builder-class clazz))
+        path    (gensym 'path)
+        cleared (u/with-type-hint (gensym 'cleared) java.util.List)]
+    `(defn ~(u/class->diff-fn-name clazz) [~a ~b ~changes ~path ~cleared]
+       ~@(for [field fields]
+           (emit-diff-field clazz ctx field a b changes path cleared))
+       nil)))
+
+
+(defn- emit-patch-field [^Class clazz ctx field builder changes]
+  (let [^Descriptors$FieldDescriptor fd (:fd field)
+        value-sfx                       (when (enum-values? fd) "Value")
+        get                             (fn [o] `(~(field-method field "get" value-sfx) ~o))
+        set                             (fn [v] `(~(field-method field "set" value-sfx) ~builder ~v))]
+    (cond
+      (.isMapField fd)
+      `(when (pos? (~(field-method field "get" "Count") ~changes))
+         (~(field-method field "putAll" value-sfx) ~builder (~(field-method field "get" (str value-sfx "Map")) ~changes)))
+
+      (.isRepeated fd)
+      `(when (pos? (~(field-method field "get" "Count") ~changes))
+         (~(field-method field "clear") ~builder)
+         (~(field-method field "addAll" value-sfx) ~builder (~(field-method field "get" (str value-sfx "List")) ~changes)))
+
+      (u/struct? fd)
+      (let [sub-class (t/field-type clazz fd)]
+        `(when (~(field-method field "has") ~changes)
+           ~(if (message-wrapper? sub-class ctx)
+              `(~(u/class->patch-fn-name sub-class)
+                (~(field-method field "get" "Builder") ~builder)
+                ~(get changes))
+              (set (get changes)))))
+
+      (has-presence? fd)
+      `(when (~(field-method field "has") ~changes)
+         ~(set (get changes)))
+
+      :else
+      `(when-not ~(emit-default-value? field changes)
+         ~(set (get changes))))))
+
+
+(defn- emit-patch
+  "Emits a function which applies the fields set by `changes`, a message of `clazz` made by the function emitted by `emit-diff`,
+  to `builder`. Nested messages are patched recursively, repeated fields are replaced and map entries are put."
+  [^Class clazz ctx]
+  (let [fields  (t/get-field-handles clazz ctx)
+        builder (u/with-type-hint (gensym 'builder) (r/get-builder-class clazz))
+        changes (u/with-type-hint (gensym 'changes) clazz)]
+    `(defn ~(u/class->patch-fn-name clazz) [~builder ~changes]
+       ~@(for [field fields]
+           (emit-patch-field clazz ctx field builder changes))
+       ~builder)))
+
+
+(defn- emit-map-key
+  "Hints `k`, a key of the map field `fd` of `clazz`, so it can be handed to the builder."
+  [^Class clazz fd k]
+  (let [{:keys [key-type]} (t/map-type-info clazz fd)]
+    (condp = key-type
+      Integer `(.intValue ~(u/with-type-hint k Number))
+      Long    `(.longValue ~(u/with-type-hint k Number))
+      Boolean `(.booleanValue ~(u/with-type-hint k Boolean))
+      (u/with-type-hint k key-type))))
+
+
+(defn- emit-clear-path
+  "Emits a function which clears the field at `path`, a path of keywords (and of a key last, for map entries),
+  from `builder`, a builder of `clazz`."
+  [^Class clazz ctx]
+  (let [fields  (t/get-field-handles clazz ctx)
+        builder (u/with-type-hint (gensym 'builder) (r/get-builder-class clazz))
+        path    (gensym 'path)
+        i       (gensym 'i)
+        k       (gensym 'k)
+        map-key (gensym 'map-key)]
+    `(defn ~(u/class->clear-path-fn-name clazz) [~builder ~path ~(with-meta i {:tag 'long})]
+       (let [~k (nth ~path ~i)]
+         (if (== (inc ~i) (count ~path))
+           ~(emit-clear fields builder k)
+           ~(emit-fields-case
+             fields k true
+             (fn [field]
+               (let [^Descriptors$FieldDescriptor fd (:fd field)
+                     invalid-path                    `(throw (IllegalArgumentException. (str "Invalid path " ~path)))]
+                 (cond
+                   (.isMapField fd)
+                   `(if (== (+ 2 ~i) (count ~path))
+                      (let [~map-key (nth ~path (inc ~i))]
+                        (~(field-method field "remove") ~builder ~(emit-map-key clazz fd map-key)))
+                      ~invalid-path)
+
+                   (and (u/struct? fd) (message-wrapper? (t/field-type clazz fd) ctx))
+                   `(when (~(field-method field "has") ~builder)
+                      (~(u/class->clear-path-fn-name (t/field-type clazz fd))
+                       (~(field-method field "get" "Builder") ~builder)
+                       ~path
+                       (inc ~i)))
+
+                   :else
+                   invalid-path)))))))))
+
+
+(defn- json-kind
+  "Returns how values of `value-class`, the type of `value-fd`, are written to and read from JSON by generated code,
+  or nil for values which are written and read as Clojure data, through the field's getter and setter
+  (e.g, values of encoded or well-known types)."
+  [ctx ^Descriptors$FieldDescriptor value-fd ^Class value-class]
+  (case (w/wrapper-type value-class ctx)
+    :message :message
+    :enum    :enum
+    :bytes   :bytes
+    :scalar  (condp = (.getJavaType value-fd)
+               Descriptors$FieldDescriptor$JavaType/INT     :int
+               Descriptors$FieldDescriptor$JavaType/LONG    :long
+               Descriptors$FieldDescriptor$JavaType/FLOAT   :float
+               Descriptors$FieldDescriptor$JavaType/DOUBLE  :double
+               Descriptors$FieldDescriptor$JavaType/BOOLEAN :boolean
+               Descriptors$FieldDescriptor$JavaType/STRING  :string)
+    nil))
+
+
+(defn- json-enum-names
+  "Returns `[number name]` of every value of `enum-class`, named as its keyword (see `:enum-value-fn`).
+  Aliases are left out, as their number is already named."
+  [ctx ^Class enum-class]
+  (let [enum-value-fn (or (:enum-value-fn ctx) identity)]
+    (->> (r/enum-values enum-class)
+         (map (fn [^Descriptors$EnumValueDescriptor d]
+                [(.getNumber d) (name (keyword (enum-value-fn (.getName d))))]))
+         (reduce (fn [m [number nm]] (if (contains? m number) m (assoc m number nm)))
+                 (sorted-map)))))
+
+
+(defn- emit-write-json-value
+  "Emits writing `x`, a value of `kind` (see `json-kind`), to the `JsonWriter` `w`.
+  Enum values are written by their number."
+  [ctx kind ^Class value-class w x]
+  (case kind
+    (:int :long) `(.writeLong ~w ~x)
+    :float       `(.writeFloat ~w ~x)
+    :double      `(.writeDouble ~w ~x)
+    :boolean     `(.writeBoolean ~w ~x)
+    :string      `(.writeString ~w ~x)
+    :bytes       `(.writeBytes ~w ~x)
+    :message     `(~(u/class->write-json-fn-name value-class) ~w ~x)
+    :enum        (let [n (gensym 'n)]
+                   `(let [~n ~x]
+                      (case ~n
+                        ~@(mapcat (fn [[number nm]]
+                                    [number `(.writeRawValue ~w ~(JsonWriter/quote nm))])
+                                  (json-enum-names ctx value-class))
+                        ;; like protobuf, unrecognized values are written by their number
+                        (.writeLong ~w ~n))))))
+
+
+(defn- emit-enum-number
+  "Emits the number of `x`, a value of an enum field which is not read by number (see `enum-values?`)."
+  [^Class enum-class x]
+  `(.getNumber ~(u/with-type-hint x enum-class)))
+
+
+(defn- emit-write-json-field [^Class clazz ctx field w o]
+  (let [^Descriptors$FieldDescriptor fd (:fd field)
+        value-sfx                       (when (enum-values? fd) "Value")
+        to-number                       (fn [value-class x]
+                                          (if value-sfx x (emit-enum-number value-class x)))
+        write-name                      `(.writeRawName ~w ~(JsonWriter/quoteName (name (:kw field))))
+        write-generic                   `(.writeValue ~w ~(getter clazz field o))]
+    (cond
+      (.isMapField fd)
+      (let [{:keys [val-type]} (t/map-type-info clazz fd)
+            kind               (json-kind ctx (.findFieldByName (.getMessageType fd) "value") val-type)
+            it                 (u/with-type-hint (gensym 'it) java.util.Iterator)
+            e                  (u/with-type-hint (gensym 'e) java.util.Map$Entry)
+            v                  (gensym 'v)
+            boxed              (fn [^Class c] (u/with-type-hint v c))]
+        (if-not kind
+          `(do ~write-name ~write-generic)
+          `(let [~it (.iterator (.entrySet ~(u/with-type-hint
+                                              `(~(field-method field "get" (str value-sfx "Map")) ~o)
+                                              java.util.Map)))]
+             ~write-name
+             (.beginObject ~w)
+             (loop []
+               (when (.hasNext ~it)
+                 (let [~e (.next ~it)
+                       ~v (.getValue ~e)]
+                   (.writeName ~w (.toString (.getKey ~e)))
+                   ~(emit-write-json-value
+                     ctx kind val-type w
+                     (case kind
+                       (:int :long) `(.longValue ~(boxed Number))
+                       :float       `(.floatValue ~(boxed Number))
+                       :double      `(.doubleValue ~(boxed Number))
+                       :boolean     `(.booleanValue ~(boxed Boolean))
+                       :enum        (if value-sfx `(.intValue ~(boxed Integer)) (emit-enum-number val-type v))
+                       (boxed val-type)))
+                   (recur))))
+             (.endObject ~w))))
+
+      (.isRepeated fd)
+      (let [value-class (t/repeated-type-info clazz fd)
+            kind        (json-kind ctx fd value-class)
+            i           (gensym 'i)
+            x           `(~(field-method field "get" value-sfx) ~o ~i)]
+        (if-not kind
+          `(do ~write-name ~write-generic)
+          `(do
+             ~write-name
+             (.beginArray ~w)
+             (dotimes [~i (~(field-method field "get" "Count") ~o)]
+               ~(emit-write-json-value ctx kind value-class w (if (= :enum kind) (to-number value-class x) x)))
+             (.endArray ~w))))
+
+      :else
+      (let [value-class (t/field-type clazz fd)
+            kind        (json-kind ctx fd value-class)
+            x           `(~(field-method field "get" value-sfx) ~o)]
+        (cond
+          (not kind)
+          `(do ~write-name ~write-generic)
+
+          ;; as in `proto-map->clj-map`, unset messages and optional fields are null, as are unset
+          ;; one-of fields, which would otherwise be set when read back
+          (or (u/message? fd) (u/optional? fd) (some? (.getContainingOneof fd)))
+          `(do
+             ~write-name
+             (if (~(field-method field "has") ~o)
+               ~(emit-write-json-value ctx kind value-class w (if (= :enum kind) (to-number value-class x) x))
+               (.writeNull ~w)))
+
+          :else
+          `(do
+             ~write-name
+             ~(emit-write-json-value ctx kind value-class w (if (= :enum kind) (to-number value-class x) x))))))))
+
+
+(defn- emit-write-json
+  "Emits a function which writes a message of `clazz` as a JSON object to a `JsonWriter`, with the same keys and values
+  as `proto-map->clj-map` returns, reading each field by its getter. Bytes are written as base64 strings."
+  [^Class clazz ctx]
+  (let [fields (t/get-field-handles clazz ctx)
+        w      (u/with-type-hint (gensym 'w) JsonWriter)
+        o      (u/with-type-hint (gensym 'o) clazz)]
+    `(defn ~(u/class->write-json-fn-name clazz) [~w ~o]
+       (.beginObject ~w)
+       ~@(for [field fields]
+           (if (:skip-default-values? ctx)
+             `(when-not ~(emit-default-value? field o)
+                ~(emit-write-json-field clazz ctx field w o))
+             (emit-write-json-field clazz ctx field w o)))
+       (.endObject ~w))))
+
+
+(defn- emit-read-json-value
+  "Emits reading a value of `kind` (see `json-kind`) from the `JsonReader` `r`, other than a message.
+  Enum values are read by their name or by their number, and evaluate to the number."
+  [^Class clazz ctx field kind ^Class value-class r]
+  (case kind
+    :int     `(.nextInt ~r)
+    :long    `(.nextLong ~r)
+    :float   `(.nextFloat ~r)
+    :double  `(.nextDouble ~r)
+    :boolean `(.nextBoolean ~r)
+    :string  `(.nextString ~r)
+    :bytes   `(.nextBytes ~r)
+    :enum    (let [s (gensym 's)]
+               `(int
+                 (if (.peekString ~r)
+                   (let [~s (.nextString ~r)]
+                     (case ~s
+                       ~@(mapcat (fn [[number nm]] [nm number])
+                                 (json-enum-names ctx value-class))
+                       (throw ~(u/make-type-error clazz (:kw field) value-class s))))
+                   (.nextInt ~r))))))
+
+
+(defn- emit-enum-value
+  "Emits the value of `enum-class` numbered `n`, for enum fields which are not set by number (see `enum-values?`)."
+  [^Class clazz field ^Class enum-class n]
+  (let [v (u/with-type-hint (gensym 'v) enum-class)]
+    `(let [~v (~(u/static-call enum-class "forNumber") ~n)]
+       (if (nil? ~v)
+         (throw ~(u/make-type-error clazz (:kw field) enum-class n))
+         ~v))))
+
+
+(defn- emit-map-key-parser [^Class key-type s]
+  (condp = key-type
+    Integer `(Integer/parseInt ~s)
+    Long    `(Long/parseLong ~s)
+    Boolean `(Boolean/parseBoolean ~s)
+    s))
+
+
+(defn- emit-read-json-field [^Class clazz ctx field r builder]
+  (let [^Descriptors$FieldDescriptor fd (:fd field)
+        value-sfx                       (when (enum-values? fd) "Value")
+        read-value                      (fn [kind value-class]
+                                          (let [x (emit-read-json-value clazz ctx field kind value-class r)]
+                                            (if (and (= :enum kind) (not value-sfx))
+                                              (emit-enum-value clazz field value-class x)
+                                              x)))
+        v                               (gensym 'v)
+        read-generic                    (fn [read]
+                                          `(let [~v ~read]
+                                             ~(setter clazz field builder v true)))]
+    (cond
+      (.isMapField fd)
+      (let [{:keys [key-type val-type]} (t/map-type-info clazz fd)
+            kind                        (json-kind ctx (.findFieldByName (.getMessageType fd) "value") val-type)
+            k                           (gensym 'k)
+            m                           (gensym 'm)]
+        `(do
+           (.beginObject ~r)
+           ~(if-not kind
+              ;; read into a map, whose values are handed to the setter as Clojure data
+              `(loop [~m (transient {})]
+                 (if (.hasNext ~r)
+                   (recur (assoc! ~m ~(emit-map-key-parser key-type `(.nextName ~r)) (.nextValue ~r)))
+                   ~(read-generic `(persistent! ~m))))
+              `(while (.hasNext ~r)
+                 (let [~k ~(emit-map-key-parser key-type `(.nextName ~r))]
+                   (~(field-method field "put" value-sfx)
+                    ~builder
+                    ~k
+                    ~(if (= :message kind)
+                       (let [b (u/with-type-hint (gensym 'b) (r/get-builder-class val-type))]
+                         `(let [~b (~(u/static-call val-type "newBuilder"))]
+                            (~(u/class->read-json-fn-name val-type) ~r ~b)
+                            (.build ~b)))
+                       (read-value kind val-type))))))
+           (.endObject ~r)))
+
+      (.isRepeated fd)
+      (let [value-class (t/repeated-type-info clazz fd)
+            kind        (json-kind ctx fd value-class)]
+        (if-not kind
+          (read-generic `(.nextValue ~r))
+          `(do
+             (.beginArray ~r)
+             (while (.hasNext ~r)
+               ~(if (= :message kind)
+                  `(~(u/class->read-json-fn-name value-class) ~r (~(field-method field "add" "Builder") ~builder))
+                  `(~(field-method field "add" value-sfx) ~builder ~(read-value kind value-class))))
+             (.endArray ~r))))
+
+      :else
+      (let [value-class (t/field-type clazz fd)
+            kind        (json-kind ctx fd value-class)]
+        (case kind
+          nil      (read-generic `(.nextValue ~r))
+          :message `(~(u/class->read-json-fn-name value-class) ~r (~(field-method field "get" "Builder") ~builder))
+          `(~(field-method field "set" value-sfx) ~builder ~(read-value kind value-class)))))))
+
+
+(defn- emit-read-json
+  "Emits a function which reads a JSON object, as written by the function emitted by `emit-write-json`,
+  into `builder`, a builder of `clazz`. Fields are set on the builder as they are read, and nested messages
+  are read straight into their field's builder, so no intermediate Clojure map is built.
+  Members whose value is null are skipped, and unknown members throw."
+  [^Class clazz ctx]
+  (let [fields  (t/get-field-handles clazz ctx)
+        r       (u/with-type-hint (gensym 'r) JsonReader)
+        builder (u/with-type-hint (gensym 'builder) (r/get-builder-class clazz))
+        k       (gensym 'k)]
+    `(defn ~(u/class->read-json-fn-name clazz) [~r ~builder]
+       (.beginObject ~r)
+       (while (.hasNext ~r)
+         (let [~k (.nextName ~r)]
+           (case ~k
+             ~@(mapcat (fn [field]
+                         [(name (:kw field))
+                          `(when-not (.nextNull ~r)
+                             ~(emit-read-json-field clazz ctx field r builder))])
+                       fields)
+             (throw (IllegalArgumentException. (str "No such field " ~k))))))
+       (.endObject ~r)
+       ~builder)))
+
+
+(defn- column-builder
+  "Returns the class of the column builder (see `pronto.Columns`) of `field`, along with the suffix of its getter,
+  or nil unless `field` is a singular numeric, boolean, string or enum field which is not optional."
+  [^Class clazz field]
+  (let [^Descriptors$FieldDescriptor fd (:fd field)]
+    (when-not (or (.isRepeated fd) (u/message? fd) (u/optional? fd))
+      (if (u/enum? fd)
+        [Columns$EnumsBuilder]
+        (condp = (t/field-type clazz fd)
+          Integer/TYPE [Columns$IntsBuilder]
+          Long/TYPE    [Columns$LongsBuilder]
+          Float/TYPE   [Columns$FloatsBuilder]
+          Double/TYPE  [Columns$DoublesBuilder]
+          Boolean/TYPE [Columns$BooleansBuilder]
+          String       [Columns$StringsBuilder "Bytes"]
+          nil)))))
+
+
+(defn- emit-to-columns
+  "Emits a function which fills a columnar batch (`pronto.Columns`) with the messages of the `Iterable` `messages`,
+  whose class is `clazz`, in a single pass: each message appends the value of every column to its builder.
+  Columns are emitted for the fields which `column-builder` supports, or for those of them in the set `fields`.
+  Enum values are encoded by their ordinal, into a dictionary of the keywords of the enum's values."
+  [^Class clazz ctx]
+  (let [columns       (for [field (t/get-field-handles clazz ctx)
+                            :let  [[builder-class getter-sfx] (column-builder clazz field)]
+                            :when builder-class]
+                        (assoc field
+                               :builder (u/with-type-hint (gensym 'column) builder-class)
+                               :builder-class builder-class
+                               :getter-sfx getter-sfx))
+        messages      (u/with-type-hint (gensym 'messages) Iterable)
+        fields        (gensym 'fields)
+        capacity      (gensym 'capacity)
+        it            (u/with-type-hint (gensym 'it) java.util.Iterator)
+        m             (u/with-type-hint (gensym 'm) clazz)
+        n             (gensym 'n)
+        ks            (u/with-type-hint (gensym 'ks) java.util.ArrayList)
+        cols          (u/with-type-hint (gensym 'cols) java.util.ArrayList)
+        k             (gensym 'k)
+        enum-value-fn (or (:enum-value-fn ctx) identity)]
+    `(defn ~(u/class->to-columns-fn-name clazz) [~messages ~fields ~capacity]
+       (doseq [~k ~fields]
+         (when-not (contains? #{~@(map :kw columns)} ~k)
+           (throw (IllegalArgumentException. (str "No column for " ~k " in " ~clazz)))))
+       (let [~capacity (int ~capacity)
+             ~@(mapcat
+                 (fn [{:keys [kw builder builder-class] :as field}]
+                   [builder
+                    `(when (or (nil? ~fields) (contains? ~fields ~kw))
+                       ~(if (= Columns$EnumsBuilder builder-class)
+                          `(new ~builder-class ~capacity
+                                (into-array clojure.lang.Keyword
+                                            ~(mapv #(keyword (enum-value-fn (.name ^Enum %)))
+                                                   (.getEnumConstants ^Class (t/field-type clazz (:fd field))))))
+                          `(new ~builder-class ~capacity)))])
+                 columns)
+             ~it (.iterator ~messages)
+             ~n  (loop [~n 0]
+                   (if (.hasNext ~it)
+                     (let [~m (.next ~it)]
+                       ~@(for [{:keys [builder builder-class getter-sfx] :as field} columns]
+                           `(when ~builder
+                              (.add ~builder
+                                    ~(if (= Columns$EnumsBuilder builder-class)
+                                       `(.ordinal (~(field-method field "get") ~m))
+                                       `(~(field-method field "get" getter-sfx) ~m)))))
+                       (recur (unchecked-inc ~n)))
+                     ~n))
+             ~ks   (java.util.ArrayList.)
+             ~cols (java.util.ArrayList.)]
+         ~@(for [{:keys [kw builder]} columns]
+             `(when ~builder
+                (.add ~ks ~kw)
+                (.add ~cols (.build ~builder))))
+         (Columns. (int ~n) ~ks ~cols)))))
+
+
+(defn- emit-metrics
+  "Emits the var holding the operation counters of `clazz`, when the mapper was defined with `:metrics? true`."
+  [^Class clazz ctx]
+  (when (:metrics? ctx)
+    [`(def ~(symbol (name (u/metrics-var-name ctx (u/class->map-class-name clazz))))
+        (pronto.ProtoMapMetrics.))]))
+
+(defn- emit-decode-cache
+  "Emits the var holding the decode cache of `clazz`, when the mapper caches it (see `:decode-cache`)."
+  [^Class clazz ctx]
+  (when-let [capacity (u/decode-cache-capacity ctx clazz)]
+    [`(def ~(symbol (name (u/decode-cache-var-name ctx (u/class->map-class-name clazz))))
+        (pronto.DecodeCache. ~capacity))]))
+
+(defn emit-decls [classes ctx]
   `(do
      ~@(mapcat
         (fn [clazz]
-          [(declare-class (u/class->map-class-name clazz) 2)
-           (declare-class (u/class->transient-class-name clazz) 2)
-           (declare-empty-map clazz)])
+          (concat
+           (emit-metrics clazz ctx)
+           (emit-decode-cache clazz ctx)
+           [(declare-class (u/class->map-class-name clazz) (u/proto-map-field-count ctx))
+            (declare-class (u/class->transient-class-name clazz) 4)
+            (declare-empty-map clazz)
+            (declare-converters clazz ctx)]))
         classes)))
 
 (defn emit-proto-map [^Class clazz ctx]
   (let [ctx (assoc ctx :pronto/fqn? false)]
     `(do
-       ~(emit-interfaces [(proto-builder-interface (:ns ctx) clazz)])
+       ~(emit-interfaces [(proto-builder-interface ctx clazz)])
        ~(emit-deftype clazz ctx)
        ~(emit-transient clazz ctx)
-       ~(emit-empty-map clazz)
+       ~(emit-to-clj-map clazz ctx)
+       ~(emit-from-clj-map clazz ctx)
+       ~@(when (:diff? ctx)
+           [(emit-diff clazz ctx)
+            (emit-patch clazz ctx)
+            (emit-clear-path clazz ctx)])
+       ~@(when (:json? ctx)
+           [(emit-write-json clazz ctx)
+            (emit-read-json clazz ctx)])
+       ~@(when (:columns? ctx)
+           [(emit-to-columns clazz ctx)])
+       ~(emit-empty-map clazz ctx)
+       ~@(when (:reusable-transients? ctx)
+           [(emit-reusable-transient clazz ctx)])
        ~(emit-builder clazz))))
 
 
@@ -629,56 +1891,186 @@
             (.getName ProtoMapper))}))
 
 
-(defn emit-mapper [name classes ctx ns]
-  (let [type-name    (symbol (str 'ProtoMapper '_ (s/replace *ns* \. \_) '_ name))
-        interfaces   (map (partial proto-builder-interface ns) classes)
-        sym          (symbol (str *ns*) (str name))
-        clazz        (gensym 'clazz)
-        this         (gensym 'this)
-        bytea        (gensym 'bytea)
-        ;; since we cannot rely on consistent hash codes for classes
-        ;; between compilation-time and runtime when using AOT, we explicitly opt in
-        ;; to dispatch via `cond`.
-        emit-methods (fn [f]
-                       (emit-case
-                         clazz
-                         (map (juxt identity f) classes)
-                         `(throw (new IllegalArgumentException (str "unknown " ~clazz)))
-                         true))]
-    `(do
-       (defrecord ~type-name []
-
-         ProtoMapper
-
-         (getNamespace [this#] ~ns)
-
-         (getContext [this#] ~ctx)
-
-         (getClasses [this#]
-           #{ ~@classes })
-
-         ~@(mapcat
-             (fn [{:keys [name impl]}]
-               (into [name] impl))
-             interfaces)
-
-         (~from-bytes-method [~this ~clazz ~bytea]
-          ~(emit-methods
-             (fn [dep-class]
-               `(. ~this
-                   ~(builder-interface-from-bytes-method-name dep-class)
-                   ~bytea))))
-
-         (~get-transient-method [~this ~clazz]
-          ~(emit-methods
-             (fn [dep-class]
-               `(. ~this
-                   ~(builder-interface-get-transient-method-name dep-class)))))
-
-         (~get-proto-method [~this ~clazz]
-          ~(emit-methods
-             (fn [dep-class]
-               `(. ~this
-                   ~(builder-interface-get-proto-method-name dep-class))))))
+(defn- emit-lazy-builder-impl [^Class clazz i delegates]
+  (let [delegate (with-meta (gensym 'delegate)
+                   {:tag (symbol (str (u/javaify global-ns) "." (builder-interface-name clazz)))})]
+    (for [[method args] (builder-interface-methods clazz)]
+      (let [this (gensym 'this)]
+        `(~method [~this ~@args]
+          (let [~delegate (.get ~delegates ~i ~this)]
+            (. ~delegate ~method ~@args)))))))
+
+
+(defn emit-lazy-delegate
+  "Emits a function of a lazy mapper, returning the delegate implementing the builder interface of `clazz`.
+  The proto-map classes of `clazz` must have been emitted beforehand."
+  [^Class clazz ctx]
+  (let [mapper              (gensym 'mapper)
+        {:keys [name impl]} (proto-builder-interface ctx clazz mapper)]
+    `(fn [~mapper]
+       (reify ~name ~@impl))))
+
+
+(defn metrics-snapshot
+  "Returns the operation counters of the proto-map classes of `classes` emitted for `ctx`.
+  Classes which were not generated yet (see `:lazy?`) are left out."
+  [ctx classes]
+  (into {}
+        (keep (fn [clazz]
+                (when-let [v (some-> ^clojure.lang.Namespace (find-ns (symbol (:ns ctx)))
+                                     (.findInternedVar
+                                      (symbol (name (u/metrics-var-name ctx (u/class->map-class-name clazz))))))]
+                  [clazz (.snapshot ^ProtoMapMetrics @v)])))
+        classes))
+
+
+(defn decode-cache-snapshot
+  "Returns the counters of the decode caches of the classes of `classes` cached by `ctx`.
+  Classes which were not generated yet (see `:lazy?`) are left out."
+  [ctx classes]
+  (into {}
+        (keep (fn [clazz]
+                (when-let [v (and (u/decode-cache-capacity ctx clazz)
+                                  (some-> ^clojure.lang.Namespace (find-ns (symbol (:ns ctx)))
+                                          (.findInternedVar
+                                           (symbol (name (u/decode-cache-var-name ctx (u/class->map-class-name clazz)))))))]
+                  [clazz (.stats ^DecodeCache @v)])))
+        classes))
+
+
+(defn emit-mapper
+  "Emits the mapper record for `classes`, and defines `name` as its instance.
+  When `delegates-form` is supplied, the record's builder interfaces are implemented by the
+  delegates it evaluates to (a `pronto.LazyDelegates`), rather than by the record itself."
+  ([name classes ctx ns]
+   (emit-mapper name classes ctx ns nil))
+  ([name classes ctx ns delegates-form]
+   (let [type-name    (symbol (str 'ProtoMapper '_ (s/replace *ns* \. \_) '_ name))
+         delegates    (with-meta 'delegates {:tag 'pronto.LazyDelegates})
+         interfaces   (if delegates-form
+                        (map-indexed
+                         (fn [i clazz]
+                           {:name (:name (proto-builder-interface ctx clazz))
+                            :impl (emit-lazy-builder-impl clazz i delegates)})
+                         classes)
+                        (map (partial proto-builder-interface ctx) classes))
+         sym          (symbol (str *ns*) (str name))
+         clazz        (gensym 'clazz)
+         this         (gensym 'this)
+         bytea        (gensym 'bytea)
+         cis          (gensym 'cis)
+         fields       (gensym 'fields)
+         projection   (gensym 'projection)
+         m            (gensym 'm)
+         json-reader  (gensym 'json-reader)
+         messages     (gensym 'messages)
+         capacity     (gensym 'capacity)
+         ;; since we cannot rely on consistent hash codes for classes
+         ;; between compilation-time and runtime when using AOT, we explicitly opt in
+         ;; to dispatch via `cond`.
+         emit-methods (fn [f]
+                        (emit-case
+                          clazz
+                          (map (juxt identity f) classes)
+                          `(throw (new IllegalArgumentException (str "unknown " ~clazz)))
+                          true))]
+     `(do
+        ~@(when delegates-form
+            ;; builder interfaces are needed to compile the mapper, and `proto->proto-map`
+            ;; must dispatch on classes whose proto-map classes were not generated yet
+            (cons (emit-interfaces (map (partial proto-builder-interface ctx) classes))
+                  (map emit-builder classes)))
+
+        (defrecord ~type-name [~@(when delegates-form [delegates])]
+
+          ProtoMapper
+
+          (getNamespace [this#] ~ns)
+
+          (getContext [this#] ~ctx)
+
+          (getClasses [this#]
+            #{ ~@classes })
+
+          (getMetrics [this#]
+            ~(when (:metrics? ctx)
+               `(metrics-snapshot ~ctx [~@classes])))
+
+          (getDecodeCacheStats [this#]
+            ~(when (seq (:decode-cache ctx))
+               `(decode-cache-snapshot ~ctx [~@classes])))
+
+          ~@(mapcat
+              (fn [{:keys [name impl]}]
+                (into [name] impl))
+              interfaces)
+
+          (~from-bytes-method [~this ~clazz ~bytea]
+           ~(emit-methods
+              (fn [dep-class]
+                `(. ~this
+                    ~(builder-interface-from-bytes-method-name dep-class)
+                    ~bytea))))
+
+          (~from-bytes-method [~this ~clazz ~bytea ~projection]
+           ~(emit-methods
+              (fn [dep-class]
+                `(. ~this
+                    ~(builder-interface-from-bytes-projected-method-name dep-class)
+                    ~bytea
+                    ~projection))))
+
+          (~get-projection-method [~this ~clazz ~fields]
+           ~(emit-methods
+              (fn [dep-class]
+                `(. ~this
+                    ~(builder-interface-get-projection-method-name dep-class)
+                    ~fields))))
+
+          (~from-coded-input-stream-method [~this ~clazz ~cis]
+           ~(emit-methods
+              (fn [dep-class]
+                `(. ~this
+                    ~(builder-interface-from-coded-input-stream-method-name dep-class)
+                    ~cis))))
+
+          (~from-clj-map-method [~this ~clazz ~m]
+           ~(emit-methods
+              (fn [dep-class]
+                `(. ~this
+                    ~(builder-interface-from-clj-map-method-name dep-class)
+                    ~m))))
+
+          (~from-json-method [~this ~clazz ~json-reader]
+           ~(emit-methods
+              (fn [dep-class]
+                `(. ~this
+                    ~(builder-interface-from-json-method-name dep-class)
+                    ~json-reader))))
+
+          (~to-columns-method [~this ~clazz ~messages ~fields ~capacity]
+           ~(emit-methods
+              (fn [dep-class]
+                `(. ~this
+                    ~(builder-interface-to-columns-method-name dep-class)
+                    ~messages ~fields ~capacity))))
+
+          (~get-transient-method [~this ~clazz]
+           ~(emit-methods
+              (fn [dep-class]
+                `(. ~this
+                    ~(builder-interface-get-transient-method-name dep-class)))))
+
+          (~get-reusable-transient-method [~this ~clazz]
+           ~(emit-methods
+              (fn [dep-class]
+                `(. ~this
+                    ~(builder-interface-get-reusable-transient-method-name dep-class)))))
+
+          (~get-proto-method [~this ~clazz]
+           ~(emit-methods
+              (fn [dep-class]
+                `(. ~this
+                    ~(builder-interface-get-proto-method-name dep-class))))))
        
-       (def ~name (new ~type-name)))))
+        (def ~name (new ~type-name ~@(when delegates-form [delegates-form])))))))
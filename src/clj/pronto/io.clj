@@ -0,0 +1,281 @@
+(ns pronto.io
+  (:require [pronto.utils :as u])
+  (:import [com.google.protobuf ByteString CodedInputStream CodedOutputStream
+            GeneratedMessageV3 UnsafeByteOperations]
+           [java.io InputStream InputStreamReader OutputStream OutputStreamWriter Reader Writer]
+           [java.nio.charset StandardCharsets]
+           [pronto ProtoMap Projection ProtoMapMetrics$Metered SerializationBuffer
+            DeferredProtoMap JsonReader JsonWritable JsonWriter]
+           [java.nio ByteBuffer MappedByteBuffer BufferOverflowException]
+           [java.nio.channels FileChannel FileChannel$MapMode]))
+
+
+(defprotocol CodedSource
+  (coded-input [source]
+    "Returns a new `CodedInputStream` positioned at the start of `source`."))
+
+
+(defn- immutable-coded-input
+  "Returns a `CodedInputStream` over `bytes` which is flagged as reading an immutable buffer.
+  Bytes fields are still copied, unless aliasing is enabled on it (see `:zero-copy?`),
+  as protobuf only aliases buffers flagged as immutable."
+  ^CodedInputStream [^ByteString bytes]
+  (.newCodedInput bytes))
+
+
+(extend-protocol CodedSource
+  InputStream
+  (coded-input [in]
+    (CodedInputStream/newInstance in))
+
+  ByteBuffer
+  (coded-input [buf]
+    ;; duplicate so the source can be reduced more than once.
+    ;; mapped regions are no exception, and are only aliased by `:zero-copy?` mappers: a read-only
+    ;; mapping only prevents writes through itself, while the file may still be written or truncated.
+    (immutable-coded-input (UnsafeByteOperations/unsafeWrap (.duplicate buf)))))
+
+
+(extend (Class/forName "[B")
+  CodedSource
+  {:coded-input (fn [^bytes bytea] (immutable-coded-input (UnsafeByteOperations/unsafeWrap bytea)))})
+
+
+(defn map-region
+  "Maps a read-only region of `channel` into memory.
+  Bytes fields parsed from it are copied, unless parsed by a mapper defined with `:zero-copy? true`."
+  ^MappedByteBuffer [^FileChannel channel position size]
+  (.map channel FileChannel$MapMode/READ_ONLY (long position) (long size)))
+
+
+(defn delimited-reducible
+  "Returns a reducible over the length-delimited messages in `source`, each parsed by `parse`,
+  a function of a `CodedInputStream` limited to a single message.
+  A single `CodedInputStream` is opened per reduction."
+  [source parse]
+  (reify clojure.lang.IReduceInit
+    (reduce [_ f init]
+      (let [^CodedInputStream in (coded-input source)]
+        (loop [acc init]
+          (if (.isAtEnd in)
+            acc
+            (let [size      (.readRawVarint32 in)
+                  old-limit (.pushLimit in size)
+                  proto-map (parse in)]
+              (.popLimit in old-limit)
+              ;; the size limit is cumulative, so reset it per message
+              ;; in order to support arbitrarily large sources.
+              (.resetSizeCounter in)
+              (let [acc (f acc proto-map)]
+                (if (reduced? acc)
+                  @acc
+                  (recur acc))))))))))
+
+
+(defprotocol CodedSink
+  (coded-output [sink]
+    "Returns a new `CodedOutputStream` writing to `sink`."))
+
+
+(extend-protocol CodedSink
+  OutputStream
+  (coded-output [out]
+    (CodedOutputStream/newInstance out))
+
+  ByteBuffer
+  (coded-output [buf]
+    (CodedOutputStream/newInstance buf)))
+
+
+(defn proto-map->message
+  "Returns the message of `proto-map`. The message of a transient proto-map is built from its builder,
+  which is left as is."
+  ^GeneratedMessageV3 [^ProtoMap proto-map]
+  (if (.isMutable proto-map)
+    (.buildPartial (.pmap_getBuilder proto-map))
+    (.pmap_getProto proto-map)))
+
+
+(defn count-serialized
+  "Counts the serialization of `size` bytes of `proto-map`, if its mapper keeps metrics."
+  [proto-map size]
+  (when (instance? ProtoMapMetrics$Metered proto-map)
+    (.onSerialize (.pmap_getMetrics ^ProtoMapMetrics$Metered proto-map) size)))
+
+
+(defprotocol MessageSink
+  (write-message [sink message delimited?]
+    "Writes `message` to `sink`, preceded by its size when `delimited?`.
+    Returns the number of bytes written."))
+
+
+(extend-protocol MessageSink
+  SerializationBuffer
+  (write-message [buf message delimited?]
+    (.write buf message (boolean delimited?)))
+
+  OutputStream
+  (write-message [out ^GeneratedMessageV3 message delimited?]
+    (let [size (.getSerializedSize message)]
+      (if delimited?
+        (do (.writeDelimitedTo message out)
+            (+ size (CodedOutputStream/computeUInt32SizeNoTag size)))
+        (do (.writeTo message out)
+            size))))
+
+  ByteBuffer
+  (write-message [buf ^GeneratedMessageV3 message delimited?]
+    (let [size (.getSerializedSize message)
+          n    (if delimited? (+ size (CodedOutputStream/computeUInt32SizeNoTag size)) size)]
+      (when (< (.remaining buf) n)
+        (throw (BufferOverflowException.)))
+      ;; writes at the buffer's position, which is advanced on flush
+      (let [out (CodedOutputStream/newInstance buf)]
+        (when delimited?
+          (.writeUInt32NoTag out size))
+        (.writeTo message out)
+        (.flush out))
+      n)))
+
+
+(defn write-proto-map
+  "Writes `proto-map` to `sink`, preceded by its size when `delimited?`.
+  Returns the number of bytes written."
+  [sink proto-map delimited?]
+  (let [message (proto-map->message proto-map)
+        n       (write-message sink message delimited?)]
+    (count-serialized proto-map (.getSerializedSize message))
+    n))
+
+
+(defn write-delimited
+  "Writes `proto-maps` to `sink` as length-delimited messages through a single
+  `CodedOutputStream`. Returns the number of messages written."
+  [sink proto-maps]
+  (let [^CodedOutputStream out (coded-output sink)
+        n                      (reduce
+                                (fn [n proto-map]
+                                  (let [proto (proto-map->message proto-map)
+                                        size  (.getSerializedSize proto)]
+                                    (.writeUInt32NoTag out size)
+                                    (.writeTo proto out)
+                                    (count-serialized proto-map size)
+                                    (inc n)))
+                                0
+                                proto-maps)]
+    (.flush out)
+    n))
+
+
+(defprotocol JsonSink
+  (json-writer [sink]
+    "Returns a `JsonWriter` writing to `sink`."))
+
+
+(extend-protocol JsonSink
+  JsonWriter
+  (json-writer [w] w)
+
+  Writer
+  (json-writer [w]
+    (JsonWriter. w))
+
+  OutputStream
+  (json-writer [out]
+    (JsonWriter. (OutputStreamWriter. out StandardCharsets/UTF_8))))
+
+
+(defprotocol JsonSource
+  (json-reader [source]
+    "Returns a `JsonReader` reading from `source`."))
+
+
+(extend-protocol JsonSource
+  JsonReader
+  (json-reader [r] r)
+
+  String
+  (json-reader [s]
+    (JsonReader. s))
+
+  Reader
+  (json-reader [r]
+    (JsonReader. r))
+
+  InputStream
+  (json-reader [in]
+    (JsonReader. (InputStreamReader. in StandardCharsets/UTF_8))))
+
+
+(defn- json-writable
+  ^JsonWritable [proto-map]
+  (let [m (if (instance? DeferredProtoMap proto-map)
+            (.materialize ^DeferredProtoMap proto-map)
+            proto-map)]
+    (if (instance? JsonWritable m)
+      m
+      (throw (IllegalArgumentException.
+              (str "Not a persistent proto-map of a mapper defined with `:json? true`: " (class proto-map)))))))
+
+
+(defn write-json
+  "Writes `proto-map` as JSON to `sink`. The text is flushed to `sink`, unless it is a `JsonWriter`
+  which is left for the caller to flush."
+  [sink proto-map]
+  (let [m (json-writable proto-map)
+        ^JsonWriter w (json-writer sink)]
+    (.pmap_writeJson m w)
+    (when-not (identical? w sink)
+      (.flush w))))
+
+
+(defn proto-map->json
+  ^String [proto-map]
+  (let [w (JsonWriter.)]
+    (.pmap_writeJson (json-writable proto-map) w)
+    (.toString w)))
+
+
+(defn read-json
+  "Reads a proto-map from `source` via `read`, a function of a `JsonReader`. Only whitespace may follow
+  the JSON object, unless `source` is a `JsonReader`, which may hold more values."
+  [source read]
+  (let [^JsonReader r (json-reader source)
+        m (read r)]
+    (when-not (or (identical? r source) (.isAtEnd r))
+      (throw (IllegalArgumentException. "Unexpected content after the JSON object")))
+    m))
+
+
+(defn- group-projection-paths
+  "Groups a projection spec by its top-level keys. Maps each key to either `::all`,
+  when the whole field is to be decoded, or to the spec of its sub-fields."
+  [fields]
+  (reduce
+   (fn [acc field]
+     (let [[k & path] (if (vector? field) field [field])]
+       (cond
+         (nil? k)                  acc
+         (or (empty? path)
+             (= ::all (get acc k))) (assoc acc k ::all)
+         :else                     (update acc k (fnil conj [])
+                                           (if (next path) (vec path) (first path))))))
+   (array-map)
+   fields))
+
+
+(defn compile-projection
+  "Compiles `fields`, a seq of field keys or key paths (e.g, `[:id [:address :city]]`)
+  into a `Projection`.
+  `field-number` maps a key to its field number, `nested-projection` compiles
+  the sub-fields of a message-typed key, and `builders` returns the builders of those keys' fields."
+  ^Projection [fields field-number nested-projection builders]
+  (let [grouped (group-projection-paths fields)]
+    (Projection.
+     (int-array (map field-number (keys grouped)))
+     (into-array Projection
+                 (map (fn [[k sub-fields]]
+                        (when-not (= ::all sub-fields)
+                          (nested-projection k sub-fields)))
+                      grouped))
+     builders)))
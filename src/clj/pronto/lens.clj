@@ -2,9 +2,11 @@
   (:require [pronto.utils :as u]
             [pronto.type-gen :as t]
             [pronto.emitters :as e]
+            [pronto.wrapper :as w]
+            [pronto.reflection :as r]
             [clojure.walk :as walk])
   (:import [pronto ProtoMap ProtoMapper]
-           [com.google.protobuf GeneratedMessageV3$Builder]))
+           [com.google.protobuf Descriptors$FieldDescriptor GeneratedMessageV3$Builder]))
 
 
 (def ^:private ^:dynamic *hints*)
@@ -80,23 +82,136 @@
               (t/get-field-handles clazz ctx)))))
 
 
+(defn- element-field?
+  "Returns true iff `clazz` stands for the elements of a repeated or map field (see `element-hint`),
+  rather than for a message class."
+  [clazz]
+  (map? clazz))
+
+
+(defn box
+  "Returns `x` as an object, so that literals and primitive values can be bound to locals which wrappers type hint."
+  ^Object [x]
+  x)
+
+
+(defn- element-value
+  "Hints `x`, bound to a protobuf value of type `clazz`, so it can be handed to the builder."
+  [^Class clazz x]
+  (cond
+    (#{Integer Long Double Float} clazz) x
+    (= Boolean clazz)                    `(.booleanValue ~(u/with-type-hint x Boolean))
+    :else                                (u/with-type-hint x clazz)))
+
+
+(defn- element-hint
+  "When `k` is a repeated or map field of `type-hint`, returns a hint for its elements, through which
+  index (or key) path segments are read and written straight on the builder of the message, one element at a time."
+  [type-hint k ctx]
+  (when type-hint
+    (when-let [{:keys [^Descriptors$FieldDescriptor fd]} (find-field type-hint k ctx)]
+      (when (.isRepeated fd)
+        (let [wrapper-ctx (assoc ctx :class type-hint :fd fd :instrument? true)
+              cc          (u/field->camel-case fd)]
+          (if (.isMapField fd)
+            (let [{:keys [key-type val-type]} (t/map-type-info type-hint fd)]
+              {:kind        :map
+               :field       cc
+               :builder     (r/get-builder-class type-hint)
+               :key-type    key-type
+               :key-wrapper (w/gen-wrapper key-type wrapper-ctx)
+               :val-type    val-type
+               :val-wrapper (w/gen-wrapper val-type wrapper-ctx)})
+            (let [val-type (t/repeated-type-info type-hint fd)]
+              {:kind        :repeated
+               :field       cc
+               :builder     (r/get-builder-class type-hint)
+               :val-type    val-type
+               :val-wrapper (w/gen-wrapper val-type wrapper-ctx)})))))))
+
+
+(defn- element-method [{:keys [field]} prefix & [suffix]]
+  (symbol (str "." prefix field suffix)))
+
+
+(defn- do-get-element [{:keys [kind key-type key-wrapper val-wrapper] :as hint} k builder default-val]
+  (let [builder (u/with-type-hint builder (:builder hint))
+        k2      (gensym 'k)
+        i       (gensym 'i)
+        x       (gensym 'x)]
+    (case kind
+      :repeated
+      `(let [~i (int ~k)]
+         (if (and (>= ~i 0) (< ~i (~(element-method hint "get" "Count") ~builder)))
+           (let [~x (~(element-method hint "get") ~builder ~i)]
+             ~(w/wrap val-wrapper x))
+           ~default-val))
+      :map
+      `(let [~k2 (box ~k)
+             ~i  ~(w/unwrap key-wrapper k2)]
+         (if (~(element-method hint "contains") ~builder ~(element-value key-type i))
+           (let [~x (~(element-method hint "get" "OrThrow") ~builder ~(element-value key-type i))]
+             ~(w/wrap val-wrapper x))
+           ~default-val)))))
+
+
+(defn- put-element
+  "Emits setting the element `k` of the field described by `hint` to `x`, already in its protobuf representation."
+  [{:keys [kind key-type key-wrapper val-type] :as hint} k builder x]
+  (let [builder (u/with-type-hint builder (:builder hint))
+        k2      (gensym 'k)
+        i       (gensym 'i)
+        x2      (gensym 'x)]
+    (case kind
+      :repeated
+      ;; like vectors, allow associng right past the last element
+      `(let [~i  (int ~k)
+             ~x2 ~x]
+         (if (= ~i (~(element-method hint "get" "Count") ~builder))
+           (~(element-method hint "add") ~builder ~(element-value val-type x2))
+           (~(element-method hint "set") ~builder ~i ~(element-value val-type x2))))
+      :map
+      `(let [~k2 (box ~k)
+             ~i  ~(w/unwrap key-wrapper k2)
+             ~x2 ~x]
+         (~(element-method hint "put") ~builder ~(element-value key-type i) ~(element-value val-type x2))))))
+
+
+(defn- do-assoc-element [{:keys [val-wrapper] :as hint} k builder v]
+  (let [v2 (gensym 'v)]
+    `(let [~v2 (box ~v)]
+       ~(put-element hint k builder (w/unwrap val-wrapper v2)))))
+
+
 (defn- do-get
   ([ctx clazz k msym] (do-get ctx clazz k msym nil))
   ([ctx clazz k msym default-val]
-   (if (and clazz (keyword? k))
+   (cond
+     (element-field? clazz)
+     (do-get-element clazz k msym default-val)
+
+     (and clazz (keyword? k))
      (if-let [field (find-field clazz k ctx)]
        `(if ~msym
           (or ~(e/getter clazz field msym) ~default-val)
           ~default-val)
        (throw (ex-info "unknown field for class" {:class clazz :field k})))
+
+     :else
      `(get ~msym ~k ~default-val))))
 
 
 (defn- do-assoc [ctx clazz m builder k v]
-  (if (and clazz (keyword? k))
+  (cond
+    (element-field? clazz)
+    (do-assoc-element clazz k builder v)
+
+    (and clazz (keyword? k))
     (if-let [field (find-field clazz k ctx)]
       (e/setter clazz field builder v false)
       (throw (ex-info "unknown field for class" {:class clazz :field k})))
+
+    :else
     `(assoc! ~m ~k ~v)))
 
 
@@ -106,6 +221,44 @@
       (when (u/struct? fd)
         (t/field-type type-hint fd)))))
 
+
+(defn- message-element-type
+  "Returns the message class of the elements described by `hint`, unless they are converted by a custom encoder."
+  [{:keys [val-type]} ctx]
+  (when (= :message (w/wrapper-type val-type ctx))
+    val-type))
+
+
+(declare transform-in)
+
+
+(defn- transform-elements
+  "Emits the transformations of the elements of a repeated or map field (see `element-hint`) of the message
+  whose builder is `builder`. Each element is read, transformed and set back on its own, rather than rebuilding
+  the whole field."
+  [hint builder ctx kvs]
+  (let [elem-class (message-element-type hint ctx)]
+    (for [[k vs] (u/kv-forest kvs)
+          v      (partition-by u/leaf? vs)
+          :let   [i (gensym 'i)]]
+      `(let [~i ~k]
+         ~(if (u/leaf? (first v))
+            `(do
+               ~@(for [leaf v]
+                   ((u/leaf-val leaf) ctx hint nil builder i)))
+            (let [submap     (gensym 'submap)
+                  new-submap (gensym 'newsubmap)]
+              `(let [~submap     ~(do-get ctx hint i builder
+                                          ;; a missing map entry starts out empty, as a missing message field does
+                                          (when elem-class
+                                            (w/wrap (:val-wrapper hint)
+                                                    `(~(u/static-call elem-class "getDefaultInstance")))))
+                     ~new-submap ~(transform-in submap elem-class ctx (u/flatten-forest v))]
+                 ~(if elem-class
+                    (put-element hint i builder `(u/proto-map->proto ~new-submap))
+                    (do-assoc ctx hint nil builder i new-submap)))))))))
+
+
 (defn- transform-in [m type-hint ctx kvs]
   (let [m             (u/with-type-hint m ProtoMap)
         m2            (u/with-type-hint (gensym 'm2) ProtoMap)
@@ -133,15 +286,17 @@
                     (for [leaf v]
                       (let [val-fn  (u/leaf-val leaf)]
                         (val-fn ctx (when use-type-hint? type-hint) m2 builder k)))))
-              (let [new-type-hint (field-type-hint type-hint k ctx)]
-                `(let [~submap     (or ~(do-get ctx
-                                                (when use-type-hint? type-hint)
-                                                k
-                                                (if use-type-hint? builder m2))
-                                       (when ~pmap?
-                                         (.empty ~m2 ~k)))
-                       ~new-submap ~(transform-in submap new-type-hint ctx (u/flatten-forest v))]
-                   ~(do-assoc ctx (when use-type-hint? type-hint) m2 builder k new-submap))))))
+              (if-let [hint (when use-type-hint? (element-hint type-hint k ctx))]
+                `(do ~@(transform-elements hint builder ctx (u/flatten-forest v)))
+                (let [new-type-hint (field-type-hint type-hint k ctx)]
+                  `(let [~submap     (or ~(do-get ctx
+                                                  (when use-type-hint? type-hint)
+                                                  k
+                                                  (if use-type-hint? builder m2))
+                                         (when ~pmap?
+                                           (.empty ~m2 ~k)))
+                         ~new-submap ~(transform-in submap new-type-hint ctx (u/flatten-forest v))]
+                     ~(do-assoc ctx (when use-type-hint? type-hint) m2 builder k new-submap)))))))
        ~(if use-type-hint?
           `(.fromBuilder ~m2 ~(u/with-type-hint builder GeneratedMessageV3$Builder))
           `(persistent! ~m2)))))
@@ -314,6 +469,10 @@
                  (assoc (.getContext ^ProtoMapper @mapper)
                         :pronto/fqn? true
                         :instrument? false))]
+    (when (and type-hint (:lazy? ctx))
+      ;; hinted code refers to the mapper's proto-map classes directly,
+      ;; so a lazy mapper must generate them before it is compiled
+      (.getProto ^ProtoMapper @mapper type-hint))
     (loop [forms (partition-by
                   (fn [form]
                     (if (transformation? form)
@@ -347,8 +506,14 @@
   [x & forms]
   (let [{:keys [sym hint]}         (find-hint x)
         {:keys [type-hint mapper]} hint
-        g                          (gensym)]
-    `(clojure.core/as-> ~(or sym x) ~g
+        g                          (gensym)
+        x                          (or sym x)]
+    `(clojure.core/as-> ~(if (and type-hint
+                                  (:max-deferred-writes (.getContext ^ProtoMapper @(u/safe-resolve mapper))))
+                           ;; hinted code reads fields off the message class, which deferred proto-maps do not implement
+                           `(pronto.DeferredProtoMap/materialize ~x)
+                           x)
+       ~g
        ~@(:code (rewrite-forms g type-hint mapper forms)))))
 
 
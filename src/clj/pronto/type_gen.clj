@@ -1,7 +1,8 @@
 (ns pronto.type-gen
   (:require
    [pronto.wrapper :as w]
-   [pronto.utils :as u])
+   [pronto.utils :as u]
+   [pronto.reflection :as r])
   (:import
    [clojure.lang Reflector]
    [com.google.protobuf
@@ -12,8 +13,10 @@
     Descriptors$FieldDescriptor$JavaType]
    [java.lang.reflect Type Method ParameterizedType]
    [pronto TransformIterable TransformIterable$Xf
-    Utils Utils$PairXf
-    ProntoVector ProntoVector$Transformer]))
+    Utils
+    ProntoVector ProntoVector$Transformer ProntoVector$Writer
+    ProtoMap
+    ProntoMap ProntoMap$Transformer ProntoMap$Writer]))
 
 
 (defprotocol TypeGen
@@ -141,39 +144,54 @@
         key-wrapper                 (w/gen-wrapper key-type instrumented-ctx)
         val-wrapper                 (w/gen-wrapper val-type instrumented-ctx)
         clear-method                (symbol (str ".clear" cc))
-        put-all-method              (symbol (str ".putAll" cc))
+        put-method                  (symbol (str ".put" cc))
+        remove-method               (symbol (str ".remove" cc))
         m                           (u/with-type-hint (gensym 'm) java.util.Map)
+        pm                          (u/with-type-hint (gensym 'pm) ProntoMap)
         key-item-sym                (gensym 'key-item)
-        val-item-sym                (gensym 'val-item)]
+        val-item-sym                (gensym 'val-item)
+        transformer                 `(reify ProntoMap$Transformer
+                                       (keyToProto [~'_ ~key-item-sym]
+                                         ~(w/unwrap key-wrapper key-item-sym))
+                                       (keyFromProto [~'_ ~key-item-sym]
+                                         ~(w/wrap key-wrapper key-item-sym))
+                                       (valToProto [~'_ ~val-item-sym]
+                                         ~(w/unwrap val-wrapper val-item-sym))
+                                       (valFromProto [~'_ ~val-item-sym]
+                                         ~(w/wrap val-wrapper val-item-sym)))]
     (reify TypeGen
 
       (get-class [_] val-type)
 
       (gen-setter [_ builder v]
-        `(if (nil? ~v)
-           (throw ~(u/make-type-error clazz (.getName fd) java.util.Map v))
-           (let [~m       ~v
-                 ~builder (~clear-method ~builder)]
-             (~put-all-method
-              ~builder
-              (Utils/transformMap
-               ~v
-               (reify Utils$PairXf
-                 (transformKey [~'_ ~key-item-sym]
-                   ~(w/unwrap key-wrapper key-item-sym))
-                 (transformVal [~'_ ~val-item-sym]
-                   ~(w/unwrap val-wrapper val-item-sym))))))))
+        (let [writer (gensym 'writer)]
+          `(if (nil? ~v)
+             (throw ~(u/make-type-error clazz (.getName fd) java.util.Map v))
+             (let [~m      ~v
+                   ~writer (reify ProntoMap$Writer
+                             (put [~'_ ~key-item-sym ~val-item-sym]
+                               (~put-method ~builder ~key-item-sym ~val-item-sym))
+                             (remove [~'_ ~key-item-sym]
+                               (~remove-method ~builder ~key-item-sym)))]
+               (if (instance? ProntoMap ~m)
+                 (let [~pm ~m]
+                   ;; a view over this very builder only needs its pending changes
+                   (if (.isBackedBy ~pm ~builder)
+                     (.writeOverlay ~pm ~writer)
+                     (do
+                       (~clear-method ~builder)
+                       (.writeTo ~pm ~writer))))
+                 (do
+                   (~clear-method ~builder)
+                   (Utils/transformMap ~m ~transformer ~writer)))))))
 
       (gen-getter [_ o]
-        `(let [~m (~(symbol (str ".get" cc "Map")) ~o)]
-           (clojure.lang.PersistentArrayMap.
-            (Utils/mapToArray
-             ~m
-             (reify Utils$PairXf
-               (transformKey [~'_ ~key-item-sym]
-                 ~(w/wrap key-wrapper key-item-sym))
-               (transformVal [~'_ ~val-item-sym]
-                 ~(w/wrap val-wrapper val-item-sym))))))))))
+        `(new ProntoMap
+              (~(symbol (str ".get" cc "Map")) ~o)
+              ~transformer
+              ~o
+              ~(.getIndex fd)
+              nil)))))
 
 #_(defmethod get-type-gen
     :one-of
@@ -195,6 +213,26 @@
 (def repeated-type-info (partial get-parameterized-type 0))
 
 
+(def ^:private primitive-vectors
+  {Integer {:vector-class 'pronto.PrimitiveProntoVector$Ints     :get-method '.getInt}
+   Long    {:vector-class 'pronto.PrimitiveProntoVector$Longs    :get-method '.getLong}
+   Double  {:vector-class 'pronto.PrimitiveProntoVector$Doubles  :get-method '.getDouble}
+   Float   {:vector-class 'pronto.PrimitiveProntoVector$Floats   :get-method '.getFloat}
+   Boolean {:vector-class 'pronto.PrimitiveProntoVector$Booleans :get-method '.getBoolean}})
+
+
+(defn- hint-item
+  "Hints a repeated field item (in its protobuf representation) so it can be handed to the builder."
+  [inner-type item]
+  (case (.getName ^Class inner-type)
+    "java.lang.Integer" `(.intValue ~(u/with-type-hint item Integer))
+    "java.lang.Long"    `(.longValue ~(u/with-type-hint item Long))
+    "java.lang.Double"  `(.doubleValue ~(u/with-type-hint item Double))
+    "java.lang.Float"   `(.floatValue ~(u/with-type-hint item Float))
+    "java.lang.Boolean" `(.booleanValue ~(u/with-type-hint item Boolean))
+    (u/with-type-hint item inner-type)))
+
+
 (defmethod get-type-gen
   :repeated
   [^Class clazz ^Descriptors$FieldDescriptor fd ctx]
@@ -204,6 +242,8 @@
         wrapper          (w/gen-wrapper inner-type instrumented-ctx)
         clear-method     (symbol (str ".clear" cc))
         add-all-method   (symbol (str ".addAll" cc))
+        add-method       (symbol (str ".add" cc))
+        set-method       (symbol (str ".set" cc))
         get-list         (symbol (str ".get" cc "List"))
         item-sym         (gensym 'item-sym)]
     (reify TypeGen
@@ -211,32 +251,83 @@
       (get-class [_] inner-type)
 
       (gen-setter [_ builder v]
-        `(if (nil? ~v)
-           (throw ~(u/make-type-error clazz (.getName fd) Iterable v))
-           (~add-all-method
-            (~clear-method ~builder)
-            (if (instance? ProntoVector ~v)
-              ~v
-              (TransformIterable.
-               ~v
-               (reify TransformIterable$Xf
-                 (transform [~'_ ~item-sym]
-                   ~(w/unwrap wrapper item-sym))))))))
+        (let [backed  (u/with-type-hint (gensym 'backed) ProntoVector)
+              add-all `(~add-all-method
+                        (~clear-method ~builder)
+                        (if (instance? ProntoVector ~v)
+                          ~v
+                          (TransformIterable.
+                           ~v
+                           (reify TransformIterable$Xf
+                             (transform [~'_ ~item-sym]
+                               ~(w/unwrap wrapper item-sym))))))]
+          `(cond
+             (nil? ~v)
+             (throw ~(u/make-type-error clazz (.getName fd) Iterable v))
+
+             ;; a vector over this very builder only needs its pending changes
+             (and (instance? ProntoVector ~v)
+                  (let [~backed ~v] (.isBackedBy ~backed ~builder)))
+             (let [~backed ~v] (.writeOverlay ~backed))
+
+             :else
+             ~(if-let [{:keys [vector-class get-method]} (primitive-vectors inner-type)]
+                (let [pv (with-meta (gensym 'pv) {:tag vector-class})
+                      i  (gensym 'i)]
+                  `(if (instance? ~vector-class ~v)
+                     ;; copy item by item in order to avoid boxing
+                     (let [~pv ~v
+                           n#  (.count ~pv)]
+                       (~clear-method ~builder)
+                       (loop [~i 0]
+                         (when (< ~i n#)
+                           (~add-method ~builder (~get-method ~pv (unchecked-int ~i)))
+                           (recur (unchecked-inc ~i)))))
+                     ~add-all))
+                add-all))))
 
       (gen-getter [_ o]
-        `(let [v#            (~get-list ~o)
-               list-factory# ~(if (= String inner-type)
-                                'pronto.ProntoVector/LAZY_STRING_LIST_FACTORY
-                                'pronto.ProntoVector/DEFAULT_LIST_FACTORY)]
-           (new ProntoVector
-                v#
-                list-factory#
-                (reify ProntoVector$Transformer
-                  (toProto [~'_ ~item-sym]
-                    ~(w/unwrap wrapper item-sym))
-                  (fromProto [~'_ ~item-sym]
-                    ~(w/wrap wrapper item-sym)))
-                nil))))))
+        (let [transformer `(reify ProntoVector$Transformer
+                             (toProto [~'_ ~item-sym]
+                               ~(w/unwrap wrapper item-sym))
+                             (fromProto [~'_ ~item-sym]
+                               ~(w/wrap wrapper item-sym)))
+              builder     (u/with-type-hint (gensym 'builder) (r/get-builder-class clazz))
+              i           (gensym 'i)
+              pm          (u/with-type-hint (gensym 'pm) ProtoMap)
+              version     (gensym 'version)
+              ;; vectors read from a transient proto-map can write their changes back into its builder,
+              ;; as long as the field was not written to since
+              writer      `(when (and (instance? ProtoMap ~o) (.isMutable ~(u/with-type-hint o ProtoMap)))
+                             (let [~pm      ~o
+                                   ~version (.pmap_fieldVersion ~pm ~(.getIndex fd))]
+                               (.pmap_shareFields ~pm)
+                               (reify ProntoVector$Writer
+                                 (set [~'_ ~i ~item-sym]
+                                   (let [~builder (.pmap_getBuilder ~pm)]
+                                     (~set-method ~builder ~i ~(hint-item inner-type item-sym))))
+                                 (add [~'_ ~item-sym]
+                                   (let [~builder (.pmap_getBuilder ~pm)]
+                                     (~add-method ~builder ~(hint-item inner-type item-sym))))
+                                 (list [~'_]
+                                   (let [~builder (.pmap_getBuilder ~pm)]
+                                     (~get-list ~builder)))
+                                 (builder [~'_]
+                                   (.pmap_getBuilder ~pm))
+                                 (isCurrent [~'_]
+                                   (== ~version (.pmap_fieldVersion ~pm ~(.getIndex fd)))))))]
+          (if-let [{:keys [vector-class]} (primitive-vectors inner-type)]
+            `(new ~vector-class (~get-list ~o) ~transformer ~writer nil)
+            `(let [v#            (~get-list ~o)
+                   list-factory# ~(if (= String inner-type)
+                                    'pronto.ProntoVector/LAZY_STRING_LIST_FACTORY
+                                    'pronto.ProntoVector/DEFAULT_LIST_FACTORY)]
+               (new ProntoVector
+                    v#
+                    list-factory#
+                    ~transformer
+                    ~writer
+                    nil))))))))
 
 (defn get-field-handles [^Class clazz ctx]
   (let [class-descriptor  (descriptor clazz)
@@ -33,6 +33,68 @@
 (defn class->transient-class-name [^Class clazz]
   (symbol (str 'transient_ (sanitized-class-name clazz))))
 
+(defn metrics-var-name
+  "Returns the var holding the `ProtoMapMetrics` of the proto-map class `wrapper-class`."
+  [ctx wrapper-class]
+  (symbol (str (:ns ctx))
+          (str "__METRICS_" (last (s/split (name wrapper-class) #"\.")))))
+
+(defn decode-cache-var-name
+  "Returns the var holding the `DecodeCache` of the proto-map class `wrapper-class`."
+  [ctx wrapper-class]
+  (symbol (str (:ns ctx))
+          (str "__DECODE_CACHE_" (last (s/split (name wrapper-class) #"\.")))))
+
+(defn decode-cache-capacity
+  "Returns the capacity of the decode cache of `clazz`, or nil unless it is cached (see `:decode-cache`)."
+  [ctx clazz]
+  (get (:decode-cache ctx) clazz))
+
+(defn metric
+  "Emits a call to `method` of the `ProtoMapMetrics` of `wrapper-class` as a seq to be spliced,
+  which is empty unless the mapper was defined with `:metrics? true`."
+  [ctx wrapper-class method & args]
+  (when (:metrics? ctx)
+    [`(~method ~(with-meta (metrics-var-name ctx wrapper-class) {:tag 'pronto.ProtoMapMetrics}) ~@args)]))
+
+(defn proto-map-ctor
+  "Emits a call to the constructor of the proto-map class `wrapper-class`, whose instances also
+  hold a slot array when the mapper caches child values (see `:cache-children?`)."
+  ([ctx wrapper-class o md]
+   (proto-map-ctor ctx wrapper-class o md nil))
+  ([ctx wrapper-class o md children]
+   (let [ctor `(new ~wrapper-class ~o ~md ~@(when (:cache-children? ctx) [children]))]
+     (if (:metrics? ctx)
+       `(do ~@(metric ctx wrapper-class '.onWrap) ~ctor)
+       ctor))))
+
+(defn proto-map-field-count [ctx]
+  (if (:cache-children? ctx) 3 2))
+
+(defn class->to-clj-map-fn-name [^Class clazz]
+  (symbol (str "__TO_CLJ_" (sanitized-class-name clazz))))
+
+(defn class->from-clj-map-fn-name [^Class clazz]
+  (symbol (str "__FROM_CLJ_" (sanitized-class-name clazz))))
+
+(defn class->diff-fn-name [^Class clazz]
+  (symbol (str "__DIFF_" (sanitized-class-name clazz))))
+
+(defn class->patch-fn-name [^Class clazz]
+  (symbol (str "__PATCH_" (sanitized-class-name clazz))))
+
+(defn class->clear-path-fn-name [^Class clazz]
+  (symbol (str "__CLEAR_PATH_" (sanitized-class-name clazz))))
+
+(defn class->write-json-fn-name [^Class clazz]
+  (symbol (str "__WRITE_JSON_" (sanitized-class-name clazz))))
+
+(defn class->read-json-fn-name [^Class clazz]
+  (symbol (str "__READ_JSON_" (sanitized-class-name clazz))))
+
+(defn class->to-columns-fn-name [^Class clazz]
+  (symbol (str "__TO_COLUMNS_" (sanitized-class-name clazz))))
+
 
 (defn ->kebab-case
   "Converts `s`, assumed to be in snake_case, to kebab-case"
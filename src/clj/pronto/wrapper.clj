@@ -1,10 +1,10 @@
 (ns pronto.wrapper
   (:require [pronto.utils :as u]
-            [pronto.transformations :as transform]
             [pronto.reflection :as reflect])
   (:import [com.google.protobuf ByteString
             Descriptors$FieldDescriptor
             Descriptors$EnumValueDescriptor]
+           [java.nio ByteBuffer]
            [pronto ProtoMap]))
 
 (defprotocol Wrapper
@@ -41,15 +41,16 @@
    "com.google.protobuf.BoolValue"   Boolean/TYPE
    "com.google.protobuf.BytesValue"  ByteString})
 
-(defmulti gen-wrapper
-  (fn [^Class clazz ctx]
-    (cond
-      (get (:encoders ctx) clazz)       :custom
-      (.isEnum clazz)                   :enum
-      (= ByteString clazz)              :bytes
-      (wkt->java-type (.getName clazz)) :well-known-type
-      (not (protobuf-scalar? clazz))    :message
-      :else                             :scalar)))
+(defn wrapper-type [^Class clazz ctx]
+  (cond
+    (get (:encoders ctx) clazz)       :custom
+    (.isEnum clazz)                   :enum
+    (= ByteString clazz)              :bytes
+    (wkt->java-type (.getName clazz)) :well-known-type
+    (not (protobuf-scalar? clazz))    :message
+    :else                             :scalar))
+
+(defmulti gen-wrapper wrapper-type)
 
 (defn- make-error [^Class clazz ctx v]
   (u/make-type-error (:class ctx)
@@ -126,11 +127,11 @@
         ns                     (when fqn? (str (:ns ctx) "."))
         wrapper-type           (u/class->map-class-name clazz)
         wrapper-type           (if ns (symbol (u/javaify (str ns wrapper-type))) wrapper-type)
-        transient-wrapper-type (u/class->transient-class-name clazz)
-        transient-wrapper-type (if ns (symbol (u/javaify (str ns transient-wrapper-type))) transient-wrapper-type)]
+        from-clj-map           (u/class->from-clj-map-fn-name clazz)
+        from-clj-map           (if ns (symbol (str (:ns ctx)) (str from-clj-map)) from-clj-map)]
     (reify Wrapper
       (wrap [_ v]
-        `(new ~wrapper-type ~v (meta ~v)))
+        (u/proto-map-ctor ctx wrapper-type v `(meta ~v)))
 
       (unwrap [_ v]
         `(cond
@@ -149,10 +150,9 @@
                  (pronto.RT/getProto ~u)))
 
            (map? ~v)
-           ;; TODO: duplicate code
-           ~(let [u (with-meta (gensym 'u) {:tag 'pronto.ProtoMap})]
-              `(let [~u (transform/map->proto-map (new ~transient-wrapper-type (~(u/static-call clazz "newBuilder")) true)  ~v)]
-                 (pronto.RT/getProto ~u)))
+           (let [b# (~(u/static-call clazz "newBuilder"))]
+             (~from-clj-map b# ~v)
+             (.build b#))
 
            :else ~(when (:instrument? ctx) `(throw ~(make-error clazz ctx v))))))))
 
@@ -164,13 +164,24 @@
   ;; the class must be `ByteString`
   (reify Wrapper
     (wrap [_ v]
-      v)
+      (if (:byte-buffer-views? ctx)
+        `(.asReadOnlyByteBuffer ~(u/with-type-hint v ByteString))
+        v))
 
     (unwrap [_ v]
-      (if-instrument ctx
-        `(instance? com.google.protobuf.ByteString ~v)
-        v
-        `(throw ~(make-error com.google.protobuf.ByteString ctx v))))))
+      (let [check (fn [v]
+                    (if-instrument ctx
+                      `(instance? com.google.protobuf.ByteString ~v)
+                      v
+                      `(throw ~(make-error com.google.protobuf.ByteString ctx v))))]
+        (if-not (:byte-buffer-views? ctx)
+          (check v)
+          (let [v2 (gensym 'v)]
+            `(let [~v2 ~v]
+               (if (instance? ByteBuffer ~v2)
+                 ;; copied, as the buffer may be written to after it was set
+                 (ByteString/copyFrom (.duplicate ~(u/with-type-hint v2 ByteBuffer)))
+                 ~(check v2)))))))))
 
 
 (defmethod gen-wrapper
@@ -0,0 +1,87 @@
+package pronto;
+
+import clojure.lang.IFn;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Maps a function over a batch of items in parallel, preserving order.
+ * <p>
+ * The batch is split into contiguous chunks, each of which is a single task that writes its results
+ * straight into a shared array, so no intermediate collections are built. The calling thread processes
+ * the first chunk itself. The results are returned as a {@link ProntoVector} over that array.
+ **/
+public final class Batches {
+
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    private static final ProntoVector.Transformer IDENTITY = new ProntoVector.Transformer() {
+        @Override
+        public Object toProto(Object item) {
+            return item;
+        }
+
+        @Override
+        public Object fromProto(Object item) {
+            return item;
+        }
+    };
+
+    private Batches() {
+    }
+
+    /**
+     * Returns a vector of `(f item)` for every item of `items` (any seqable), in order.
+     * `executor` defaults to the common fork-join pool, and `chunkSize` (the minimal number of items per task)
+     * to {@link #DEFAULT_CHUNK_SIZE}. Exceptions thrown by `f` are rethrown as is.
+     */
+    public static ProntoVector map(IFn f, Object items, ExecutorService executor, int chunkSize) {
+        Object[] in = RT.toArray(items);
+        Object[] out = new Object[in.length];
+        if (executor == null) {
+            executor = ForkJoinPool.commonPool();
+        }
+        if (chunkSize <= 0) {
+            chunkSize = DEFAULT_CHUNK_SIZE;
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int start = chunkSize; start < in.length; start += chunkSize) {
+                final int from = start;
+                final int to = Math.min(in.length, start + chunkSize);
+                futures.add(executor.submit(() -> apply(f, in, out, from, to)));
+            }
+            apply(f, in, out, 0, Math.min(in.length, chunkSize));
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw Util.sneakyThrow(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Util.sneakyThrow(e);
+        } finally {
+            // a failed batch should not keep the pool busy
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        return new ProntoVector(Arrays.asList(out), ProntoVector.DEFAULT_LIST_FACTORY, IDENTITY, null);
+    }
+
+    private static void apply(IFn f, Object[] in, Object[] out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            out[i] = f.invoke(in[i]);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package pronto;
+
+import clojure.lang.IPersistentMap;
+
+/**
+ * A proto-map which can be converted to a regular Clojure map by code generated for its class.
+ **/
+public interface CljMapConvertible {
+
+    /**
+     * Returns a Clojure map of this proto-map, where nested proto-maps are recursively converted as well.
+     */
+    IPersistentMap pmap_toCljMap();
+}
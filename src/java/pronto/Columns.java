@@ -0,0 +1,483 @@
+package pronto;
+
+import clojure.lang.RT;
+import clojure.lang.*;
+import com.google.protobuf.ByteString;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A columnar batch of messages of a single class, see `->columns`.
+ * <p>
+ * Each column holds the values of a single field for all the messages of the batch, in order: numeric and boolean
+ * fields as primitive arrays (`int[]`, `long[]`, `float[]`, `double[]` and `boolean[]`), enum fields as {@link Enums}
+ * and string fields as {@link Strings}. Columns are looked up by field key, e.g `(:price columns)`, so aggregations
+ * run as loops over primitive arrays rather than as lookups over messages.
+ * <p>
+ * A batch is also a collection of rows (see {@link #nth(int)}), read-only maps which read their values from the columns
+ * on access.
+ **/
+public final class Columns implements ILookup, Counted, Indexed, Seqable, Iterable, IReduceInit {
+
+    private final int size;
+    private final Keyword[] keys;
+    private final Object[] columns;
+
+    public Columns(int size, List<Keyword> keys, List<Object> columns) {
+        this.size = size;
+        this.keys = keys.toArray(new Keyword[0]);
+        this.columns = columns.toArray();
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the keys of the columns, in field order.
+     */
+    public IPersistentVector keys() {
+        return LazilyPersistentVector.createOwning((Object[]) keys.clone());
+    }
+
+    @Override
+    public Object valAt(Object key) {
+        return valAt(key, null);
+    }
+
+    @Override
+    public Object valAt(Object key, Object notFound) {
+        int i = indexOf(key);
+        return i < 0 ? notFound : columns[i];
+    }
+
+    @Override
+    public int count() {
+        return size;
+    }
+
+    @Override
+    public Object nth(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException();
+        }
+        return new Row(i);
+    }
+
+    @Override
+    public Object nth(int i, Object notFound) {
+        return i >= 0 && i < size ? new Row(i) : notFound;
+    }
+
+    @Override
+    public Iterator iterator() {
+        return new Iterator() {
+            private int i;
+
+            @Override
+            public boolean hasNext() {
+                return i < size;
+            }
+
+            @Override
+            public Object next() {
+                if (i >= size) {
+                    throw new NoSuchElementException();
+                }
+                return new Row(i++);
+            }
+        };
+    }
+
+    @Override
+    public ISeq seq() {
+        return size == 0 ? null : RT.chunkIteratorSeq(iterator());
+    }
+
+    @Override
+    public Object reduce(IFn f, Object init) {
+        Object acc = init;
+        for (int i = 0; i < size; i++) {
+            acc = f.invoke(acc, new Row(i));
+            if (RT.isReduced(acc)) {
+                return ((IDeref) acc).deref();
+            }
+        }
+        return acc;
+    }
+
+    private static Object valueAt(Object column, int i) {
+        if (column instanceof long[]) {
+            return ((long[]) column)[i];
+        } else if (column instanceof int[]) {
+            return ((int[]) column)[i];
+        } else if (column instanceof double[]) {
+            return ((double[]) column)[i];
+        } else if (column instanceof float[]) {
+            return ((float[]) column)[i];
+        } else if (column instanceof boolean[]) {
+            return ((boolean[]) column)[i];
+        } else {
+            return ((Column) column).get(i);
+        }
+    }
+
+    /**
+     * A read-only map view of a single message of the batch, whose keys are the keys of the columns.
+     */
+    public final class Row extends APersistentMap {
+
+        private final int index;
+
+        Row(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public Object valAt(Object key) {
+            return valAt(key, null);
+        }
+
+        @Override
+        public Object valAt(Object key, Object notFound) {
+            int i = indexOf(key);
+            return i < 0 ? notFound : valueAt(columns[i], index);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public IMapEntry entryAt(Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : MapEntry.create(keys[i], valueAt(columns[i], index));
+        }
+
+        @Override
+        public int count() {
+            return keys.length;
+        }
+
+        @Override
+        public ISeq seq() {
+            return keys.length == 0 ? null : RT.chunkIteratorSeq(iterator());
+        }
+
+        @Override
+        public Iterator iterator() {
+            return new Iterator() {
+                private int i;
+
+                @Override
+                public boolean hasNext() {
+                    return i < keys.length;
+                }
+
+                @Override
+                public Object next() {
+                    if (i >= keys.length) {
+                        throw new NoSuchElementException();
+                    }
+                    IMapEntry e = MapEntry.create(keys[i], valueAt(columns[i], index));
+                    i++;
+                    return e;
+                }
+            };
+        }
+
+        @Override
+        public IPersistentMap assoc(Object key, Object val) {
+            throw new UnsupportedOperationException("Rows of a columnar batch are read-only");
+        }
+
+        @Override
+        public IPersistentMap assocEx(Object key, Object val) {
+            throw new UnsupportedOperationException("Rows of a columnar batch are read-only");
+        }
+
+        @Override
+        public IPersistentMap without(Object key) {
+            throw new UnsupportedOperationException("Rows of a columnar batch are read-only");
+        }
+
+        @Override
+        public IPersistentCollection empty() {
+            return PersistentArrayMap.EMPTY;
+        }
+    }
+
+    /**
+     * A column whose values are read by index, as objects.
+     */
+    public abstract static class Column implements Counted, Indexed, Seqable, Iterable {
+
+        public abstract Object get(int i);
+
+        @Override
+        public Object nth(int i) {
+            if (i < 0 || i >= count()) {
+                throw new IndexOutOfBoundsException();
+            }
+            return get(i);
+        }
+
+        @Override
+        public Object nth(int i, Object notFound) {
+            return i >= 0 && i < count() ? get(i) : notFound;
+        }
+
+        @Override
+        public Iterator iterator() {
+            return new Iterator() {
+                private int i;
+
+                @Override
+                public boolean hasNext() {
+                    return i < count();
+                }
+
+                @Override
+                public Object next() {
+                    if (i >= count()) {
+                        throw new NoSuchElementException();
+                    }
+                    return get(i++);
+                }
+            };
+        }
+
+        @Override
+        public ISeq seq() {
+            return count() == 0 ? null : RT.chunkIteratorSeq(iterator());
+        }
+    }
+
+    /**
+     * A column of strings, held as their UTF-8 bytes one after the other in {@link #data()}, where the bytes of
+     * string `i` span from `offsets[i]` (inclusive) to `offsets[i + 1]` (exclusive). Strings are decoded on access.
+     */
+    public static final class Strings extends Column {
+
+        private final int[] offsets;
+        private final byte[] data;
+
+        Strings(int[] offsets, byte[] data) {
+            this.offsets = offsets;
+            this.data = data;
+        }
+
+        public int[] offsets() {
+            return offsets;
+        }
+
+        public byte[] data() {
+            return data;
+        }
+
+        @Override
+        public int count() {
+            return offsets.length - 1;
+        }
+
+        @Override
+        public String get(int i) {
+            return new String(data, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A dictionary-encoded column of enum values: value `i` is `dictionary[codes[i]]`, where the dictionary holds
+     * the keywords of the enum's values in declaration order. Grouping by an enum field can loop over {@link #codes()}.
+     */
+    public static final class Enums extends Column {
+
+        private final int[] codes;
+        private final Keyword[] dictionary;
+
+        Enums(int[] codes, Keyword[] dictionary) {
+            this.codes = codes;
+            this.dictionary = dictionary;
+        }
+
+        public int[] codes() {
+            return codes;
+        }
+
+        public IPersistentVector dictionary() {
+            return LazilyPersistentVector.createOwning((Object[]) dictionary.clone());
+        }
+
+        @Override
+        public int count() {
+            return codes.length;
+        }
+
+        @Override
+        public Keyword get(int i) {
+            return dictionary[codes[i]];
+        }
+    }
+
+    // Column builders, which are appended one value per message by the code generated per class.
+
+    public static final class IntsBuilder {
+        private int[] values;
+        private int n;
+
+        public IntsBuilder(int capacity) {
+            values = new int[Math.max(capacity, 8)];
+        }
+
+        public void add(int v) {
+            if (n == values.length) {
+                values = Arrays.copyOf(values, n * 2);
+            }
+            values[n++] = v;
+        }
+
+        public int[] build() {
+            return n == values.length ? values : Arrays.copyOf(values, n);
+        }
+    }
+
+    public static final class LongsBuilder {
+        private long[] values;
+        private int n;
+
+        public LongsBuilder(int capacity) {
+            values = new long[Math.max(capacity, 8)];
+        }
+
+        public void add(long v) {
+            if (n == values.length) {
+                values = Arrays.copyOf(values, n * 2);
+            }
+            values[n++] = v;
+        }
+
+        public long[] build() {
+            return n == values.length ? values : Arrays.copyOf(values, n);
+        }
+    }
+
+    public static final class FloatsBuilder {
+        private float[] values;
+        private int n;
+
+        public FloatsBuilder(int capacity) {
+            values = new float[Math.max(capacity, 8)];
+        }
+
+        public void add(float v) {
+            if (n == values.length) {
+                values = Arrays.copyOf(values, n * 2);
+            }
+            values[n++] = v;
+        }
+
+        public float[] build() {
+            return n == values.length ? values : Arrays.copyOf(values, n);
+        }
+    }
+
+    public static final class DoublesBuilder {
+        private double[] values;
+        private int n;
+
+        public DoublesBuilder(int capacity) {
+            values = new double[Math.max(capacity, 8)];
+        }
+
+        public void add(double v) {
+            if (n == values.length) {
+                values = Arrays.copyOf(values, n * 2);
+            }
+            values[n++] = v;
+        }
+
+        public double[] build() {
+            return n == values.length ? values : Arrays.copyOf(values, n);
+        }
+    }
+
+    public static final class BooleansBuilder {
+        private boolean[] values;
+        private int n;
+
+        public BooleansBuilder(int capacity) {
+            values = new boolean[Math.max(capacity, 8)];
+        }
+
+        public void add(boolean v) {
+            if (n == values.length) {
+                values = Arrays.copyOf(values, n * 2);
+            }
+            values[n++] = v;
+        }
+
+        public boolean[] build() {
+            return n == values.length ? values : Arrays.copyOf(values, n);
+        }
+    }
+
+    public static final class StringsBuilder {
+        private int[] offsets;
+        private byte[] data;
+        private int n;
+
+        public StringsBuilder(int capacity) {
+            offsets = new int[Math.max(capacity, 8) + 1];
+            data = new byte[Math.max(capacity, 8) * 16];
+        }
+
+        /**
+         * Appends a string by its UTF-8 bytes, as returned by the `getXBytes` getter of a string field,
+         * so strings are copied without being decoded or encoded.
+         */
+        public void add(ByteString utf8) {
+            if (n + 1 == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            int start = offsets[n];
+            int end = start + utf8.size();
+            if (end > data.length) {
+                data = Arrays.copyOf(data, Math.max(end, data.length * 2));
+            }
+            utf8.copyTo(data, start);
+            offsets[++n] = end;
+        }
+
+        public Strings build() {
+            return new Strings(Arrays.copyOf(offsets, n + 1), Arrays.copyOf(data, offsets[n]));
+        }
+    }
+
+    public static final class EnumsBuilder {
+        private final IntsBuilder codes;
+        private final Keyword[] dictionary;
+
+        public EnumsBuilder(int capacity, Keyword[] dictionary) {
+            this.codes = new IntsBuilder(capacity);
+            this.dictionary = dictionary;
+        }
+
+        public void add(int code) {
+            codes.add(code);
+        }
+
+        public Enums build() {
+            return new Enums(codes.build(), dictionary);
+        }
+    }
+}
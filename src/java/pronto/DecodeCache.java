@@ -0,0 +1,153 @@
+package pronto;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of the proto-maps parsed from payloads of a single class, for mappers defined with
+ * `:decode-cache` (see `bytes->proto-map`).
+ * <p>
+ * Entries are keyed by a 64-bit hash of the payload, and hold a private copy of it which a lookup is verified
+ * against byte for byte, so a hash collision is a miss rather than a wrong message. Lookups do not lock, and
+ * only mark the entry they hit as referenced. Insertions are serialized, and once the cache is full evict
+ * entries by CLOCK (second chance): the hand sweeps the slots, clearing the mark of referenced entries and
+ * evicting the first one which was not referenced since it last passed.
+ * <p>
+ * Cached proto-maps are immutable, so the same instance is returned to every caller of an identical payload.
+ **/
+public final class DecodeCache {
+
+    private static final Keyword HITS = Keyword.intern("hits");
+    private static final Keyword MISSES = Keyword.intern("misses");
+    private static final Keyword EVICTIONS = Keyword.intern("evictions");
+    private static final Keyword SIZE = Keyword.intern("size");
+    private static final Keyword CAPACITY = Keyword.intern("capacity");
+
+    private static final long M = 0x9E3779B97F4A7C15L;
+
+    private static final class Entry {
+        final long hash;
+        final byte[] bytes;
+        final Object value;
+        int slot;
+        volatile boolean referenced;
+
+        Entry(long hash, byte[] bytes, Object value) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.value = value;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry> index;
+    // guarded by `this`
+    private final Entry[] slots;
+    private int hand;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public DecodeCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Decode cache capacity must be positive: " + capacity);
+        }
+        this.slots = new Entry[capacity];
+        this.index = new ConcurrentHashMap<>(capacity * 2);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Returns the hash of `bytes` which keys the cache, reading it 8 bytes at a time.
+     */
+    public static long hash(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int n = bytes.length;
+        long h = M ^ n;
+        int i = 0;
+        for (; i + 8 <= n; i += 8) {
+            h = (h ^ mix(buf.getLong(i))) * M;
+        }
+        long tail = 0;
+        for (int shift = 0; i < n; i++, shift += 8) {
+            tail |= (bytes[i] & 0xFFL) << shift;
+        }
+        return mix((h ^ mix(tail)) * M);
+    }
+
+    /**
+     * Returns the value cached for `bytes`, whose hash is `hash`, or null.
+     */
+    public Object get(long hash, byte[] bytes) {
+        Entry e = index.get(hash);
+        if (e != null && Arrays.equals(e.bytes, bytes)) {
+            if (!e.referenced) {
+                e.referenced = true;
+            }
+            hits.increment();
+            return e.value;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches `value` for `bytes`, whose hash is `hash`, and returns it. The cache keeps `bytes`, which must not be
+     * changed afterwards.
+     */
+    public synchronized Object put(long hash, byte[] bytes, Object value) {
+        Entry e = new Entry(hash, bytes, value);
+        Entry existing = index.get(hash);
+        if (existing != null) {
+            // a payload parsed concurrently, or one whose hash collides: keep the latest in the same slot
+            e.slot = existing.slot;
+        } else {
+            while (slots[hand] != null && slots[hand].referenced) {
+                slots[hand].referenced = false;
+                hand = (hand + 1) % slots.length;
+            }
+            Entry evicted = slots[hand];
+            if (evicted != null) {
+                index.remove(evicted.hash, evicted);
+                evictions.increment();
+            }
+            e.slot = hand;
+            hand = (hand + 1) % slots.length;
+        }
+        slots[e.slot] = e;
+        index.put(hash, e);
+        return value;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(slots, null);
+        index.clear();
+        hand = 0;
+    }
+
+    /**
+     * Returns the counters of the cache, `{:hits n, :misses n, :evictions n, :size n, :capacity n}`.
+     * Counters only grow, while the size is that of the cache at the time of the call.
+     */
+    public IPersistentMap stats() {
+        return new PersistentArrayMap(new Object[]{
+                HITS, hits.sum(),
+                MISSES, misses.sum(),
+                EVICTIONS, evictions.sum(),
+                SIZE, (long) index.size(),
+                CAPACITY, (long) slots.length});
+    }
+}
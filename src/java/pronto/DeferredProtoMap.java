@@ -0,0 +1,400 @@
+package pronto;
+
+import clojure.lang.*;
+import com.google.protobuf.GeneratedMessageV3;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * A persistent proto-map whose latest writes have not been built into a message yet.
+ * <p>
+ * A chain of `assoc` calls shares a single transient proto-map (and its builder), so every
+ * write costs a single setter call rather than a `toBuilder`/`build` round trip.
+ * The message is only built when it is needed: on traversals, serialization, hashing, etc,
+ * or once more than `maxWrites` writes are pending. Reads of single fields by the most recent map
+ * of a chain are served by the shared builder, so `update` chains do not build a message per step.
+ * <p>
+ * Only the most recent map of a chain may write to the shared builder. Any other map of the chain
+ * replays its own writes on top of its base map, so persistent semantics are preserved.
+ **/
+public final class DeferredProtoMap implements IPersistentMap, ProtoMap, IObj, MapEquivalence,
+        IEditableCollection, DefaultingFn, Map, Diffable {
+
+    private static final Object BUSY = new Object();
+    private static final Object NOT_OWNED = new Object();
+
+    private static final class Write {
+        final Object key;
+        final Object val;
+        final Write prev;
+
+        Write(Object key, Object val, Write prev) {
+            this.key = key;
+            this.val = val;
+            this.prev = prev;
+        }
+    }
+
+    private final ProtoMap base;
+    private final ITransientMap edits;
+    private final AtomicReference<Object> owner;
+    private final Write writes;
+    private final int pending;
+    private final int maxWrites;
+    private final IPersistentMap meta;
+
+    private volatile ProtoMap materialized;
+
+    private DeferredProtoMap(ProtoMap base, ITransientMap edits, AtomicReference<Object> owner,
+                             Write writes, int pending, int maxWrites, IPersistentMap meta) {
+        this.base = base;
+        this.edits = edits;
+        this.owner = owner;
+        this.writes = writes;
+        this.pending = pending;
+        this.maxWrites = maxWrites;
+        this.meta = meta;
+    }
+
+    /**
+     * Returns a deferred proto-map of `base` with `key` set to `val`.
+     */
+    public static IPersistentMap assoc(ProtoMap base, Object key, Object val, int maxWrites, IPersistentMap meta) {
+        ITransientMap edits = (ITransientMap) ((IEditableCollection) base).asTransient();
+        edits.assoc(key, val);
+        AtomicReference<Object> owner = new AtomicReference<>();
+        DeferredProtoMap m = new DeferredProtoMap(base, edits, owner, new Write(key, val, null), 1, maxWrites, meta);
+        owner.set(m);
+        return m;
+    }
+
+    private ProtoMap build() {
+        ProtoMap m = base.fromBuilder(((ProtoMap) edits).pmap_getBuilder());
+        return meta == null ? m : (ProtoMap) ((IObj) m).withMeta(meta);
+    }
+
+    private ProtoMap replay() {
+        ArrayList<Write> ws = new ArrayList<>(pending);
+        for (Write w = writes; w != null; w = w.prev) {
+            ws.add(w);
+        }
+        ITransientMap t = (ITransientMap) ((IEditableCollection) base).asTransient();
+        for (int i = ws.size() - 1; i >= 0; i--) {
+            t.assoc(ws.get(i).key, ws.get(i).val);
+        }
+        IPersistentMap m = t.persistent();
+        return (ProtoMap) (meta == null ? m : ((IObj) m).withMeta(meta));
+    }
+
+    /**
+     * Returns the underlying (regular) proto-map, building it on first use.
+     */
+    public ProtoMap materialize() {
+        ProtoMap m = materialized;
+        if (m == null) {
+            if (owner.compareAndSet(this, BUSY)) {
+                try {
+                    m = build();
+                } finally {
+                    owner.set(this);
+                }
+            } else {
+                m = replay();
+            }
+            materialized = m;
+        }
+        return m;
+    }
+
+    /**
+     * Returns the underlying proto-map of `m` if it is a deferred proto-map, and `m` otherwise. Code hinted with
+     * the message class (see `p->`) reads fields off the message interface, which deferred proto-maps do not implement.
+     */
+    public static Object materialize(Object m) {
+        return m instanceof DeferredProtoMap ? ((DeferredProtoMap) m).materialize() : m;
+    }
+
+    private IPersistentMap map() {
+        return (IPersistentMap) materialize();
+    }
+
+    /**
+     * Applies `read` to the shared transient if this map may use it and was not built yet, or returns NOT_OWNED.
+     */
+    private Object readOwned(Function<ProtoMap, Object> read) {
+        if (materialized == null && owner.compareAndSet(this, BUSY)) {
+            try {
+                return read.apply((ProtoMap) edits);
+            } finally {
+                owner.set(this);
+            }
+        }
+        return NOT_OWNED;
+    }
+
+    @Override
+    public IPersistentMap assoc(Object key, Object val) {
+        if (!owner.compareAndSet(this, BUSY)) {
+            return assoc(materialize(), key, val, maxWrites, meta);
+        }
+
+        boolean ok = false;
+        try {
+            ProtoMap newBase = base;
+            Write newWrites = writes;
+            int newPending = pending;
+            if (pending >= maxWrites) {
+                // the builder keeps its state after `build`, so start over with the built map as the base
+                newBase = build();
+                if (materialized == null) {
+                    materialized = newBase;
+                }
+                newWrites = null;
+                newPending = 0;
+            }
+            edits.assoc(key, val);
+            DeferredProtoMap m = new DeferredProtoMap(newBase, edits, owner, new Write(key, val, newWrites),
+                    newPending + 1, maxWrites, meta);
+            owner.set(m);
+            ok = true;
+            return m;
+        } finally {
+            if (!ok) {
+                // a failed write may have left the builder half-updated, so nobody may use it anymore
+                owner.set(null);
+            }
+        }
+    }
+
+    @Override
+    public IPersistentMap assocEx(Object key, Object val) {
+        return map().assocEx(key, val);
+    }
+
+    @Override
+    public IPersistentMap without(Object key) {
+        return map().without(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return ((IPersistentMap) base).containsKey(key);
+    }
+
+    @Override
+    public IMapEntry entryAt(Object key) {
+        Object e = readOwned(m -> ((ITransientAssociative2) m).entryAt(key));
+        return e != NOT_OWNED ? (IMapEntry) e : map().entryAt(key);
+    }
+
+    @Override
+    public int count() {
+        return ((IPersistentMap) base).count();
+    }
+
+    @Override
+    public IPersistentCollection cons(Object o) {
+        return PersistentMapHelpers.cons(this, o);
+    }
+
+    @Override
+    public IPersistentCollection empty() {
+        return ((IPersistentMap) base).empty();
+    }
+
+    @Override
+    public boolean equiv(Object o) {
+        return map().equiv(o instanceof DeferredProtoMap ? ((DeferredProtoMap) o).materialize() : o);
+    }
+
+    @Override
+    public ISeq seq() {
+        return map().seq();
+    }
+
+    @Override
+    public Iterator iterator() {
+        return map().iterator();
+    }
+
+    @Override
+    public Object valAt(Object key) {
+        Object v = readOwned(m -> ((ILookup) m).valAt(key));
+        return v != NOT_OWNED ? v : map().valAt(key);
+    }
+
+    @Override
+    public Object valAt(Object key, Object notFound) {
+        Object v = readOwned(m -> ((ILookup) m).valAt(key, notFound));
+        return v != NOT_OWNED ? v : map().valAt(key, notFound);
+    }
+
+    @Override
+    public Object invoke(Object arg1) {
+        return valAt(arg1);
+    }
+
+    @Override
+    public Object invoke(Object arg1, Object notFound) {
+        return valAt(arg1, notFound);
+    }
+
+    @Override
+    public Object applyTo(ISeq args) {
+        return AFn.applyToHelper(this, args);
+    }
+
+    @Override
+    public ITransientCollection asTransient() {
+        return ((IEditableCollection) materialize()).asTransient();
+    }
+
+    @Override
+    public IObj withMeta(IPersistentMap meta) {
+        if (meta == this.meta) {
+            return this;
+        }
+        return (IObj) ((IObj) materialize()).withMeta(meta);
+    }
+
+    @Override
+    public IPersistentMap meta() {
+        return meta;
+    }
+
+    @Override
+    public boolean isMutable() {
+        return false;
+    }
+
+    @Override
+    public boolean pmap_hasField(Keyword key) {
+        Object has = readOwned(m -> m.pmap_hasField(key));
+        return has != NOT_OWNED ? (Boolean) has : materialize().pmap_hasField(key);
+    }
+
+    @Override
+    public ProtoMap clearField(Keyword key) {
+        return materialize().clearField(key);
+    }
+
+    @Override
+    public GeneratedMessageV3 pmap_getProto() {
+        return materialize().pmap_getProto();
+    }
+
+    @Override
+    public IPersistentMap pmap_diff(Object other) {
+        return ((Diffable) materialize()).pmap_diff(other);
+    }
+
+    @Override
+    public ProtoMap pmap_patch(IPersistentMap delta) {
+        return ((Diffable) materialize()).pmap_patch(delta);
+    }
+
+    @Override
+    public Keyword whichOneOf(Keyword key) {
+        Object k = readOwned(m -> m.whichOneOf(key));
+        return k != NOT_OWNED ? (Keyword) k : materialize().whichOneOf(key);
+    }
+
+    @Override
+    public GeneratedMessageV3.Builder pmap_getBuilder() {
+        return materialize().pmap_getBuilder();
+    }
+
+    @Override
+    public ProtoMap copy(GeneratedMessageV3.Builder builder) {
+        return materialize().copy(builder);
+    }
+
+    @Override
+    public ProtoMap remap(ProtoMapper mapper) {
+        return materialize().remap(mapper);
+    }
+
+    @Override
+    public ProtoMap empty(Keyword keyword) {
+        return base.empty(keyword);
+    }
+
+    @Override
+    public ProtoMap fromBuilder(GeneratedMessageV3.Builder builder) {
+        return base.fromBuilder(builder);
+    }
+
+    // java.util.Map
+
+    @Override
+    public int size() {
+        return count();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return PersistentMapHelpers.isEmpty(this);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return PersistentMapHelpers.containsValue(this, value);
+    }
+
+    @Override
+    public Object get(Object key) {
+        return PersistentMapHelpers.get(this, key);
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object remove(Object key) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void putAll(Map m) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Set keySet() {
+        return PersistentMapHelpers.keySet(this);
+    }
+
+    @Override
+    public Collection values() {
+        return PersistentMapHelpers.values(this);
+    }
+
+    @Override
+    public Set entrySet() {
+        return PersistentMapHelpers.entrySet(this);
+    }
+
+    @Override
+    public String toString() {
+        return PersistentMapHelpers.toString(this);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return PersistentMapHelpers.equals(this, obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return materialize().hashCode();
+    }
+}
@@ -0,0 +1,20 @@
+package pronto;
+
+import clojure.lang.IPersistentMap;
+
+/**
+ * A proto-map which can be compared to, and patched by, proto-maps of its class, by code generated for its class.
+ **/
+public interface Diffable {
+
+    /**
+     * Returns the delta from this proto-map to `other`, a proto-map of the same class, as a map of `:changes`
+     * (a proto-map of the fields which `other` sets differently) and `:cleared` (a set of the paths which `other` unsets).
+     */
+    IPersistentMap pmap_diff(Object other);
+
+    /**
+     * Returns this proto-map with `delta`, as returned by {@link #pmap_diff(Object)}, applied to it.
+     */
+    ProtoMap pmap_patch(IPersistentMap delta);
+}
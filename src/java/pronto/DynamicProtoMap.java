@@ -0,0 +1,244 @@
+package pronto;
+
+import clojure.lang.RT;
+import clojure.lang.*;
+import com.google.protobuf.Message;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A persistent map view over a `DynamicMessage`, whose layout is described by a {@link DynamicSchema}.
+ * <p>
+ * This is the runtime counterpart of the proto-maps generated by `defmapper`, for message types which are
+ * only known at runtime (see {@link DynamicProtoMapper}). Reads, writes, iteration and equality follow the
+ * same semantics as generated proto-maps.
+ **/
+public final class DynamicProtoMap extends APersistentMap implements IObj, IEditableCollection, IKVReduce,
+        IKeywordLookup, CljMapConvertible {
+
+    private final DynamicSchema schema;
+    private final Message message;
+    private final IPersistentMap meta;
+
+    public DynamicProtoMap(DynamicSchema schema, Message message, IPersistentMap meta) {
+        this.schema = schema;
+        this.message = message;
+        this.meta = meta;
+    }
+
+    public DynamicSchema getSchema() {
+        return schema;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public boolean hasField(Keyword key) {
+        return schema.hasField(message, key);
+    }
+
+    public Keyword whichOneOf(Keyword key) {
+        return schema.whichOneOf(message, key);
+    }
+
+    @Override
+    public IPersistentMap pmap_toCljMap() {
+        return schema.toCljMap(message);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return schema.field(key) != null;
+    }
+
+    @Override
+    public IMapEntry entryAt(Object key) {
+        DynamicSchema.Field field = schema.field(key);
+        return field == null ? null : MapEntry.create(field.key, field.read(message));
+    }
+
+    @Override
+    public Object valAt(Object key) {
+        return schema.fieldOrThrow(key).read(message);
+    }
+
+    @Override
+    public Object valAt(Object key, Object notFound) {
+        return valAt(key);
+    }
+
+    @Override
+    public ILookupThunk getLookupThunk(Keyword key) {
+        return schema.field(key);
+    }
+
+    @Override
+    public IPersistentMap assoc(Object key, Object val) {
+        Message.Builder builder = message.toBuilder();
+        schema.fieldOrThrow(key).write(builder, val);
+        return new DynamicProtoMap(schema, builder.build(), meta);
+    }
+
+    @Override
+    public IPersistentMap assocEx(Object key, Object val) {
+        if (containsKey(key)) {
+            throw Util.runtimeException("Key already present");
+        }
+        return assoc(key, val);
+    }
+
+    @Override
+    public IPersistentMap without(Object key) {
+        throw new UnsupportedOperationException("cannot dissoc from a proto map");
+    }
+
+    @Override
+    public IPersistentMap cons(Object o) {
+        if (o instanceof DynamicProtoMap && ((DynamicProtoMap) o).schema == schema) {
+            // every field of `o` replaces the corresponding field of this map
+            return new DynamicProtoMap(schema, ((DynamicProtoMap) o).message, meta);
+        }
+        return (IPersistentMap) PersistentMapHelpers.consAll(this, o);
+    }
+
+    @Override
+    public int count() {
+        return schema.getFieldCount();
+    }
+
+    @Override
+    public IPersistentCollection empty() {
+        return (IPersistentCollection) schema.getProto().withMeta(meta);
+    }
+
+    @Override
+    public ISeq seq() {
+        return RT.chunkIteratorSeq(iterator());
+    }
+
+    @Override
+    public Iterator iterator() {
+        return new Iterator() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < schema.getFieldCount();
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                DynamicSchema.Field field = schema.fieldAt(i++);
+                return MapEntry.create(field.key, field.read(message));
+            }
+        };
+    }
+
+    @Override
+    public Object kvreduce(IFn f, Object init) {
+        for (int i = 0; i < schema.getFieldCount(); i++) {
+            DynamicSchema.Field field = schema.fieldAt(i);
+            init = f.invoke(init, field.key, field.read(message));
+            if (RT.isReduced(init)) {
+                return ((IDeref) init).deref();
+            }
+        }
+        return init;
+    }
+
+    @Override
+    public IPersistentMap meta() {
+        return meta;
+    }
+
+    @Override
+    public IObj withMeta(IPersistentMap meta) {
+        return meta == this.meta ? this : new DynamicProtoMap(schema, message, meta);
+    }
+
+    @Override
+    public ITransientCollection asTransient() {
+        return new Transient(message.toBuilder());
+    }
+
+    @Override
+    public String toString() {
+        return PersistentMapHelpers.toString(this);
+    }
+
+    /**
+     * A transient proto-map, writing straight into a message builder.
+     */
+    public final class Transient extends AFn implements ITransientMap {
+        private final Message.Builder builder;
+        private boolean editable;
+
+        Transient(Message.Builder builder) {
+            this.builder = builder;
+            this.editable = true;
+        }
+
+        private void ensureEditable() {
+            if (!editable) {
+                throw new IllegalAccessError("Transient used after persistent! call");
+            }
+        }
+
+        @Override
+        public ITransientMap conj(Object o) {
+            ensureEditable();
+            return TransientMapHelpers.conj(this, o);
+        }
+
+        @Override
+        public ITransientMap assoc(Object key, Object val) {
+            ensureEditable();
+            schema.fieldOrThrow(key).write(builder, val);
+            return this;
+        }
+
+        @Override
+        public ITransientMap without(Object key) {
+            throw new UnsupportedOperationException("cannot dissoc from a proto map");
+        }
+
+        @Override
+        public Object valAt(Object key) {
+            ensureEditable();
+            return schema.fieldOrThrow(key).read(builder);
+        }
+
+        @Override
+        public Object valAt(Object key, Object notFound) {
+            return valAt(key);
+        }
+
+        @Override
+        public Object invoke(Object key) {
+            return valAt(key);
+        }
+
+        @Override
+        public Object invoke(Object key, Object notFound) {
+            return valAt(key);
+        }
+
+        @Override
+        public int count() {
+            ensureEditable();
+            return schema.getFieldCount();
+        }
+
+        @Override
+        public IPersistentMap persistent() {
+            ensureEditable();
+            editable = false;
+            return new DynamicProtoMap(schema, builder.build(), meta);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package pronto;
+
+import clojure.lang.IFn;
+import clojure.lang.IPersistentSet;
+import clojure.lang.PersistentHashSet;
+import com.google.protobuf.*;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FileDescriptor;
+
+import java.util.*;
+
+/**
+ * Maps message types which are only known at runtime, e.g, schemas fetched from a registry, to proto-maps.
+ * <p>
+ * Unlike a mapper generated by `defmapper`, no code is emitted: message types are loaded from a
+ * `FileDescriptorSet`, and every message type is precompiled into a {@link DynamicSchema} once, when the
+ * mapper is built. Proto-maps are backed by `DynamicMessage`s (see {@link DynamicProtoMap}).
+ **/
+public final class DynamicProtoMapper {
+
+    // well known types may be left out of a descriptor set, since every protobuf runtime embeds them
+    private static final Map<String, FileDescriptor> WELL_KNOWN_FILES = new HashMap<>();
+
+    static {
+        for (FileDescriptor fd : Arrays.asList(
+                WrappersProto.getDescriptor(), TimestampProto.getDescriptor(), DurationProto.getDescriptor(),
+                AnyProto.getDescriptor(), EmptyProto.getDescriptor(), StructProto.getDescriptor(),
+                FieldMaskProto.getDescriptor(), DescriptorProtos.getDescriptor())) {
+            WELL_KNOWN_FILES.put(fd.getName(), fd);
+        }
+    }
+
+    private final Map<String, DynamicSchema> schemas;
+    private final IPersistentSet messageTypes;
+
+    private DynamicProtoMapper(Map<String, DynamicSchema> schemas) {
+        this.schemas = schemas;
+        this.messageTypes = PersistentHashSet.create(new ArrayList<>(schemas.keySet()));
+    }
+
+    /**
+     * Builds a mapper for all message types defined in `set`.
+     * `keyNameFn` and `enumValueFn` (which may be null) have the same meaning as the `defmapper` options.
+     */
+    public static DynamicProtoMapper fromFileDescriptorSet(FileDescriptorSet set, IFn keyNameFn, IFn enumValueFn)
+            throws DescriptorValidationException {
+        Map<String, FileDescriptorProto> protos = new HashMap<>();
+        for (FileDescriptorProto fdp : set.getFileList()) {
+            protos.put(fdp.getName(), fdp);
+        }
+        Map<String, FileDescriptor> files = new LinkedHashMap<>();
+        for (FileDescriptorProto fdp : set.getFileList()) {
+            buildFile(fdp.getName(), protos, files);
+        }
+
+        Map<Descriptor, DynamicSchema> byDescriptor = new LinkedHashMap<>();
+        for (FileDescriptor file : files.values()) {
+            for (Descriptor d : file.getMessageTypes()) {
+                addSchemas(d, byDescriptor, keyNameFn, enumValueFn);
+            }
+        }
+        Map<String, DynamicSchema> byName = new HashMap<>();
+        for (DynamicSchema schema : byDescriptor.values()) {
+            schema.link(byDescriptor);
+            byName.put(schema.getDescriptor().getFullName(), schema);
+        }
+        return new DynamicProtoMapper(byName);
+    }
+
+    private static FileDescriptor buildFile(String name, Map<String, FileDescriptorProto> protos,
+                                            Map<String, FileDescriptor> files) throws DescriptorValidationException {
+        FileDescriptor file = files.get(name);
+        if (file != null) {
+            return file;
+        }
+        FileDescriptorProto fdp = protos.get(name);
+        if (fdp == null) {
+            file = WELL_KNOWN_FILES.get(name);
+            if (file == null) {
+                throw new IllegalArgumentException("Missing dependency " + name + " in descriptor set");
+            }
+        } else {
+            FileDescriptor[] deps = new FileDescriptor[fdp.getDependencyCount()];
+            for (int i = 0; i < deps.length; i++) {
+                deps[i] = buildFile(fdp.getDependency(i), protos, files);
+            }
+            file = FileDescriptor.buildFrom(fdp, deps);
+        }
+        files.put(name, file);
+        return file;
+    }
+
+    private static void addSchemas(Descriptor d, Map<Descriptor, DynamicSchema> schemas, IFn keyNameFn, IFn enumValueFn) {
+        if (!d.getOptions().getMapEntry()) {
+            schemas.put(d, new DynamicSchema(d, keyNameFn, enumValueFn));
+        }
+        for (Descriptor nested : d.getNestedTypes()) {
+            addSchemas(nested, schemas, keyNameFn, enumValueFn);
+        }
+    }
+
+    /**
+     * Returns the full names of all message types loaded by this mapper.
+     */
+    public IPersistentSet getMessageTypes() {
+        return messageTypes;
+    }
+
+    public DynamicSchema getSchema(String messageType) {
+        DynamicSchema schema = schemas.get(messageType);
+        if (schema == null) {
+            throw new IllegalArgumentException(messageType + " is not loaded by mapper");
+        }
+        return schema;
+    }
+
+    public DynamicProtoMap getProto(String messageType) {
+        return getSchema(messageType).getProto();
+    }
+
+    public DynamicProtoMap fromBytes(String messageType, byte[] bytes) throws InvalidProtocolBufferException {
+        return getSchema(messageType).fromBytes(bytes);
+    }
+
+    public DynamicProtoMap fromCljMap(String messageType, Object map) {
+        return getSchema(messageType).fromCljMap(map);
+    }
+
+    public DynamicProtoMap fromMessage(Message message) {
+        return getSchema(message.getDescriptorForType().getFullName()).fromMessage(message);
+    }
+}
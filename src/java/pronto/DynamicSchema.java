@@ -0,0 +1,547 @@
+package pronto;
+
+import clojure.lang.RT;
+import clojure.lang.*;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumDescriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.OneofDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.ProtocolMessageEnum;
+
+import java.util.*;
+
+/**
+ * The precomputed layout of a message type, used by {@link DynamicProtoMap}.
+ * <p>
+ * Fields are resolved once, when the schema is built: every field gets a handle holding its keyword,
+ * descriptor and value conversions, indexed both by position and by keyword. A lookup is therefore a
+ * single hash lookup on an interned keyword followed by a field read, and never a search by name
+ * through the message descriptor.
+ **/
+public final class DynamicSchema {
+
+    private static final Keyword UNRECOGNIZED = Keyword.intern("UNRECOGNIZED");
+
+    private static final Set<String> WELL_KNOWN_TYPES = new HashSet<>(Arrays.asList(
+            "google.protobuf.DoubleValue", "google.protobuf.FloatValue",
+            "google.protobuf.Int64Value", "google.protobuf.UInt64Value",
+            "google.protobuf.Int32Value", "google.protobuf.UInt32Value",
+            "google.protobuf.BoolValue", "google.protobuf.StringValue",
+            "google.protobuf.BytesValue"));
+
+    private final Descriptor descriptor;
+    private final Field[] fields;
+    private final Map<Keyword, Field> fieldsByKey;
+    private final Map<Keyword, OneofDescriptor> oneofsByKey;
+    private final DynamicProtoMap empty;
+
+    DynamicSchema(Descriptor descriptor, IFn keyNameFn, IFn enumValueFn) {
+        this.descriptor = descriptor;
+        List<FieldDescriptor> fds = descriptor.getFields();
+        this.fields = new Field[fds.size()];
+        this.fieldsByKey = new HashMap<>();
+        for (int i = 0; i < fields.length; i++) {
+            FieldDescriptor fd = fds.get(i);
+            Field field = new Field(this, i, toKeyword(keyNameFn, fd.getName()), fd, enumValueFn);
+            fields[i] = field;
+            fieldsByKey.put(field.key, field);
+        }
+        this.oneofsByKey = new HashMap<>();
+        for (OneofDescriptor od : descriptor.getRealOneofs()) {
+            oneofsByKey.put(Keyword.intern(kebabCase(od.getName())), od);
+        }
+        this.empty = new DynamicProtoMap(this, DynamicMessage.getDefaultInstance(descriptor), null);
+    }
+
+    /**
+     * Resolves the schemas of message-typed fields, which may refer back to this schema.
+     */
+    void link(Map<Descriptor, DynamicSchema> schemas) {
+        for (Field field : fields) {
+            field.link(schemas);
+        }
+    }
+
+    private static Keyword toKeyword(IFn f, String name) {
+        Object k = f == null ? name : f.invoke(name);
+        return k instanceof Keyword ? (Keyword) k : Keyword.intern((String) k);
+    }
+
+    private static String kebabCase(String s) {
+        return s.toLowerCase().replace('_', '-');
+    }
+
+    public Descriptor getDescriptor() {
+        return descriptor;
+    }
+
+    public int getFieldCount() {
+        return fields.length;
+    }
+
+    Field fieldAt(int i) {
+        return fields[i];
+    }
+
+    Field field(Object key) {
+        return fieldsByKey.get(key);
+    }
+
+    Field fieldOrThrow(Object key) {
+        Field field = fieldsByKey.get(key);
+        if (field == null) {
+            throw new IllegalArgumentException("No such field " + key);
+        }
+        return field;
+    }
+
+    public DynamicProtoMap getProto() {
+        return empty;
+    }
+
+    public DynamicProtoMap fromBytes(byte[] bytes) throws InvalidProtocolBufferException {
+        return new DynamicProtoMap(this, DynamicMessage.parseFrom(descriptor, bytes), null);
+    }
+
+    public DynamicProtoMap fromMessage(Message message) {
+        return new DynamicProtoMap(this, toMessage(message), null);
+    }
+
+    public DynamicProtoMap fromCljMap(Object map) {
+        if (map instanceof DynamicProtoMap && ((DynamicProtoMap) map).getSchema() == this) {
+            return (DynamicProtoMap) map;
+        }
+        return new DynamicProtoMap(this, buildMessage(map), null);
+    }
+
+    private Message toMessage(Message message) {
+        if (message.getDescriptorForType() == descriptor) {
+            return message;
+        }
+        if (!message.getDescriptorForType().getFullName().equals(descriptor.getFullName())) {
+            throw new IllegalArgumentException(message.getDescriptorForType().getFullName() +
+                    " is not a " + descriptor.getFullName());
+        }
+        try {
+            // e.g, a generated message of the same type
+            return DynamicMessage.parseFrom(descriptor, message.toByteString());
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    Message buildMessage(Object map) {
+        Message.Builder builder = DynamicMessage.newBuilder(descriptor);
+        for (ISeq s = RT.seq(map); s != null; s = s.next()) {
+            Map.Entry e = (Map.Entry) s.first();
+            fieldOrThrow(e.getKey()).write(builder, e.getValue());
+        }
+        return builder.build();
+    }
+
+    IPersistentMap toCljMap(MessageOrBuilder message) {
+        Object[] kvs = new Object[fields.length * 2];
+        for (int i = 0; i < fields.length; i++) {
+            kvs[2 * i] = fields[i].key;
+            kvs[2 * i + 1] = fields[i].toClj(message);
+        }
+        return RT.mapUniqueKeys(kvs);
+    }
+
+    boolean hasField(MessageOrBuilder message, Object key) {
+        Field field = fieldOrThrow(key);
+        if (!field.nullable) {
+            throw new IllegalArgumentException("field " + key + " cannot be checked for field existence");
+        }
+        return message.hasField(field.fd);
+    }
+
+    Keyword whichOneOf(MessageOrBuilder message, Object key) {
+        OneofDescriptor od = oneofsByKey.get(key);
+        if (od == null) {
+            throw new IllegalArgumentException("Cannot check which one-of for " + key);
+        }
+        FieldDescriptor fd = message.getOneofFieldDescriptor(od);
+        return fd == null ? null : Keyword.intern(kebabCase(fd.getName()));
+    }
+
+    private static ExceptionInfo typeError(Descriptor descriptor, FieldDescriptor fd, Object expected, Object value) {
+        return new ExceptionInfo("Invalid type", RT.map(
+                Keyword.intern("class"), descriptor.getFullName(),
+                Keyword.intern("field"), fd.getName(),
+                Keyword.intern("expected-type"), expected,
+                Keyword.intern("value"), value));
+    }
+
+    /**
+     * A field of the schema, which also serves as the field's keyword lookup thunk.
+     */
+    static final class Field implements ILookupThunk {
+        final DynamicSchema schema;
+        final int index;
+        final Keyword key;
+        final FieldDescriptor fd;
+        final boolean nullable;
+        final boolean repeated;
+        final boolean map;
+        final ValueType type;
+        final ValueType keyType;
+        final FieldDescriptor keyFd;
+        final FieldDescriptor valFd;
+
+        Field(DynamicSchema schema, int index, Keyword key, FieldDescriptor fd, IFn enumValueFn) {
+            this.schema = schema;
+            this.index = index;
+            this.key = key;
+            this.fd = fd;
+            this.map = fd.isMapField();
+            this.repeated = fd.isRepeated() && !map;
+            this.nullable = !fd.isRepeated() && (fd.getJavaType() == FieldDescriptor.JavaType.MESSAGE || fd.hasOptionalKeyword());
+            if (map) {
+                Descriptor entry = fd.getMessageType();
+                this.keyFd = entry.findFieldByNumber(1);
+                this.valFd = entry.findFieldByNumber(2);
+                this.keyType = valueType(schema.descriptor, keyFd, enumValueFn);
+                this.type = valueType(schema.descriptor, valFd, enumValueFn);
+            } else {
+                this.keyFd = null;
+                this.valFd = null;
+                this.keyType = null;
+                this.type = valueType(schema.descriptor, fd, enumValueFn);
+            }
+        }
+
+        void link(Map<Descriptor, DynamicSchema> schemas) {
+            if (type instanceof MessageType) {
+                ((MessageType) type).schema = schemas.get(((MessageType) type).descriptor);
+            }
+        }
+
+        Object read(MessageOrBuilder message) {
+            if (map) {
+                List entries = (List) message.getField(fd);
+                ITransientMap m = PersistentArrayMap.EMPTY.asTransient();
+                for (Object o : entries) {
+                    Message entry = (Message) o;
+                    m = m.assoc(keyType.fromProto(entry.getField(keyFd)), type.fromProto(entry.getField(valFd)));
+                }
+                return m.persistent();
+            }
+            if (repeated) {
+                return new ProntoVector((List) message.getField(fd), ProntoVector.DEFAULT_LIST_FACTORY, type, null);
+            }
+            if (nullable && !message.hasField(fd)) {
+                return null;
+            }
+            return type.fromProto(message.getField(fd));
+        }
+
+        Object toClj(MessageOrBuilder message) {
+            if (map) {
+                List entries = (List) message.getField(fd);
+                ITransientMap m = PersistentArrayMap.EMPTY.asTransient();
+                for (Object o : entries) {
+                    Message entry = (Message) o;
+                    m = m.assoc(keyType.toClj(entry.getField(keyFd)), type.toClj(entry.getField(valFd)));
+                }
+                return m.persistent();
+            }
+            if (repeated) {
+                ITransientCollection v = PersistentVector.EMPTY.asTransient();
+                for (Object o : (List) message.getField(fd)) {
+                    v = v.conj(type.toClj(o));
+                }
+                return v.persistent();
+            }
+            if (nullable && !message.hasField(fd)) {
+                return null;
+            }
+            return type.toClj(message.getField(fd));
+        }
+
+        void write(Message.Builder builder, Object val) {
+            if (val == null) {
+                if (!nullable) {
+                    throw typeError(schema.descriptor, fd, type.expectedType(), null);
+                }
+                builder.clearField(fd);
+            } else if (map) {
+                builder.setField(fd, mapToProto(val));
+            } else if (repeated) {
+                builder.setField(fd, vectorToProto(val));
+            } else {
+                builder.setField(fd, type.toProto(val));
+            }
+        }
+
+        private List vectorToProto(Object val) {
+            if (val instanceof ProntoVector && ((ProntoVector) val).transformer == type) {
+                // items are already in their protobuf representation
+                ArrayList list = new ArrayList(((ProntoVector) val).count());
+                for (Iterator it = ((ProntoVector) val).iterator(); it.hasNext(); ) {
+                    list.add(it.next());
+                }
+                return list;
+            }
+            if (!(val instanceof Iterable || val instanceof ISeq || val == null)) {
+                throw typeError(schema.descriptor, fd, IPersistentVector.class, val);
+            }
+            ArrayList list = new ArrayList(RT.count(val));
+            for (ISeq s = RT.seq(val); s != null; s = s.next()) {
+                list.add(type.toProto(s.first()));
+            }
+            return list;
+        }
+
+        private List mapToProto(Object val) {
+            if (!(val instanceof Map || val instanceof IPersistentMap)) {
+                throw typeError(schema.descriptor, fd, IPersistentMap.class, val);
+            }
+            Descriptor entryDescriptor = fd.getMessageType();
+            ArrayList list = new ArrayList(RT.count(val));
+            for (ISeq s = RT.seq(val); s != null; s = s.next()) {
+                Map.Entry e = (Map.Entry) s.first();
+                list.add(DynamicMessage.newBuilder(entryDescriptor)
+                        .setField(keyFd, keyType.toProto(e.getKey()))
+                        .setField(valFd, type.toProto(e.getValue()))
+                        .build());
+            }
+            return list;
+        }
+
+        @Override
+        public Object get(Object target) {
+            if (target instanceof DynamicProtoMap && ((DynamicProtoMap) target).getSchema() == schema) {
+                return read(((DynamicProtoMap) target).getMessage());
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Converts values of a single (non-repeated) field type between their protobuf and Clojure representations.
+     */
+    abstract static class ValueType implements ProntoVector.Transformer {
+        final Descriptor container;
+        final FieldDescriptor fd;
+
+        ValueType(Descriptor container, FieldDescriptor fd) {
+            this.container = container;
+            this.fd = fd;
+        }
+
+        abstract Object expectedType();
+
+        Object toClj(Object item) {
+            return fromProto(item);
+        }
+
+        RuntimeException typeError(Object value) {
+            return DynamicSchema.typeError(container, fd, expectedType(), value);
+        }
+    }
+
+    private static ValueType valueType(Descriptor container, FieldDescriptor fd, IFn enumValueFn) {
+        switch (fd.getJavaType()) {
+            case ENUM:
+                return new EnumType(container, fd, enumValueFn);
+            case MESSAGE:
+                if (WELL_KNOWN_TYPES.contains(fd.getMessageType().getFullName())) {
+                    return new WellKnownType(container, fd);
+                }
+                return new MessageType(container, fd);
+            default:
+                return new ScalarType(container, fd);
+        }
+    }
+
+    static final class ScalarType extends ValueType {
+        private final FieldDescriptor.JavaType javaType;
+
+        ScalarType(Descriptor container, FieldDescriptor fd) {
+            super(container, fd);
+            this.javaType = fd.getJavaType();
+        }
+
+        @Override
+        Object expectedType() {
+            switch (javaType) {
+                case INT: return Integer.class;
+                case LONG: return Long.class;
+                case FLOAT: return Float.class;
+                case DOUBLE: return Double.class;
+                case BOOLEAN: return Boolean.class;
+                case STRING: return String.class;
+                default: return ByteString.class;
+            }
+        }
+
+        @Override
+        public Object fromProto(Object item) {
+            return item;
+        }
+
+        @Override
+        public Object toProto(Object item) {
+            // narrowing conversions are range checked, and throw like those of generated proto-maps
+            switch (javaType) {
+                case INT:
+                    if (item instanceof Integer) return item;
+                    if (item instanceof Number) return RT.intCast(item);
+                    break;
+                case LONG:
+                    if (item instanceof Long) return item;
+                    if (item instanceof Number) return RT.longCast(item);
+                    break;
+                case FLOAT:
+                    if (item instanceof Float) return item;
+                    if (item instanceof Number) return RT.floatCast(item);
+                    break;
+                case DOUBLE:
+                    if (item instanceof Double) return item;
+                    if (item instanceof Number) return ((Number) item).doubleValue();
+                    break;
+                case BOOLEAN:
+                    if (item instanceof Boolean) return item;
+                    break;
+                case STRING:
+                    if (item instanceof String) return item;
+                    break;
+                default:
+                    if (item instanceof ByteString) return item;
+                    break;
+            }
+            throw typeError(item);
+        }
+    }
+
+    static final class EnumType extends ValueType {
+        private final EnumDescriptor descriptor;
+        private final Keyword[] keywords;
+        private final Map<Keyword, EnumValueDescriptor> values;
+
+        EnumType(Descriptor container, FieldDescriptor fd, IFn enumValueFn) {
+            super(container, fd);
+            this.descriptor = fd.getEnumType();
+            List<EnumValueDescriptor> evds = descriptor.getValues();
+            this.keywords = new Keyword[evds.size()];
+            this.values = new HashMap<>();
+            for (int i = 0; i < keywords.length; i++) {
+                EnumValueDescriptor evd = evds.get(i);
+                keywords[i] = toKeyword(enumValueFn, evd.getName());
+                values.put(keywords[i], evd);
+            }
+        }
+
+        @Override
+        Object expectedType() {
+            return descriptor.getFullName();
+        }
+
+        @Override
+        public Object fromProto(Object item) {
+            EnumValueDescriptor evd = (EnumValueDescriptor) item;
+            // unknown values are not part of the descriptor's list of values
+            EnumValueDescriptor known = descriptor.findValueByNumber(evd.getNumber());
+            return known == null ? UNRECOGNIZED : keywords[known.getIndex()];
+        }
+
+        @Override
+        public Object toProto(Object item) {
+            if (item instanceof EnumValueDescriptor && ((EnumValueDescriptor) item).getType() == descriptor) {
+                return item;
+            }
+            if (item instanceof ProtocolMessageEnum) {
+                // e.g, a generated enum of the same type
+                EnumValueDescriptor evd = ((ProtocolMessageEnum) item).getValueDescriptor();
+                if (evd.getType().getFullName().equals(descriptor.getFullName())) {
+                    return descriptor.findValueByNumber(evd.getNumber());
+                }
+            }
+            EnumValueDescriptor evd = values.get(item);
+            if (evd == null) {
+                throw typeError(item);
+            }
+            return evd;
+        }
+    }
+
+    static final class MessageType extends ValueType {
+        final Descriptor descriptor;
+        DynamicSchema schema;
+
+        MessageType(Descriptor container, FieldDescriptor fd) {
+            super(container, fd);
+            this.descriptor = fd.getMessageType();
+        }
+
+        @Override
+        Object expectedType() {
+            return descriptor.getFullName();
+        }
+
+        @Override
+        public Object fromProto(Object item) {
+            return new DynamicProtoMap(schema, (Message) item, null);
+        }
+
+        @Override
+        Object toClj(Object item) {
+            return schema.toCljMap((Message) item);
+        }
+
+        @Override
+        public Object toProto(Object item) {
+            if (item instanceof DynamicProtoMap) {
+                DynamicProtoMap m = (DynamicProtoMap) item;
+                return m.getSchema() == schema ? m.getMessage() : schema.toMessage(m.getMessage());
+            }
+            if (item instanceof ProtoMap) {
+                return schema.toMessage(((ProtoMap) item).pmap_getProto());
+            }
+            if (item instanceof Message) {
+                return schema.toMessage((Message) item);
+            }
+            if (item instanceof Map || item instanceof IPersistentMap) {
+                return schema.buildMessage(item);
+            }
+            throw typeError(item);
+        }
+    }
+
+    static final class WellKnownType extends ValueType {
+        private final Descriptor descriptor;
+        private final FieldDescriptor valueFd;
+        private final ScalarType valueType;
+
+        WellKnownType(Descriptor container, FieldDescriptor fd) {
+            super(container, fd);
+            this.descriptor = fd.getMessageType();
+            this.valueFd = descriptor.findFieldByName("value");
+            this.valueType = new ScalarType(descriptor, valueFd);
+        }
+
+        @Override
+        Object expectedType() {
+            return valueType.expectedType();
+        }
+
+        @Override
+        public Object fromProto(Object item) {
+            return ((Message) item).getField(valueFd);
+        }
+
+        @Override
+        public Object toProto(Object item) {
+            return DynamicMessage.newBuilder(descriptor)
+                    .setField(valueFd, valueType.toProto(item))
+                    .build();
+        }
+    }
+}
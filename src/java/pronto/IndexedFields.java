@@ -0,0 +1,22 @@
+package pronto;
+
+import clojure.lang.Keyword;
+
+/**
+ * Positional access to the fields of a generated proto-map, in schema order.
+ * <p>
+ * Allows iterating and reducing over a proto-map one field at a time, without
+ * computing the values of fields that are never reached.
+ **/
+public interface IndexedFields {
+    int pmap_fieldCount();
+
+    Keyword pmap_fieldKey(int i);
+
+    Object pmap_fieldVal(int i);
+
+    /**
+     * Returns true iff the i-th field is not set, or holds its default value.
+     */
+    boolean pmap_isDefault(int i);
+}
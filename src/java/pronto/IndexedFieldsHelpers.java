@@ -0,0 +1,122 @@
+package pronto;
+
+import clojure.lang.*;
+import clojure.lang.RT;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class IndexedFieldsHelpers {
+
+    private static int nextIndex(IndexedFields m, int i, boolean skipDefaults) {
+        int n = m.pmap_fieldCount();
+        if (skipDefaults) {
+            while (i < n && m.pmap_isDefault(i)) {
+                i++;
+            }
+        }
+        return i;
+    }
+
+    private static IMapEntry entry(IndexedFields m, int i) {
+        return MapEntry.create(m.pmap_fieldKey(i), m.pmap_fieldVal(i));
+    }
+
+    public static ISeq seq(IndexedFields m, boolean skipDefaults) {
+        int i = nextIndex(m, 0, skipDefaults);
+        return i < m.pmap_fieldCount() ? new Seq(m, i, skipDefaults, null) : null;
+    }
+
+    public static Iterator iterator(IndexedFields m, boolean skipDefaults) {
+        return new Iterator() {
+            private int i = nextIndex(m, 0, skipDefaults);
+
+            @Override
+            public boolean hasNext() {
+                return i < m.pmap_fieldCount();
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                IMapEntry e = entry(m, i);
+                i = nextIndex(m, i + 1, skipDefaults);
+                return e;
+            }
+        };
+    }
+
+    public static Object reduce(IndexedFields m, IFn f, Object init, boolean skipDefaults) {
+        int n = m.pmap_fieldCount();
+        for (int i = nextIndex(m, 0, skipDefaults); i < n; i = nextIndex(m, i + 1, skipDefaults)) {
+            init = f.invoke(init, entry(m, i));
+            if (RT.isReduced(init)) {
+                return ((IDeref) init).deref();
+            }
+        }
+        return init;
+    }
+
+    public static Object kvreduce(IndexedFields m, IFn f, Object init, boolean skipDefaults) {
+        int n = m.pmap_fieldCount();
+        for (int i = nextIndex(m, 0, skipDefaults); i < n; i = nextIndex(m, i + 1, skipDefaults)) {
+            init = f.invoke(init, m.pmap_fieldKey(i), m.pmap_fieldVal(i));
+            if (RT.isReduced(init)) {
+                return ((IDeref) init).deref();
+            }
+        }
+        return init;
+    }
+
+    /**
+     * A lazy seq of map entries, each computed when its node is reached.
+     */
+    static final class Seq extends ASeq {
+        private static final Object UNREALIZED = new Object();
+
+        private final IndexedFields m;
+        private final int i;
+        private final boolean skipDefaults;
+        private final Object first;
+        private volatile Object next = UNREALIZED;
+
+        Seq(IndexedFields m, int i, boolean skipDefaults, IPersistentMap meta) {
+            super(meta);
+            this.m = m;
+            this.i = i;
+            this.skipDefaults = skipDefaults;
+            this.first = entry(m, i);
+        }
+
+        private Seq(IndexedFields m, int i, boolean skipDefaults, Object first, IPersistentMap meta) {
+            super(meta);
+            this.m = m;
+            this.i = i;
+            this.skipDefaults = skipDefaults;
+            this.first = first;
+        }
+
+        @Override
+        public Object first() {
+            return first;
+        }
+
+        @Override
+        public ISeq next() {
+            Object n = next;
+            if (n == UNREALIZED) {
+                int j = nextIndex(m, i + 1, skipDefaults);
+                n = j < m.pmap_fieldCount() ? new Seq(m, j, skipDefaults, null) : null;
+                next = n;
+            }
+            return (ISeq) n;
+        }
+
+        @Override
+        public Obj withMeta(IPersistentMap meta) {
+            return meta() == meta ? this : new Seq(m, i, skipDefaults, first, meta);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package pronto;
+
+import clojure.lang.BigInt;
+import clojure.lang.ITransientCollection;
+import clojure.lang.ITransientMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+import clojure.lang.PersistentVector;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Reads JSON text token by token, on behalf of the JSON readers generated for proto-maps (see `:json?`).
+ * <p>
+ * The text is read from a string, or through a char buffer which is refilled from a `Reader`, so messages
+ * are parsed as they are read. Values are read as the type of the field they are read into, so an object
+ * is read as {@link #beginObject()}, then a name and a value while {@link #hasNext()}, and {@link #endObject()}.
+ * Malformed text, and values which do not fit their field, throw an `IllegalArgumentException`.
+ **/
+public final class JsonReader {
+
+    private final Reader in;
+    private char[] buf;
+    private int pos;
+    private int limit;
+    // the number of chars read before `buf[0]`, for error messages
+    private long offset;
+    // whether the next member or element is the first of its object or array, and is not preceded by a comma
+    private boolean first;
+
+    public JsonReader(Reader in) {
+        this.in = in;
+        this.buf = new char[8192];
+    }
+
+    public JsonReader(String s) {
+        this.in = null;
+        this.buf = s.toCharArray();
+        this.limit = buf.length;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + (offset + pos));
+    }
+
+    /**
+     * Reads more chars into the buffer, keeping those from `start` on, which are moved to its beginning.
+     * Returns false at the end of input.
+     */
+    private boolean refill(int start) {
+        if (in == null) {
+            return false;
+        }
+        int kept = limit - start;
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, kept);
+        } else if (kept == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        offset += start;
+        pos -= start;
+        limit = kept;
+        try {
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n <= 0) {
+                return false;
+            }
+            limit += n;
+            return true;
+        } catch (IOException e) {
+            throw clojure.lang.Util.sneakyThrow(e);
+        }
+    }
+
+    private int peekChar() {
+        while (true) {
+            if (pos == limit && !refill(pos)) {
+                return -1;
+            }
+            char c = buf[pos];
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                pos++;
+            } else {
+                return c;
+            }
+        }
+    }
+
+    private char nextChar() {
+        if (pos == limit && !refill(pos)) {
+            throw error("Unexpected end of input");
+        }
+        return buf[pos++];
+    }
+
+    private void expect(char c) {
+        int next = peekChar();
+        if (next != c) {
+            throw error(next == -1 ? "Unexpected end of input" : "Expected '" + c + "' but found '" + (char) next + "'");
+        }
+        pos++;
+    }
+
+    private void expectLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (nextChar() != literal.charAt(i)) {
+                throw error("Expected " + literal);
+            }
+        }
+    }
+
+    /**
+     * Returns true iff there is nothing but whitespace left to read.
+     */
+    public boolean isAtEnd() {
+        return peekChar() == -1;
+    }
+
+    public void beginObject() {
+        expect('{');
+        first = true;
+    }
+
+    public void endObject() {
+        expect('}');
+        first = false;
+    }
+
+    public void beginArray() {
+        expect('[');
+        first = true;
+    }
+
+    public void endArray() {
+        expect(']');
+        first = false;
+    }
+
+    /**
+     * Returns true iff the current object or array has another member or element, consuming the comma before it.
+     */
+    public boolean hasNext() {
+        int c = peekChar();
+        if (c == '}' || c == ']') {
+            return false;
+        }
+        if (!first) {
+            expect(',');
+        }
+        first = false;
+        return true;
+    }
+
+    public String nextName() {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Consumes a null and returns true if it is the next value, and returns false otherwise.
+     */
+    public boolean nextNull() {
+        if (peekChar() == 'n') {
+            expectLiteral("null");
+            return true;
+        }
+        return false;
+    }
+
+    public boolean peekString() {
+        return peekChar() == '"';
+    }
+
+    public String nextString() {
+        expect('"');
+        int start = pos;
+        StringBuilder sb = null;
+        while (true) {
+            if (pos == limit) {
+                if (sb == null) {
+                    sb = new StringBuilder();
+                }
+                sb.append(buf, start, pos - start);
+                if (!refill(pos)) {
+                    throw error("Unterminated string");
+                }
+                start = pos;
+                continue;
+            }
+            char c = buf[pos++];
+            if (c == '"') {
+                if (sb == null) {
+                    return new String(buf, start, pos - 1 - start);
+                }
+                return sb.append(buf, start, pos - 1 - start).toString();
+            }
+            if (c == '\\') {
+                if (sb == null) {
+                    sb = new StringBuilder();
+                }
+                sb.append(buf, start, pos - 1 - start).append(nextEscaped());
+                start = pos;
+            } else if (c < 0x20) {
+                throw error("Unescaped control character in string");
+            }
+        }
+    }
+
+    private char nextEscaped() {
+        char c = nextChar();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(nextChar(), 16);
+                    if (digit < 0) {
+                        throw error("Invalid unicode escape");
+                    }
+                    code = (code << 4) | digit;
+                }
+                return (char) code;
+            default:
+                throw error("Invalid escape '\\" + c + "'");
+        }
+    }
+
+    /**
+     * Skips a number, moving `pos` past it, and returns its start.
+     */
+    private int skipNumber() {
+        int start = pos;
+        while (true) {
+            if (pos == limit) {
+                int length = pos - start;
+                if (!refill(start)) {
+                    break;
+                }
+                start = pos - length;
+                continue;
+            }
+            char c = buf[pos];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (pos == start) {
+            throw error("Expected a number");
+        }
+        return start;
+    }
+
+    private String nextNumberToken() {
+        if (peekChar() == '"') {
+            return nextString();
+        }
+        int start = skipNumber();
+        return new String(buf, start, pos - start);
+    }
+
+    /**
+     * Reads an integer, which may also be quoted as a string.
+     */
+    public long nextLong() {
+        if (peekChar() != '"') {
+            // plain integers are parsed in place
+            int start = skipNumber();
+            int i = start;
+            boolean negative = buf[i] == '-';
+            if (negative) {
+                i++;
+            }
+            int digits = pos - i;
+            if (digits > 0 && digits <= 18) {
+                long v = 0;
+                for (; i < pos; i++) {
+                    char c = buf[i];
+                    if (c < '0' || c > '9') {
+                        break;
+                    }
+                    v = v * 10 + (c - '0');
+                }
+                if (i == pos) {
+                    return negative ? -v : v;
+                }
+            }
+            return parseLong(new String(buf, start, pos - start));
+        }
+        return parseLong(nextString());
+    }
+
+    private long parseLong(String s) {
+        try {
+            return new BigDecimal(s).longValueExact();
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw error("Invalid 64-bit integer " + s);
+        }
+    }
+
+    public int nextInt() {
+        long v = nextLong();
+        if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+            throw error("Invalid 32-bit integer " + v);
+        }
+        return (int) v;
+    }
+
+    /**
+     * Reads a number, which may also be quoted as a string, as may "NaN", "Infinity" and "-Infinity".
+     */
+    public double nextDouble() {
+        String s = nextNumberToken();
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number " + s);
+        }
+    }
+
+    public float nextFloat() {
+        return (float) nextDouble();
+    }
+
+    public boolean nextBoolean() {
+        int c = peekChar();
+        if (c == 't') {
+            expectLiteral("true");
+            return true;
+        }
+        if (c == 'f') {
+            expectLiteral("false");
+            return false;
+        }
+        throw error("Expected a boolean");
+    }
+
+    /**
+     * Reads a base64 string (standard or URL-safe) into a `ByteString`.
+     */
+    public ByteString nextBytes() {
+        String s = nextString();
+        byte[] bytes;
+        try {
+            bytes = s.indexOf('-') >= 0 || s.indexOf('_') >= 0
+                    ? Base64.getUrlDecoder().decode(s)
+                    : Base64.getDecoder().decode(s);
+        } catch (IllegalArgumentException e) {
+            throw error("Invalid base64 string");
+        }
+        // the array is not shared, so it need not be copied
+        return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+
+    /**
+     * Reads any value as Clojure data: objects as maps of keywords, arrays as vectors, integers as longs
+     * (or big integers), and other numbers as doubles.
+     */
+    public Object nextValue() {
+        switch (peekChar()) {
+            case '{': {
+                beginObject();
+                ITransientMap m = PersistentArrayMap.EMPTY.asTransient();
+                while (hasNext()) {
+                    Keyword k = Keyword.intern(nextName());
+                    m = m.assoc(k, nextValue());
+                }
+                endObject();
+                return m.persistent();
+            }
+            case '[': {
+                beginArray();
+                ITransientCollection v = PersistentVector.EMPTY.asTransient();
+                while (hasNext()) {
+                    v = v.conj(nextValue());
+                }
+                endArray();
+                return v.persistent();
+            }
+            case '"':
+                return nextString();
+            case 't':
+            case 'f':
+                return nextBoolean();
+            case 'n':
+                nextNull();
+                return null;
+            case -1:
+                throw error("Unexpected end of input");
+            default:
+                String s = nextNumberToken();
+                try {
+                    if (s.indexOf('.') >= 0 || s.indexOf('e') >= 0 || s.indexOf('E') >= 0) {
+                        return Double.parseDouble(s);
+                    }
+                    BigInteger n = new BigInteger(s);
+                    return n.bitLength() < 64 ? (Object) n.longValue() : BigInt.fromBigInteger(n);
+                } catch (NumberFormatException e) {
+                    throw error("Invalid number " + s);
+                }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package pronto;
+
+/**
+ * A proto-map which can be written as JSON by code generated for its class (see `:json?`).
+ **/
+public interface JsonWritable {
+
+    /**
+     * Writes this proto-map as a JSON object to `writer`.
+     */
+    void pmap_writeJson(JsonWriter writer);
+}
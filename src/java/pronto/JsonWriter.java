@@ -0,0 +1,337 @@
+package pronto;
+
+import clojure.lang.Named;
+import clojure.lang.Ratio;
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * Writes JSON text, on behalf of the JSON writers generated for proto-maps (see `:json?`).
+ * <p>
+ * Text is written into a char buffer which is flushed to the underlying `Writer` when full and on {@link #flush()},
+ * or kept in full when there is none (see {@link #toString()}). Commas are written as needed, so an object
+ * is written as {@link #beginObject()}, a name and a value per field, and {@link #endObject()}.
+ * Field names and enum values known in advance are quoted once, when the writer is generated
+ * (see {@link #quoteName(String)} and {@link #quote(String)}).
+ **/
+public final class JsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Writer out;
+    private char[] buf;
+    private int pos;
+    // whether a value was just written at the current level, so the next one is preceded by a comma
+    private boolean separate;
+
+    public JsonWriter(Writer out) {
+        this.out = out;
+        this.buf = new char[8192];
+    }
+
+    /**
+     * Returns a writer which keeps all the text it is written, see {@link #toString()}.
+     */
+    public JsonWriter() {
+        this.out = null;
+        this.buf = new char[256];
+    }
+
+    /**
+     * Returns `s` as a JSON string, quoted and escaped.
+     */
+    public static String quote(String s) {
+        JsonWriter w = new JsonWriter();
+        w.quoted(s);
+        return w.toString();
+    }
+
+    /**
+     * Returns `name` as an object member name, quoted, escaped and followed by a colon,
+     * to be written via {@link #writeRawName(String)}.
+     */
+    public static String quoteName(String name) {
+        return quote(name) + ":";
+    }
+
+    private void ensure(int n) {
+        if (pos + n > buf.length) {
+            if (out != null && pos > 0) {
+                flushBuffer();
+            }
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(pos + n, buf.length * 2));
+            }
+        }
+    }
+
+    private void flushBuffer() {
+        try {
+            out.write(buf, 0, pos);
+        } catch (IOException e) {
+            throw clojure.lang.Util.sneakyThrow(e);
+        }
+        pos = 0;
+    }
+
+    private void beforeValue() {
+        if (separate) {
+            ensure(1);
+            buf[pos++] = ',';
+        }
+    }
+
+    private void raw(String s) {
+        int n = s.length();
+        ensure(n);
+        s.getChars(0, n, buf, pos);
+        pos += n;
+    }
+
+    private void quoted(String s) {
+        int n = s.length();
+        ensure(n + 2);
+        buf[pos++] = '"';
+        // there is room left for the rest of the string and the closing quote, unless escaping
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                buf[pos++] = c;
+            } else {
+                ensure(6 + n - i);
+                escape(c);
+            }
+        }
+        buf[pos++] = '"';
+    }
+
+    private void escape(char c) {
+        buf[pos++] = '\\';
+        switch (c) {
+            case '"':
+            case '\\':
+                buf[pos++] = c;
+                break;
+            case '\n':
+                buf[pos++] = 'n';
+                break;
+            case '\r':
+                buf[pos++] = 'r';
+                break;
+            case '\t':
+                buf[pos++] = 't';
+                break;
+            case '\b':
+                buf[pos++] = 'b';
+                break;
+            case '\f':
+                buf[pos++] = 'f';
+                break;
+            default:
+                buf[pos++] = 'u';
+                buf[pos++] = '0';
+                buf[pos++] = '0';
+                buf[pos++] = HEX[c >> 4];
+                buf[pos++] = HEX[c & 0xf];
+        }
+    }
+
+    public void beginObject() {
+        beforeValue();
+        ensure(1);
+        buf[pos++] = '{';
+        separate = false;
+    }
+
+    public void endObject() {
+        ensure(1);
+        buf[pos++] = '}';
+        separate = true;
+    }
+
+    public void beginArray() {
+        beforeValue();
+        ensure(1);
+        buf[pos++] = '[';
+        separate = false;
+    }
+
+    public void endArray() {
+        ensure(1);
+        buf[pos++] = ']';
+        separate = true;
+    }
+
+    public void writeName(String name) {
+        beforeValue();
+        quoted(name);
+        ensure(1);
+        buf[pos++] = ':';
+        separate = false;
+    }
+
+    /**
+     * Writes a member name as returned by {@link #quoteName(String)}.
+     */
+    public void writeRawName(String quotedName) {
+        beforeValue();
+        raw(quotedName);
+        separate = false;
+    }
+
+    /**
+     * Writes a value which is already valid JSON, e.g a string returned by {@link #quote(String)}.
+     */
+    public void writeRawValue(String json) {
+        beforeValue();
+        raw(json);
+        separate = true;
+    }
+
+    public void writeString(String s) {
+        beforeValue();
+        quoted(s);
+        separate = true;
+    }
+
+    public void writeLong(long v) {
+        beforeValue();
+        if (v == Long.MIN_VALUE) {
+            raw("-9223372036854775808");
+        } else {
+            ensure(20);
+            if (v < 0) {
+                buf[pos++] = '-';
+                v = -v;
+            }
+            int digits = 1;
+            for (long x = v; x >= 10; x /= 10) {
+                digits++;
+            }
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                buf[i] = (char) ('0' + (v % 10));
+                v /= 10;
+            }
+            pos += digits;
+        }
+        separate = true;
+    }
+
+    /**
+     * Writes `v`, or a string for values which JSON numbers cannot represent ("NaN", "Infinity" and "-Infinity").
+     */
+    public void writeDouble(double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            writeString(Double.toString(v));
+        } else {
+            writeRawValue(Double.toString(v));
+        }
+    }
+
+    public void writeFloat(float v) {
+        if (Float.isNaN(v) || Float.isInfinite(v)) {
+            writeString(Float.toString(v));
+        } else {
+            writeRawValue(Float.toString(v));
+        }
+    }
+
+    public void writeBoolean(boolean v) {
+        writeRawValue(v ? "true" : "false");
+    }
+
+    public void writeNull() {
+        writeRawValue("null");
+    }
+
+    /**
+     * Writes `bytes` as a base64 string.
+     */
+    public void writeBytes(ByteString bytes) {
+        beforeValue();
+        byte[] encoded = Base64.getEncoder().encode(bytes.toByteArray());
+        ensure(encoded.length + 2);
+        buf[pos++] = '"';
+        for (byte b : encoded) {
+            buf[pos++] = (char) b;
+        }
+        buf[pos++] = '"';
+        separate = true;
+    }
+
+    /**
+     * Writes `v`, a value of a field read as Clojure data (e.g, by an encoder): maps are written as objects,
+     * keywords by their name, collections as arrays, bytes as base64 strings, proto-maps by the writers generated
+     * for them, and other values which are not JSON values are written as strings.
+     */
+    public void writeValue(Object v) {
+        if (v == null) {
+            writeNull();
+        } else if (v instanceof String) {
+            writeString((String) v);
+        } else if (v instanceof Boolean) {
+            writeBoolean((Boolean) v);
+        } else if (v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte) {
+            writeLong(((Number) v).longValue());
+        } else if (v instanceof Double || v instanceof Ratio) {
+            writeDouble(((Number) v).doubleValue());
+        } else if (v instanceof Float) {
+            writeFloat((Float) v);
+        } else if (v instanceof Number) {
+            writeRawValue(v.toString());
+        } else if (v instanceof Named) {
+            writeString(name((Named) v));
+        } else if (v instanceof ByteString) {
+            writeBytes((ByteString) v);
+        } else if (v instanceof byte[]) {
+            writeBytes(ByteString.copyFrom((byte[]) v));
+        } else if (v instanceof JsonWritable) {
+            ((JsonWritable) v).pmap_writeJson(this);
+        } else if (v instanceof Map) {
+            beginObject();
+            for (Object o : ((Map<?, ?>) v).entrySet()) {
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+                Object k = e.getKey();
+                writeName(k instanceof Named ? name((Named) k) : String.valueOf(k));
+                writeValue(e.getValue());
+            }
+            endObject();
+        } else if (v instanceof Iterable) {
+            beginArray();
+            for (Object x : (Iterable<?>) v) {
+                writeValue(x);
+            }
+            endArray();
+        } else {
+            writeString(v.toString());
+        }
+    }
+
+    private static String name(Named n) {
+        String ns = n.getNamespace();
+        return ns == null ? n.getName() : ns + "/" + n.getName();
+    }
+
+    /**
+     * Writes the buffered text to the underlying `Writer`, and flushes it.
+     */
+    public void flush() throws IOException {
+        if (out != null) {
+            flushBuffer();
+            out.flush();
+        }
+    }
+
+    /**
+     * Returns the text written so far, when there is no underlying `Writer`.
+     */
+    @Override
+    public String toString() {
+        return new String(buf, 0, pos);
+    }
+}
@@ -0,0 +1,44 @@
+package pronto;
+
+import clojure.lang.IFn;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Holds the per-class delegates of a mapper defined with `:lazy? true`.
+ * <p>
+ * The delegate of a class, along with the proto-map classes it depends on, is only generated
+ * the first time the class is used through the mapper. Generation happens at most once per class,
+ * under a lock shared by all classes of the mapper, since classes generated for one class may be
+ * shared by another.
+ **/
+public final class LazyDelegates {
+
+    private final AtomicReferenceArray<Object> delegates;
+    private final IFn loader;
+
+    /**
+     * `loader` is called with the index of a class and the mapper, and returns the class' delegate.
+     */
+    public LazyDelegates(int count, IFn loader) {
+        this.delegates = new AtomicReferenceArray<>(count);
+        this.loader = loader;
+    }
+
+    public Object get(int i, Object mapper) {
+        Object delegate = delegates.get(i);
+        if (delegate != null) {
+            return delegate;
+        }
+        return load(i, mapper);
+    }
+
+    private synchronized Object load(int i, Object mapper) {
+        Object delegate = delegates.get(i);
+        if (delegate == null) {
+            delegate = loader.invoke(i, mapper);
+            delegates.set(i, delegate);
+        }
+        return delegate;
+    }
+}
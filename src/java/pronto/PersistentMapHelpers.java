@@ -33,6 +33,24 @@ public class PersistentMapHelpers {
         return ret;
     }
 
+    /**
+     * Like `cons`, but applies all the entries of `o` to a single transient of `map`,
+     * so a proto-map is only built once rather than once per entry.
+     */
+    public static IPersistentCollection consAll(IPersistentMap map, Object o) {
+        if (o instanceof Map.Entry || o instanceof IPersistentVector) {
+            return cons(map, o);
+        }
+        if (o == null || (o instanceof Map && ((Map) o).isEmpty())) {
+            return map;
+        }
+
+        ITransientMap t = (ITransientMap) ((IEditableCollection) map).asTransient();
+        IPersistentMap ret = TransientMapHelpers.conj(t, o).persistent();
+        IPersistentMap meta = ((IMeta) map).meta();
+        return meta == null ? ret : (IPersistentMap) ((IObj) ret).withMeta(meta);
+    }
+
     public static boolean equals(IPersistentMap map, Object obj) {
         return mapEquals(map, obj);
     }
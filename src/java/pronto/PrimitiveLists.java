@@ -0,0 +1,77 @@
+package pronto;
+
+import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.Internal;
+
+import java.util.List;
+
+/**
+ * Creates the primitive lists protobuf uses to store repeated scalar fields.
+ * <p>
+ * Extends `GeneratedMessageV3` only to gain access to its (protected) list factories.
+ **/
+abstract class PrimitiveLists extends GeneratedMessageV3 {
+
+    private PrimitiveLists() {
+    }
+
+    static Internal.IntList copyInts(List list, int capacityDiff) {
+        int capacity = list.size() + capacityDiff;
+        if (list instanceof Internal.IntList) {
+            return ((Internal.IntList) list).mutableCopyWithCapacity(capacity);
+        }
+        Internal.IntList copy = emptyIntList().mutableCopyWithCapacity(capacity);
+        for (Object o : list) {
+            copy.addInt((Integer) o);
+        }
+        return copy;
+    }
+
+    static Internal.LongList copyLongs(List list, int capacityDiff) {
+        int capacity = list.size() + capacityDiff;
+        if (list instanceof Internal.LongList) {
+            return ((Internal.LongList) list).mutableCopyWithCapacity(capacity);
+        }
+        Internal.LongList copy = emptyLongList().mutableCopyWithCapacity(capacity);
+        for (Object o : list) {
+            copy.addLong((Long) o);
+        }
+        return copy;
+    }
+
+    static Internal.DoubleList copyDoubles(List list, int capacityDiff) {
+        int capacity = list.size() + capacityDiff;
+        if (list instanceof Internal.DoubleList) {
+            return ((Internal.DoubleList) list).mutableCopyWithCapacity(capacity);
+        }
+        Internal.DoubleList copy = emptyDoubleList().mutableCopyWithCapacity(capacity);
+        for (Object o : list) {
+            copy.addDouble((Double) o);
+        }
+        return copy;
+    }
+
+    static Internal.FloatList copyFloats(List list, int capacityDiff) {
+        int capacity = list.size() + capacityDiff;
+        if (list instanceof Internal.FloatList) {
+            return ((Internal.FloatList) list).mutableCopyWithCapacity(capacity);
+        }
+        Internal.FloatList copy = emptyFloatList().mutableCopyWithCapacity(capacity);
+        for (Object o : list) {
+            copy.addFloat((Float) o);
+        }
+        return copy;
+    }
+
+    static Internal.BooleanList copyBooleans(List list, int capacityDiff) {
+        int capacity = list.size() + capacityDiff;
+        if (list instanceof Internal.BooleanList) {
+            return ((Internal.BooleanList) list).mutableCopyWithCapacity(capacity);
+        }
+        Internal.BooleanList copy = emptyBooleanList().mutableCopyWithCapacity(capacity);
+        for (Object o : list) {
+            copy.addBoolean((Boolean) o);
+        }
+        return copy;
+    }
+}
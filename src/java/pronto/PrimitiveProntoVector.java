@@ -0,0 +1,365 @@
+package pronto;
+
+import clojure.lang.*;
+import clojure.lang.RT;
+import com.google.protobuf.Internal;
+
+import java.util.List;
+
+/**
+ * A `ProntoVector` over a repeated scalar field of a primitive type.
+ * <p>
+ * Reads go straight through the primitive list protobuf stores the field in (`Internal.IntList` etc.),
+ * copies are made into such lists, and reductions invoke primitive functions (e.g, `IFn$OLO`, `IFn$ODO`)
+ * without boxing.
+ **/
+public abstract class PrimitiveProntoVector extends ProntoVector {
+
+    private static final int CHUNK_SIZE = 32;
+
+    protected PrimitiveProntoVector(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                                    ListFactory factory, Transformer transformer, Writer writer, IPersistentMap meta) {
+        super(base, baseCount, overlay, tail, factory, transformer, writer, meta);
+    }
+
+    /**
+     * Returns the boxed item at `i`, which may be in the tail.
+     */
+    protected abstract Object boxed(int i);
+
+    /**
+     * Reduces over items [start, end) of the base list.
+     */
+    protected abstract Object reduceBase(IFn f, Object init, int start, int end);
+
+    @Override
+    public Object nth(int i) {
+        if (i < 0 || i >= count()) {
+            throw new IndexOutOfBoundsException();
+        }
+        return boxed(i);
+    }
+
+    @Override
+    public Object reduce(IFn f, Object init) {
+        init = reduceBase(f, init, 0, baseCount);
+        if (RT.isReduced(init)) {
+            return ((IDeref) init).deref();
+        }
+        for (int i = 0; i < tail.count(); i++) {
+            init = f.invoke(init, tail.nth(i));
+            if (RT.isReduced(init)) {
+                return ((IDeref) init).deref();
+            }
+        }
+        return init;
+    }
+
+    @Override
+    public ISeq seq() {
+        return chunkedSeq(0);
+    }
+
+    private ISeq chunkedSeq(int start) {
+        int count = count();
+        if (start >= count) {
+            return null;
+        }
+        int end = Math.min(start + CHUNK_SIZE, count);
+        Object[] items = new Object[end - start];
+        for (int i = start; i < end; i++) {
+            items[i - start] = boxed(i);
+        }
+        return new ChunkedCons(new ArrayChunk(items), new LazySeq(new AFn() {
+            @Override
+            public Object invoke() {
+                return chunkedSeq(end);
+            }
+        }));
+    }
+
+    public static final class Ints extends PrimitiveProntoVector {
+        public static final ListFactory LIST_FACTORY = PrimitiveLists::copyInts;
+
+        private final Internal.IntList ints;
+
+        public Ints(List base, Transformer transformer, IPersistentMap meta) {
+            this(base, transformer, null, meta);
+        }
+
+        public Ints(List base, Transformer transformer, Writer writer, IPersistentMap meta) {
+            this(base, base.size(), PersistentHashMap.EMPTY, PersistentVector.EMPTY, transformer, writer, meta);
+        }
+
+        private Ints(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                     Transformer transformer, Writer writer, IPersistentMap meta) {
+            super(base, baseCount, overlay, tail, LIST_FACTORY, transformer, writer, meta);
+            this.ints = base instanceof Internal.IntList ? (Internal.IntList) base : null;
+        }
+
+        @Override
+        protected ProntoVector create(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                                      Writer writer, IPersistentMap meta) {
+            return new Ints(base, baseCount, overlay, tail, transformer, writer, meta);
+        }
+
+        public int getInt(int i) {
+            if (i < baseCount) {
+                return ints != null && isBaseIntact() ? ints.getInt(i) : (Integer) baseNth(i);
+            }
+            return (Integer) tail.nth(tailIndex(i));
+        }
+
+        @Override
+        protected Object boxed(int i) {
+            return getInt(i);
+        }
+
+        @Override
+        protected Object reduceBase(IFn f, Object init, int start, int end) {
+            if (ints != null && isBaseIntact() && f instanceof IFn.OLO) {
+                IFn.OLO g = (IFn.OLO) f;
+                for (int i = start; i < end; i++) {
+                    init = g.invokePrim(init, ints.getInt(i));
+                    if (RT.isReduced(init)) {
+                        return init;
+                    }
+                }
+                return init;
+            }
+            for (int i = start; i < end; i++) {
+                init = f.invoke(init, getInt(i));
+                if (RT.isReduced(init)) {
+                    return init;
+                }
+            }
+            return init;
+        }
+    }
+
+    public static final class Longs extends PrimitiveProntoVector {
+        public static final ListFactory LIST_FACTORY = PrimitiveLists::copyLongs;
+
+        private final Internal.LongList longs;
+
+        public Longs(List base, Transformer transformer, IPersistentMap meta) {
+            this(base, transformer, null, meta);
+        }
+
+        public Longs(List base, Transformer transformer, Writer writer, IPersistentMap meta) {
+            this(base, base.size(), PersistentHashMap.EMPTY, PersistentVector.EMPTY, transformer, writer, meta);
+        }
+
+        private Longs(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                     Transformer transformer, Writer writer, IPersistentMap meta) {
+            super(base, baseCount, overlay, tail, LIST_FACTORY, transformer, writer, meta);
+            this.longs = base instanceof Internal.LongList ? (Internal.LongList) base : null;
+        }
+
+        @Override
+        protected ProntoVector create(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                                      Writer writer, IPersistentMap meta) {
+            return new Longs(base, baseCount, overlay, tail, transformer, writer, meta);
+        }
+
+        public long getLong(int i) {
+            if (i < baseCount) {
+                return longs != null && isBaseIntact() ? longs.getLong(i) : (Long) baseNth(i);
+            }
+            return (Long) tail.nth(tailIndex(i));
+        }
+
+        @Override
+        protected Object boxed(int i) {
+            return getLong(i);
+        }
+
+        @Override
+        protected Object reduceBase(IFn f, Object init, int start, int end) {
+            if (longs != null && isBaseIntact() && f instanceof IFn.OLO) {
+                IFn.OLO g = (IFn.OLO) f;
+                for (int i = start; i < end; i++) {
+                    init = g.invokePrim(init, longs.getLong(i));
+                    if (RT.isReduced(init)) {
+                        return init;
+                    }
+                }
+                return init;
+            }
+            for (int i = start; i < end; i++) {
+                init = f.invoke(init, getLong(i));
+                if (RT.isReduced(init)) {
+                    return init;
+                }
+            }
+            return init;
+        }
+    }
+
+    public static final class Doubles extends PrimitiveProntoVector {
+        public static final ListFactory LIST_FACTORY = PrimitiveLists::copyDoubles;
+
+        private final Internal.DoubleList doubles;
+
+        public Doubles(List base, Transformer transformer, IPersistentMap meta) {
+            this(base, transformer, null, meta);
+        }
+
+        public Doubles(List base, Transformer transformer, Writer writer, IPersistentMap meta) {
+            this(base, base.size(), PersistentHashMap.EMPTY, PersistentVector.EMPTY, transformer, writer, meta);
+        }
+
+        private Doubles(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                     Transformer transformer, Writer writer, IPersistentMap meta) {
+            super(base, baseCount, overlay, tail, LIST_FACTORY, transformer, writer, meta);
+            this.doubles = base instanceof Internal.DoubleList ? (Internal.DoubleList) base : null;
+        }
+
+        @Override
+        protected ProntoVector create(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                                      Writer writer, IPersistentMap meta) {
+            return new Doubles(base, baseCount, overlay, tail, transformer, writer, meta);
+        }
+
+        public double getDouble(int i) {
+            if (i < baseCount) {
+                return doubles != null && isBaseIntact() ? doubles.getDouble(i) : (Double) baseNth(i);
+            }
+            return (Double) tail.nth(tailIndex(i));
+        }
+
+        @Override
+        protected Object boxed(int i) {
+            return getDouble(i);
+        }
+
+        @Override
+        protected Object reduceBase(IFn f, Object init, int start, int end) {
+            if (doubles != null && isBaseIntact() && f instanceof IFn.ODO) {
+                IFn.ODO g = (IFn.ODO) f;
+                for (int i = start; i < end; i++) {
+                    init = g.invokePrim(init, doubles.getDouble(i));
+                    if (RT.isReduced(init)) {
+                        return init;
+                    }
+                }
+                return init;
+            }
+            for (int i = start; i < end; i++) {
+                init = f.invoke(init, getDouble(i));
+                if (RT.isReduced(init)) {
+                    return init;
+                }
+            }
+            return init;
+        }
+    }
+
+    public static final class Floats extends PrimitiveProntoVector {
+        public static final ListFactory LIST_FACTORY = PrimitiveLists::copyFloats;
+
+        private final Internal.FloatList floats;
+
+        public Floats(List base, Transformer transformer, IPersistentMap meta) {
+            this(base, transformer, null, meta);
+        }
+
+        public Floats(List base, Transformer transformer, Writer writer, IPersistentMap meta) {
+            this(base, base.size(), PersistentHashMap.EMPTY, PersistentVector.EMPTY, transformer, writer, meta);
+        }
+
+        private Floats(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                     Transformer transformer, Writer writer, IPersistentMap meta) {
+            super(base, baseCount, overlay, tail, LIST_FACTORY, transformer, writer, meta);
+            this.floats = base instanceof Internal.FloatList ? (Internal.FloatList) base : null;
+        }
+
+        @Override
+        protected ProntoVector create(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                                      Writer writer, IPersistentMap meta) {
+            return new Floats(base, baseCount, overlay, tail, transformer, writer, meta);
+        }
+
+        public float getFloat(int i) {
+            if (i < baseCount) {
+                return floats != null && isBaseIntact() ? floats.getFloat(i) : (Float) baseNth(i);
+            }
+            return (Float) tail.nth(tailIndex(i));
+        }
+
+        @Override
+        protected Object boxed(int i) {
+            return getFloat(i);
+        }
+
+        @Override
+        protected Object reduceBase(IFn f, Object init, int start, int end) {
+            if (floats != null && isBaseIntact() && f instanceof IFn.ODO) {
+                IFn.ODO g = (IFn.ODO) f;
+                for (int i = start; i < end; i++) {
+                    init = g.invokePrim(init, floats.getFloat(i));
+                    if (RT.isReduced(init)) {
+                        return init;
+                    }
+                }
+                return init;
+            }
+            for (int i = start; i < end; i++) {
+                init = f.invoke(init, getFloat(i));
+                if (RT.isReduced(init)) {
+                    return init;
+                }
+            }
+            return init;
+        }
+    }
+
+    public static final class Booleans extends PrimitiveProntoVector {
+        public static final ListFactory LIST_FACTORY = PrimitiveLists::copyBooleans;
+
+        private final Internal.BooleanList booleans;
+
+        public Booleans(List base, Transformer transformer, IPersistentMap meta) {
+            this(base, transformer, null, meta);
+        }
+
+        public Booleans(List base, Transformer transformer, Writer writer, IPersistentMap meta) {
+            this(base, base.size(), PersistentHashMap.EMPTY, PersistentVector.EMPTY, transformer, writer, meta);
+        }
+
+        private Booleans(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                     Transformer transformer, Writer writer, IPersistentMap meta) {
+            super(base, baseCount, overlay, tail, LIST_FACTORY, transformer, writer, meta);
+            this.booleans = base instanceof Internal.BooleanList ? (Internal.BooleanList) base : null;
+        }
+
+        @Override
+        protected ProntoVector create(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                                      Writer writer, IPersistentMap meta) {
+            return new Booleans(base, baseCount, overlay, tail, transformer, writer, meta);
+        }
+
+        public boolean getBoolean(int i) {
+            if (i < baseCount) {
+                return booleans != null && isBaseIntact() ? booleans.getBoolean(i) : (Boolean) baseNth(i);
+            }
+            return (Boolean) tail.nth(tailIndex(i));
+        }
+
+        @Override
+        protected Object boxed(int i) {
+            return getBoolean(i);
+        }
+
+        @Override
+        protected Object reduceBase(IFn f, Object init, int start, int end) {
+            for (int i = start; i < end; i++) {
+                init = f.invoke(init, getBoolean(i) ? Boolean.TRUE : Boolean.FALSE);
+                if (RT.isReduced(init)) {
+                    return init;
+                }
+            }
+            return init;
+        }
+    }
+}
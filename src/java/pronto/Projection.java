@@ -0,0 +1,108 @@
+package pronto;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Message;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+
+/**
+ * A set of fields (by field number) to be decoded from a serialized message,
+ * along with optional projections of message-typed fields.
+ * <p>
+ * Applying a projection walks the wire format once, skipping any tag outside of it, so
+ * the fields that were left out are never decoded. Runs of consecutive included fields are
+ * merged straight from the input into the builder, and projected message fields are walked
+ * into the builders returned by `Builders`, which is generated per class.
+ **/
+public final class Projection {
+
+    /**
+     * Returns the builders which projected message fields are merged into.
+     */
+    public interface Builders {
+        /**
+         * Returns the builder of the message field `fieldNumber` of `builder`, or a new element's builder
+         * for a repeated field.
+         */
+        Object nestedBuilder(Object builder, int fieldNumber);
+    }
+
+    private final int[] fieldNumbers;
+    private final Projection[] nested;
+    private final Builders builders;
+
+    public Projection(int[] fieldNumbers, Projection[] nested, Builders builders) {
+        this.fieldNumbers = fieldNumbers;
+        this.nested = nested;
+        this.builders = builders;
+    }
+
+    private int indexOf(int fieldNumber) {
+        for (int i = 0; i < fieldNumbers.length; i++) {
+            if (fieldNumbers[i] == fieldNumber) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Merges the parts of `bytes` that are included in `projection` into `builder`.
+     * If `alias` is true, bytes fields may share `bytes` rather than copy it (see `:zero-copy?`).
+     */
+    public static void mergeFrom(byte[] bytes, Projection projection, Object builder, boolean alias) throws IOException {
+        projection.mergeFrom(bytes, 0, bytes.length, (Message.Builder) builder, alias);
+    }
+
+    private void mergeFrom(byte[] bytes, int offset, int length, Message.Builder builder, boolean alias) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(bytes, offset, length);
+        // the start of the current run of included fields, or -1
+        int run = -1;
+        while (true) {
+            int start = offset + in.getTotalBytesRead();
+            int tag = in.readTag();
+            if (tag == 0) {
+                break;
+            }
+
+            int fieldNumber = WireFormat.getTagFieldNumber(tag);
+            int i = indexOf(fieldNumber);
+            if (i >= 0 && (nested[i] == null || WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED)) {
+                if (run < 0) {
+                    run = start;
+                }
+                in.skipField(tag);
+                continue;
+            }
+
+            if (run >= 0) {
+                mergeRun(bytes, run, start - run, builder, alias);
+                run = -1;
+            }
+            if (i < 0) {
+                in.skipField(tag);
+            } else {
+                int nestedLength = in.readRawVarint32();
+                nested[i].mergeFrom(bytes, offset + in.getTotalBytesRead(), nestedLength,
+                        (Message.Builder) builders.nestedBuilder(builder, fieldNumber), alias);
+                in.skipRawBytes(nestedLength);
+            }
+        }
+        if (run >= 0) {
+            mergeRun(bytes, run, offset + length - run, builder, alias);
+        }
+    }
+
+    private static void mergeRun(byte[] bytes, int offset, int length, Message.Builder builder, boolean alias) throws IOException {
+        CodedInputStream in;
+        if (alias) {
+            in = UnsafeByteOperations.unsafeWrap(bytes, offset, length).newCodedInput();
+            in.enableAliasing(true);
+        } else {
+            in = CodedInputStream.newInstance(bytes, offset, length);
+        }
+        builder.mergeFrom(in);
+    }
+}
@@ -0,0 +1,446 @@
+package pronto;
+
+import clojure.lang.*;
+import clojure.lang.RT;
+
+import java.util.*;
+
+/**
+ * A persistent map view over a protobuf map field.
+ * <p>
+ * Keys and values are kept in their protobuf representation and are transformed
+ * lazily on access. Pending `assoc`/`dissoc` calls are recorded in an overlay on top
+ * of the base map, so a proto-map setter can write the view back into a builder without
+ * going through an intermediate map.
+ * <p>
+ * Note: when obtained from a transient proto-map, the base map is the builder's own map (which the
+ * transient copies before writing to it again), so the view's count is computed from the base map and
+ * the overlay rather than kept.
+ **/
+public class ProntoMap extends APersistentMap implements IObj, IEditableCollection, IKVReduce, IMapIterable {
+
+    private static final Object REMOVED = new Object();
+    private static final Object NOT_FOUND = new Object();
+
+    private final Map base;
+    private final IPersistentMap overlay;
+    // the number of entries, or -1 when the base map is a live view of a builder
+    private final int count;
+    private final Transformer transformer;
+    private final Object owner;
+    // the index of the field of `owner` this view was read from, and its version at the time (see `isBackedBy`)
+    private final int fieldIndex;
+    private final int version;
+    private final IPersistentMap meta;
+
+    public interface Transformer {
+        Object keyToProto(Object key);
+        Object keyFromProto(Object key);
+        Object valToProto(Object val);
+        Object valFromProto(Object val);
+    }
+
+    public interface Writer {
+        void put(Object key, Object val);
+        void remove(Object key);
+    }
+
+    public ProntoMap(Map base, Transformer transformer, Object owner, int fieldIndex, IPersistentMap meta) {
+        this(base, PersistentHashMap.EMPTY, isLive(owner) ? -1 : base.size(), transformer, owner, fieldIndex,
+                readVersion(owner, fieldIndex), meta);
+    }
+
+    private static boolean isLive(Object owner) {
+        return owner instanceof ProtoMap && ((ProtoMap) owner).isMutable();
+    }
+
+    private static int readVersion(Object owner, int fieldIndex) {
+        if (!isLive(owner)) {
+            return 0;
+        }
+        ProtoMap pm = (ProtoMap) owner;
+        pm.pmap_shareFields();
+        return pm.pmap_fieldVersion(fieldIndex);
+    }
+
+    private ProntoMap(Map base, IPersistentMap overlay, int count, Transformer transformer, Object owner,
+                      int fieldIndex, int version, IPersistentMap meta) {
+        this.base = base;
+        this.overlay = overlay;
+        this.count = count;
+        this.transformer = transformer;
+        this.owner = owner;
+        this.fieldIndex = fieldIndex;
+        this.version = version;
+        this.meta = meta;
+    }
+
+    /**
+     * Returns true iff the base map of this view is the map held by `builder`, and the field was not written to
+     * since the view was read, in which case only the overlay needs to be written back.
+     */
+    public boolean isBackedBy(Object builder) {
+        if (owner == builder) {
+            return true;
+        }
+        if (owner instanceof ProtoMap) {
+            ProtoMap pm = (ProtoMap) owner;
+            return pm.isMutable() && pm.pmap_getBuilder() == builder && pm.pmap_fieldVersion(fieldIndex) == version;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the pending changes of this view to `writer`.
+     */
+    public void writeOverlay(Writer writer) {
+        for (ISeq s = overlay.seq(); s != null; s = s.next()) {
+            Map.Entry e = (Map.Entry) s.first();
+            if (e.getValue() == REMOVED) {
+                writer.remove(e.getKey());
+            } else {
+                writer.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Writes all entries of this view, in their protobuf representation, to `writer`.
+     */
+    public void writeTo(Writer writer) {
+        Iterator it = protoIterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+            writer.put(e.getKey(), e.getValue());
+        }
+    }
+
+    @Override
+    public ITransientCollection asTransient() {
+        return new Transient();
+    }
+
+    private Object protoKey(Object key) {
+        try {
+            return transformer.keyToProto(key);
+        } catch (RuntimeException e) {
+            // a key which cannot be converted cannot be contained in the map
+            return NOT_FOUND;
+        }
+    }
+
+    private Object protoVal(Object protoKey) {
+        return protoVal(overlay, protoKey);
+    }
+
+    private Object protoVal(ILookup overlay, Object protoKey) {
+        Object v = overlay.valAt(protoKey, NOT_FOUND);
+        if (v == NOT_FOUND) {
+            v = base.get(protoKey);
+            return v == null ? NOT_FOUND : v;
+        }
+        return v == REMOVED ? NOT_FOUND : v;
+    }
+
+    @Override
+    public Object valAt(Object key) {
+        return valAt(key, null);
+    }
+
+    @Override
+    public Object valAt(Object key, Object notFound) {
+        Object pk = protoKey(key);
+        if (pk == NOT_FOUND) {
+            return notFound;
+        }
+        Object v = protoVal(pk);
+        return v == NOT_FOUND ? notFound : transformer.valFromProto(v);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Object pk = protoKey(key);
+        return pk != NOT_FOUND && protoVal(pk) != NOT_FOUND;
+    }
+
+    @Override
+    public IMapEntry entryAt(Object key) {
+        Object pk = protoKey(key);
+        if (pk == NOT_FOUND) {
+            return null;
+        }
+        Object v = protoVal(pk);
+        return v == NOT_FOUND ? null : MapEntry.create(transformer.keyFromProto(pk), transformer.valFromProto(v));
+    }
+
+    @Override
+    public IPersistentMap assoc(Object key, Object val) {
+        Object pk = transformer.keyToProto(key);
+        Object pv = transformer.valToProto(val);
+        int newCount = count < 0 || protoVal(pk) != NOT_FOUND ? count : count + 1;
+        return new ProntoMap(base, overlay.assoc(pk, pv), newCount, transformer, owner, fieldIndex, version, meta);
+    }
+
+    @Override
+    public IPersistentMap assocEx(Object key, Object val) {
+        if (containsKey(key)) {
+            throw Util.runtimeException("Key already present");
+        }
+        return assoc(key, val);
+    }
+
+    @Override
+    public IPersistentMap without(Object key) {
+        Object pk = protoKey(key);
+        if (pk == NOT_FOUND || protoVal(pk) == NOT_FOUND) {
+            return this;
+        }
+        IPersistentMap newOverlay = base.containsKey(pk) ? overlay.assoc(pk, REMOVED) : overlay.without(pk);
+        return new ProntoMap(base, newOverlay, count < 0 ? count : count - 1, transformer, owner, fieldIndex, version,
+                meta);
+    }
+
+    @Override
+    public int count() {
+        if (count >= 0) {
+            return count;
+        }
+        int n = base.size();
+        for (ISeq s = overlay.seq(); s != null; s = s.next()) {
+            Map.Entry e = (Map.Entry) s.first();
+            boolean inBase = base.containsKey(e.getKey());
+            if (e.getValue() == REMOVED) {
+                n -= inBase ? 1 : 0;
+            } else {
+                n += inBase ? 0 : 1;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public IPersistentCollection empty() {
+        return new ProntoMap(Collections.emptyMap(), PersistentHashMap.EMPTY, 0, transformer, null, -1, 0, meta);
+    }
+
+    @Override
+    public ISeq seq() {
+        return RT.chunkIteratorSeq(iterator());
+    }
+
+    private Iterator protoIterator() {
+        if (overlay.count() == 0) {
+            return base.entrySet().iterator();
+        }
+
+        Iterator baseItr = base.entrySet().iterator();
+        Iterator overlayItr = overlay.iterator();
+
+        return new Iterator() {
+            private Map.Entry next = advance();
+
+            private Map.Entry advance() {
+                while (baseItr.hasNext()) {
+                    Map.Entry e = (Map.Entry) baseItr.next();
+                    if (!overlay.containsKey(e.getKey())) {
+                        return e;
+                    }
+                }
+                while (overlayItr.hasNext()) {
+                    Map.Entry e = (Map.Entry) overlayItr.next();
+                    if (e.getValue() != REMOVED) {
+                        return e;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Object next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry e = next;
+                next = advance();
+                return e;
+            }
+        };
+    }
+
+    @Override
+    public Iterator iterator() {
+        Iterator it = protoIterator();
+
+        return new Iterator() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Object next() {
+                Map.Entry e = (Map.Entry) it.next();
+                return MapEntry.create(transformer.keyFromProto(e.getKey()), transformer.valFromProto(e.getValue()));
+            }
+        };
+    }
+
+    @Override
+    public Iterator keyIterator() {
+        Iterator it = protoIterator();
+
+        return new Iterator() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Object next() {
+                return transformer.keyFromProto(((Map.Entry) it.next()).getKey());
+            }
+        };
+    }
+
+    @Override
+    public Iterator valIterator() {
+        Iterator it = protoIterator();
+
+        return new Iterator() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Object next() {
+                return transformer.valFromProto(((Map.Entry) it.next()).getValue());
+            }
+        };
+    }
+
+    @Override
+    public Object kvreduce(IFn f, Object init) {
+        Iterator it = protoIterator();
+        while (it.hasNext()) {
+            Map.Entry e = (Map.Entry) it.next();
+            init = f.invoke(init, transformer.keyFromProto(e.getKey()), transformer.valFromProto(e.getValue()));
+            if (RT.isReduced(init)) {
+                return ((IDeref) init).deref();
+            }
+        }
+
+        return init;
+    }
+
+    @Override
+    public IObj withMeta(IPersistentMap meta) {
+        return meta == meta() ? this : new ProntoMap(base, overlay, count, transformer, owner, fieldIndex, version, meta);
+    }
+
+    @Override
+    public IPersistentMap meta() {
+        return meta;
+    }
+
+    public class Transient implements ITransientMap, ITransientAssociative2 {
+        private final ITransientMap overlay;
+        private int count;
+        private final boolean live;
+        private boolean editable;
+
+        public Transient() {
+            this.overlay = (ITransientMap) ((IEditableCollection) ProntoMap.this.overlay).asTransient();
+            this.count = ProntoMap.this.count();
+            this.live = ProntoMap.this.count < 0;
+            this.editable = true;
+        }
+
+        private void ensureEditable() {
+            if (!editable) {
+                throw new IllegalAccessError("Transient used after persistent! call");
+            }
+        }
+
+        @Override
+        public ITransientMap assoc(Object key, Object val) {
+            ensureEditable();
+            Object pk = transformer.keyToProto(key);
+            Object pv = transformer.valToProto(val);
+            if (protoVal(overlay, pk) == NOT_FOUND) {
+                count++;
+            }
+            overlay.assoc(pk, pv);
+            return this;
+        }
+
+        @Override
+        public ITransientMap without(Object key) {
+            ensureEditable();
+            Object pk = protoKey(key);
+            if (pk != NOT_FOUND && protoVal(overlay, pk) != NOT_FOUND) {
+                if (base.containsKey(pk)) {
+                    overlay.assoc(pk, REMOVED);
+                } else {
+                    overlay.without(pk);
+                }
+                count--;
+            }
+            return this;
+        }
+
+        @Override
+        public ITransientMap conj(Object o) {
+            ensureEditable();
+            return TransientMapHelpers.conj(this, o);
+        }
+
+        @Override
+        public IPersistentMap persistent() {
+            ensureEditable();
+            editable = false;
+            return new ProntoMap(base, overlay.persistent(), live ? -1 : count, transformer, owner, fieldIndex, version,
+                    meta);
+        }
+
+        @Override
+        public Object valAt(Object key) {
+            return valAt(key, null);
+        }
+
+        @Override
+        public Object valAt(Object key, Object notFound) {
+            ensureEditable();
+            Object pk = protoKey(key);
+            if (pk == NOT_FOUND) {
+                return notFound;
+            }
+            Object v = protoVal(overlay, pk);
+            return v == NOT_FOUND ? notFound : transformer.valFromProto(v);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            ensureEditable();
+            Object pk = protoKey(key);
+            return pk != NOT_FOUND && protoVal(overlay, pk) != NOT_FOUND;
+        }
+
+        @Override
+        public IMapEntry entryAt(Object key) {
+            Object v = valAt(key, NOT_FOUND);
+            return v == NOT_FOUND ? null : MapEntry.create(key, v);
+        }
+
+        @Override
+        public int count() {
+            ensureEditable();
+            return count;
+        }
+    }
+}
@@ -8,19 +8,60 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * A persistent vector view over a protobuf repeated field.
+ * <p>
+ * Items are kept in their protobuf representation and are transformed lazily on access.
+ * Updates do not copy the underlying list: items replaced via `assocN` are recorded in an overlay
+ * (keyed by index), `pop` shrinks the number of base items in use, and `cons` appends to a tail vector.
+ * The base list is only copied once the overlay grows large enough to slow down reads.
+ * <p>
+ * Note: when obtained from a transient proto-map, the base list is the builder's own list, which the transient copies
+ * before writing to it again. Updates (persistent and transient alike) do not write to the builder: a vector derived by persistent updates only writes its pending
+ * changes when it is `assoc!`ed back into the field it was read from (see {@link #isBackedBy(Object)}), and
+ * `persistent!` snapshots the list, so the vector it returns does not change along with the builder.
+ **/
 public class ProntoVector extends APersistentVector implements IObj, IEditableCollection, IReduce, IKVReduce {
 
-    private final List base;
-    private final ListFactory factory;
-    private final Transformer transformer;
-    private final IPersistentMap meta;
-    private final PersistentVector tail;
+    protected static final Object NOT_FOUND = new Object();
+
+    private static final int MIN_OVERLAY_COMPACTION = 32;
+
+    protected final List base;
+    protected final int baseCount;
+    protected final IPersistentMap overlay;
+    protected final ListFactory factory;
+    protected final Transformer transformer;
+    protected final IPersistentMap meta;
+    protected final PersistentVector tail;
+    protected final Writer writer;
 
     public interface ListFactory {
         List newList(List list, int capacityDiff);
     }
 
+    /**
+     * Writes items, in their protobuf representation, to the builder the vector was read from.
+     */
+    public interface Writer {
+        void set(int i, Object val);
+        void add(Object val);
+        List list();
+        Object builder();
+
+        /**
+         * Returns true iff the field was not written to since the vector was read.
+         */
+        boolean isCurrent();
+    }
+
     public static final ListFactory DEFAULT_LIST_FACTORY = (list, capacityDiff) -> {
         ArrayList newList = new ArrayList(list.size() + capacityDiff);
         newList.addAll(list);
@@ -34,15 +75,59 @@ public class ProntoVector extends APersistentVector implements IObj, IEditableCo
     };
 
     public ProntoVector(List base, ListFactory factory, Transformer transformer, IPersistentMap meta) {
-        this(base, factory, transformer, PersistentVector.EMPTY, meta);
+        this(base, factory, transformer, null, meta);
+    }
+
+    public ProntoVector(List base, ListFactory factory, Transformer transformer, Writer writer, IPersistentMap meta) {
+        this(base, base.size(), PersistentHashMap.EMPTY, PersistentVector.EMPTY, factory, transformer, writer, meta);
     }
 
-    public ProntoVector(List base, ListFactory factory, Transformer transformer, PersistentVector tail, IPersistentMap meta) {
+    protected ProntoVector(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                           ListFactory factory, Transformer transformer, Writer writer, IPersistentMap meta) {
         this.base = base;
+        this.baseCount = baseCount;
+        this.overlay = overlay;
         this.factory = factory;
         this.transformer = transformer;
         this.meta = meta;
         this.tail = tail;
+        this.writer = writer;
+    }
+
+    protected ProntoVector create(List base, int baseCount, IPersistentMap overlay, PersistentVector tail,
+                                  Writer writer, IPersistentMap meta) {
+        return new ProntoVector(base, baseCount, overlay, tail, factory, transformer, writer, meta);
+    }
+
+    private ProntoVector withBase(int baseCount, IPersistentMap overlay) {
+        return create(base, baseCount, overlay, tail, writer, meta);
+    }
+
+    private ProntoVector withTail(PersistentVector tail) {
+        return create(base, baseCount, overlay, tail, writer, meta);
+    }
+
+    /**
+     * Returns true iff the base list of this vector is the list held by `builder`, the field was not written to
+     * since the vector was read and none of its items were popped, in which case only the pending changes need to be
+     * written back (see {@link #writeOverlay()}).
+     */
+    public boolean isBackedBy(Object builder) {
+        return writer != null && writer.builder() == builder && writer.isCurrent()
+                && baseCount == base.size() && writer.list().size() == baseCount;
+    }
+
+    /**
+     * Writes the replaced and appended items of this vector to the builder it was read from.
+     */
+    public void writeOverlay() {
+        for (ISeq s = overlay.seq(); s != null; s = s.next()) {
+            IMapEntry e = (IMapEntry) s.first();
+            writer.set((Integer) e.key(), e.val());
+        }
+        for (int i = 0; i < tail.count(); i++) {
+            writer.add(tail.nth(i));
+        }
     }
 
     @Override
@@ -65,7 +150,7 @@ public class ProntoVector extends APersistentVector implements IObj, IEditableCo
 
     @Override
     public IObj withMeta(IPersistentMap meta) {
-        return meta == meta() ? this : new ProntoVector(base, factory, transformer, tail, meta);
+        return meta == meta() ? this : create(base, baseCount, overlay, tail, writer, meta);
     }
 
     @Override
@@ -99,105 +184,382 @@ public class ProntoVector extends APersistentVector implements IObj, IEditableCo
         Object fromProto(Object item);
     }
 
+    /**
+     * Returns true iff base items are read straight from the base list.
+     */
+    protected boolean isBaseIntact() {
+        return overlay.count() == 0;
+    }
+
+    /**
+     * Returns the protobuf item at `i` (which must be lower than `baseCount`).
+     */
+    protected Object baseNth(int i) {
+        if (overlay.count() != 0) {
+            Object v = overlay.valAt(i, NOT_FOUND);
+            if (v != NOT_FOUND) {
+                return v;
+            }
+        }
+        return base.get(i);
+    }
+
+    /**
+     * Returns the protobuf item at `i`.
+     */
+    protected Object protoNth(int i) {
+        if (i < 0 || i >= count()) {
+            throw new IndexOutOfBoundsException();
+        }
+        return i < baseCount ? baseNth(i) : tail.nth(tailIndex(i));
+    }
+
+    // reads through a large overlay are slower than a copy of the base list
+    private static boolean shouldCompact(IPersistentMap overlay, int baseCount) {
+        return overlay.count() >= Math.max(MIN_OVERLAY_COMPACTION, baseCount >>> 3);
+    }
+
+    private List compactBase(IPersistentMap overlay, int baseCount) {
+        List newList = factory.newList(base, 0);
+        for (ISeq s = overlay.seq(); s != null; s = s.next()) {
+            IMapEntry e = (IMapEntry) s.first();
+            newList.set((Integer) e.key(), e.val());
+        }
+        if (baseCount < newList.size()) {
+            newList.subList(baseCount, newList.size()).clear();
+        }
+        return newList;
+    }
+
+    private ProntoVector compact(IPersistentMap overlay) {
+        return create(compactBase(overlay, baseCount), baseCount, PersistentHashMap.EMPTY, tail, null, meta);
+    }
+
     @Override
     public IPersistentVector assocN(int i, Object val) {
         val = transformer.toProto(val);
-        if (i < base.size()) {
-            List newList = factory.newList(base, 1);
-            newList.set(i, val);
-            return new ProntoVector(newList, factory, transformer, tail, meta);
+        if (i >= 0 && i < baseCount) {
+            IPersistentMap newOverlay = overlay.assoc(i, val);
+            if (shouldCompact(newOverlay, baseCount)) {
+                return compact(newOverlay);
+            }
+            return withBase(baseCount, newOverlay);
         } else {
             PersistentVector newTail = tail.assocN(tailIndex(i), val);
-            return new ProntoVector(base, factory, transformer, newTail, meta);
+            return withTail(newTail);
         }
     }
 
     @Override
     public int count() {
-        return base.size() + tail.count();
+        return baseCount + tail.count();
     }
 
     @Override
     public IPersistentVector cons(Object o) {
         PersistentVector tail = this.tail.cons(transformer.toProto(o));
-        return new ProntoVector(base, factory, transformer, tail, meta);
+        return withTail(tail);
     }
 
     @Override
     public IPersistentCollection empty() {
-        return new ProntoVector(Collections.emptyList(), factory, transformer, meta);
+        return create(Collections.emptyList(), 0, PersistentHashMap.EMPTY, PersistentVector.EMPTY, null, meta);
     }
 
     @Override
     public IPersistentStack pop() {
-        if (tail.isEmpty()) {
-            List newList = factory.newList(base, 0);
-            newList.remove(newList.size() - 1);
-            return new ProntoVector(newList, factory, transformer, tail, meta);
-        } else {
-            PersistentVector newTail = tail.pop();
-            return new ProntoVector(base, factory, transformer, newTail, meta);
+        if (!tail.isEmpty()) {
+            return withTail(tail.pop());
+        }
+        if (baseCount == 0) {
+            throw new IllegalStateException("Can't pop empty vector");
         }
+        return withBase(baseCount - 1, overlay.without(baseCount - 1));
     }
 
-    private int tailIndex(int i) {
-        return i - base.size();
+    /**
+     * Folds the items of this vector in parallel, as `clojure.core.reducers/fold` does for persistent vectors:
+     * the index range of the vector (base items and tail alike) is split in halves down to ranges of at most `n`
+     * items, each reduced by `reducef` starting from `(combinef)`, and the results of the halves are combined
+     * by `combinef`. Runs on the common fork-join pool, unless called from within a fork-join pool.
+     */
+    public Object fold(long n, IFn combinef, IFn reducef) {
+        Fold fold = new Fold(0, count(), (int) Math.max(1, Math.min(n, Integer.MAX_VALUE)), combinef, reducef);
+        return ForkJoinTask.inForkJoinPool() ? fold.invoke() : ForkJoinPool.commonPool().invoke(fold);
     }
 
-    @Override
-    public Object nth(int i) {
-        Object obj;
-        if (i < base.size()) {
-            obj = base.get(i);
-        } else {
-            obj = tail.nth(tailIndex(i));
+    private final class Fold extends RecursiveTask<Object> {
+        private final int from;
+        private final int to;
+        private final int n;
+        private final IFn combinef;
+        private final IFn reducef;
+
+        Fold(int from, int to, int n, IFn combinef, IFn reducef) {
+            this.from = from;
+            this.to = to;
+            this.n = n;
+            this.combinef = combinef;
+            this.reducef = reducef;
+        }
+
+        @Override
+        protected Object compute() {
+            if (to - from <= n) {
+                Object acc = combinef.invoke();
+                for (int i = from; i < to; i++) {
+                    acc = reducef.invoke(acc, nth(i));
+                    if (RT.isReduced(acc)) {
+                        return ((IDeref) acc).deref();
+                    }
+                }
+                return acc;
+            }
+            int mid = from + (to - from) / 2;
+            Fold left = new Fold(from, mid, n, combinef, reducef);
+            left.fork();
+            Object right = new Fold(mid, to, n, combinef, reducef).compute();
+            return combinef.invoke(left.join(), right);
         }
-        return transformer.fromProto(obj);
     }
 
+    /**
+     * Returns a splittable spliterator over the items of this vector in their protobuf representation
+     * (as its iterator), which backs `stream()` and `parallelStream()`.
+     */
     @Override
-    public Iterator iterator() {
-        if (tail.isEmpty()) {
-            return base.iterator();
+    public Spliterator spliterator() {
+        return new RangeSpliterator(0, count());
+    }
+
+    private final class RangeSpliterator implements Spliterator<Object> {
+        private int from;
+        private final int to;
+
+        RangeSpliterator(int from, int to) {
+            this.from = from;
+            this.to = to;
         }
 
-        if (base.isEmpty()) {
-            return tail.iterator();
+        @Override
+        public boolean tryAdvance(Consumer<? super Object> action) {
+            if (from >= to) {
+                return false;
+            }
+            action.accept(protoNth(from++));
+            return true;
         }
 
-        Iterator itr = base.iterator();
-        Iterator itr2 = tail.iterator();
+        @Override
+        public void forEachRemaining(Consumer<? super Object> action) {
+            for (; from < to; from++) {
+                action.accept(protoNth(from));
+            }
+        }
+
+        @Override
+        public Spliterator<Object> trySplit() {
+            int mid = from + (to - from) / 2;
+            if (mid <= from) {
+                return null;
+            }
+            RangeSpliterator prefix = new RangeSpliterator(from, mid);
+            from = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return to - from;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED;
+        }
+    }
+
+    protected int tailIndex(int i) {
+        return i - baseCount;
+    }
+
+    @Override
+    public Object nth(int i) {
+        return transformer.fromProto(protoNth(i));
+    }
+
+    /**
+     * Iterates over the items of this vector in their protobuf representation.
+     */
+    @Override
+    public Iterator iterator() {
+        if (isBaseIntact() && baseCount == base.size()) {
+            if (tail.isEmpty()) {
+                return base.iterator();
+            }
+
+            if (base.isEmpty()) {
+                return tail.iterator();
+            }
+        }
 
         return new Iterator() {
+            private int i = 0;
+
             @Override
             public boolean hasNext() {
-                return itr.hasNext() || itr2.hasNext();
+                return i < count();
             }
 
             @Override
             public Object next() {
-                return itr.hasNext() ? itr.next() : itr2.next();
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return protoNth(i++);
             }
         };
     }
 
-    public class Transient implements ITransientCollection {
-        private final ITransientCollection vector;
+    public class Transient implements ITransientVector, Counted {
+        private int baseCount;
+        private ITransientMap overlay;
+        private ITransientVector tail;
+        private boolean editable;
 
         public Transient() {
-            this.vector = tail.asTransient();
+            this.baseCount = ProntoVector.this.baseCount;
+            this.overlay = (ITransientMap) ((IEditableCollection) ProntoVector.this.overlay).asTransient();
+            this.tail = (ITransientVector) ProntoVector.this.tail.asTransient();
+            this.editable = true;
+        }
+
+        private void ensureEditable() {
+            if (!editable) {
+                throw new IllegalAccessError("Transient used after persistent! call");
+            }
+        }
+
+        private int tailIndex(int i) {
+            return i - baseCount;
+        }
+
+        @Override
+        public int count() {
+            ensureEditable();
+            return baseCount + tail.count();
+        }
+
+        @Override
+        public ITransientVector conj(Object o) {
+            ensureEditable();
+            tail.conj(transformer.toProto(o));
+            return this;
+        }
+
+        @Override
+        public ITransientVector assocN(int i, Object val) {
+            ensureEditable();
+            if (i == count()) {
+                return conj(val);
+            }
+            if (i < 0 || i > count()) {
+                throw new IndexOutOfBoundsException();
+            }
+            val = transformer.toProto(val);
+            if (i < baseCount) {
+                overlay.assoc(i, val);
+            } else {
+                tail.assocN(tailIndex(i), val);
+            }
+            return this;
+        }
+
+        @Override
+        public ITransientVector assoc(Object key, Object val) {
+            if (Util.isInteger(key)) {
+                return assocN(((Number) key).intValue(), val);
+            }
+            throw new IllegalArgumentException("Key must be integer");
         }
 
         @Override
-        public ITransientCollection conj(Object o) {
-            vector.conj(transformer.toProto(o));
+        public ITransientVector pop() {
+            ensureEditable();
+            if (tail.count() > 0) {
+                tail.pop();
+            } else if (baseCount > 0) {
+                baseCount--;
+                overlay.without(baseCount);
+            } else {
+                throw new IllegalStateException("Can't pop empty vector");
+            }
             return this;
         }
 
+        private Object protoNth(int i) {
+            if (i < 0 || i >= count()) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (i < baseCount) {
+                Object v = overlay.valAt(i, NOT_FOUND);
+                return v == NOT_FOUND ? base.get(i) : v;
+            }
+            return tail.nth(tailIndex(i));
+        }
+
         @Override
-        public IPersistentCollection persistent() {
-            PersistentVector tail = (PersistentVector) vector.persistent();
-            return new ProntoVector(base, factory, transformer, tail, null);
+        public Object nth(int i) {
+            ensureEditable();
+            return transformer.fromProto(protoNth(i));
+        }
+
+        @Override
+        public Object nth(int i, Object notFound) {
+            if (i >= 0 && i < count()) {
+                return nth(i);
+            }
+            return notFound;
+        }
+
+        @Override
+        public Object valAt(Object key) {
+            return valAt(key, null);
+        }
+
+        @Override
+        public Object valAt(Object key, Object notFound) {
+            if (Util.isInteger(key)) {
+                return nth(((Number) key).intValue(), notFound);
+            }
+            return notFound;
+        }
+
+        @Override
+        public IPersistentVector persistent() {
+            ensureEditable();
+            editable = false;
+            IPersistentMap overlay = this.overlay.persistent();
+            PersistentVector tail = (PersistentVector) this.tail.persistent();
+            if (writer != null) {
+                // the base list is a live view of a builder: snapshot it, along with the changes
+                List list = factory.newList(base, tail.count() - (base.size() - baseCount));
+                for (ISeq s = overlay.seq(); s != null; s = s.next()) {
+                    IMapEntry e = (IMapEntry) s.first();
+                    list.set((Integer) e.key(), e.val());
+                }
+                if (baseCount < list.size()) {
+                    list.subList(baseCount, list.size()).clear();
+                }
+                for (int i = 0; i < tail.count(); i++) {
+                    list.add(tail.nth(i));
+                }
+                return create(list, list.size(), PersistentHashMap.EMPTY, PersistentVector.EMPTY, null, null);
+            }
+            if (shouldCompact(overlay, baseCount)) {
+                return create(compactBase(overlay, baseCount), baseCount, PersistentHashMap.EMPTY, tail, null, null);
+            }
+            return create(base, baseCount, overlay, tail, null, null);
         }
     }
 }
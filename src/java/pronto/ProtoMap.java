@@ -30,4 +30,20 @@ public interface ProtoMap<T extends GeneratedMessageV3> {
     ProtoMap<?> empty(Keyword keyword);
 
     ProtoMap<?> fromBuilder(GeneratedMessageV3.Builder builder);
+
+    /**
+     * Returns the number of times the repeated or map field at `fieldIndex` (its descriptor's index) of this
+     * transient was written to, which vectors and maps read from it check before writing back only their
+     * pending changes. Persistent proto-maps are never written to.
+     */
+    default int pmap_fieldVersion(int fieldIndex) {
+        return 0;
+    }
+
+    /**
+     * Called when a vector or map is read from this transient, so that its builder copies its lists and maps
+     * before writing to them again, rather than changing the values read. Persistent proto-maps are never written to.
+     */
+    default void pmap_shareFields() {
+    }
 }
@@ -0,0 +1,118 @@
+package pronto;
+
+import clojure.lang.IPersistentMap;
+import clojure.lang.Keyword;
+import clojure.lang.PersistentArrayMap;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Operation counters of a single proto-map class, for mappers defined with `:metrics? true`.
+ * <p>
+ * Counters are striped ({@link LongAdder}), so that proto-maps used across threads do not contend
+ * on them. They are only ever incremented, so rates are obtained by diffing two snapshots.
+ **/
+public final class ProtoMapMetrics {
+
+    private static final Keyword ASSOC = Keyword.intern("assoc");
+    private static final Keyword TO_BUILDER = Keyword.intern("to-builder");
+    private static final Keyword BUILD = Keyword.intern("build");
+    private static final Keyword WRAP = Keyword.intern("wrap");
+    private static final Keyword PERSISTENT = Keyword.intern("persistent");
+    private static final Keyword PARSE = Keyword.intern("parse");
+    private static final Keyword BYTES_PARSED = Keyword.intern("bytes-parsed");
+    private static final Keyword SERIALIZE = Keyword.intern("serialize");
+    private static final Keyword BYTES_SERIALIZED = Keyword.intern("bytes-serialized");
+    private static final Keyword FROM_CLJ_MAP = Keyword.intern("from-clj-map");
+    private static final Keyword TO_CLJ_MAP = Keyword.intern("to-clj-map");
+    private static final Keyword TYPE_ERROR = Keyword.intern("type-error");
+
+    private final LongAdder assocs = new LongAdder();
+    private final LongAdder toBuilders = new LongAdder();
+    private final LongAdder builds = new LongAdder();
+    private final LongAdder wraps = new LongAdder();
+    private final LongAdder persistents = new LongAdder();
+    private final LongAdder parses = new LongAdder();
+    private final LongAdder bytesParsed = new LongAdder();
+    private final LongAdder serializations = new LongAdder();
+    private final LongAdder bytesSerialized = new LongAdder();
+    private final LongAdder fromCljMaps = new LongAdder();
+    private final LongAdder toCljMaps = new LongAdder();
+    private final LongAdder typeErrors = new LongAdder();
+
+    /**
+     * A proto-map whose class is instrumented.
+     */
+    public interface Metered {
+        ProtoMapMetrics pmap_getMetrics();
+    }
+
+    public void onAssoc() {
+        assocs.increment();
+    }
+
+    /**
+     * A copy of the message into a new builder.
+     */
+    public void onToBuilder() {
+        toBuilders.increment();
+    }
+
+    public void onBuild() {
+        builds.increment();
+    }
+
+    /**
+     * A new proto-map wrapping a message.
+     */
+    public void onWrap() {
+        wraps.increment();
+    }
+
+    public void onPersistent() {
+        persistents.increment();
+    }
+
+    public void onParse(long bytes) {
+        parses.increment();
+        bytesParsed.add(bytes);
+    }
+
+    public void onSerialize(long bytes) {
+        serializations.increment();
+        bytesSerialized.add(bytes);
+    }
+
+    public void onFromCljMap() {
+        fromCljMaps.increment();
+    }
+
+    public void onToCljMap() {
+        toCljMaps.increment();
+    }
+
+    /**
+     * Counts `e` if it was thrown for a value of the wrong type.
+     */
+    public void onError(Throwable e) {
+        if ("Invalid type".equals(e.getMessage())) {
+            typeErrors.increment();
+        }
+    }
+
+    public IPersistentMap snapshot() {
+        return new PersistentArrayMap(new Object[]{
+                ASSOC, assocs.sum(),
+                TO_BUILDER, toBuilders.sum(),
+                BUILD, builds.sum(),
+                WRAP, wraps.sum(),
+                PERSISTENT, persistents.sum(),
+                PARSE, parses.sum(),
+                BYTES_PARSED, bytesParsed.sum(),
+                SERIALIZE, serializations.sum(),
+                BYTES_SERIALIZED, bytesSerialized.sum(),
+                FROM_CLJ_MAP, fromCljMaps.sum(),
+                TO_CLJ_MAP, toCljMaps.sum(),
+                TYPE_ERROR, typeErrors.sum()});
+    }
+}
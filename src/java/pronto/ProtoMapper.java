@@ -3,6 +3,7 @@ package pronto;
 import clojure.lang.IPersistentSet;
 import clojure.lang.IPersistentMap;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.GeneratedMessageV3;
 
 public interface ProtoMapper {
@@ -12,11 +13,52 @@ public interface ProtoMapper {
 
     ProtoMap fromBytes(Class<? extends GeneratedMessageV3> clazz, byte[] bytes);
 
+    ProtoMap fromBytes(Class<? extends GeneratedMessageV3> clazz, byte[] bytes, Projection projection);
+
+    Projection getProjection(Class<? extends GeneratedMessageV3> clazz, Object fields);
+
+    ProtoMap fromCodedInputStream(Class<? extends GeneratedMessageV3> clazz, CodedInputStream input);
+
     ProtoMap fromProto(Class<? extends GeneratedMessageV3> clazz, GeneratedMessageV3 proto);
 
     ProtoMap getProto(Class<? extends GeneratedMessageV3> clazz);
 
     ProtoMap getTransient(Class<? extends GeneratedMessageV3> clazz);
 
+    /**
+     * Returns the transient of `clazz` reused by the calling thread, reset (see {@link ReusableTransient}),
+     * or a new transient if the reused one is in use.
+     * Throws an `UnsupportedOperationException` unless the mapper was defined with `:reusable-transients? true`.
+     */
+    ProtoMap getReusableTransient(Class<? extends GeneratedMessageV3> clazz);
+
+    ProtoMap fromCljMap(Class<? extends GeneratedMessageV3> clazz, Object map);
+
+    /**
+     * Reads a JSON object from `reader` into a proto-map of `clazz`, by the reader generated for it when the mapper
+     * was defined with `:json? true`.
+     */
+    ProtoMap fromJson(Class<? extends GeneratedMessageV3> clazz, JsonReader reader);
+
+    /**
+     * Returns a columnar batch of `messages`, an `Iterable` of messages of `clazz`, holding the columns of the keys in
+     * the set `fields`, or of every field which has a column when `fields` is null. `capacity` is the expected number
+     * of messages.
+     * Throws an `UnsupportedOperationException` unless the mapper was defined with `:columns? true`.
+     */
+    Columns toColumns(Class<? extends GeneratedMessageV3> clazz, Iterable messages, Object fields, int capacity);
+
     IPersistentMap getContext();
+
+    /**
+     * Returns a snapshot of the operation counters of every class, `{class {:assoc n, ...}}`,
+     * or nil unless the mapper was defined with `:metrics? true` (see {@link ProtoMapMetrics}).
+     */
+    IPersistentMap getMetrics();
+
+    /**
+     * Returns the counters of the decode cache of every cached class, `{class {:hits n, :misses n, ...}}`,
+     * or nil unless the mapper was defined with `:decode-cache` (see {@link DecodeCache}).
+     */
+    IPersistentMap getDecodeCacheStats();
 }
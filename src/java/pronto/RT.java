@@ -12,4 +12,18 @@ public class RT {
     public static boolean isBuilder(Object o) {
         return o instanceof Message.Builder;
     }
+
+    /**
+     * Returns true iff the messages `a` and `b` are equal, short-circuiting on identical references
+     * and on hash codes, which messages memoize, before comparing them field by field.
+     */
+    public static boolean sameMessage(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        return a.hashCode() == b.hashCode() && a.equals(b);
+    }
 }
@@ -0,0 +1,21 @@
+package pronto;
+
+/**
+ * A transient proto-map which is reset and reused across `persistent!` calls, see `with-reusable-transient`.
+ * <p>
+ * A transient is in use while it is editable, i.e, from the time it is reset until `persistent!` is called
+ * on it, or until it is released.
+ **/
+public interface ReusableTransient {
+    boolean pmap_isEditable();
+
+    /**
+     * Clears the builder of this transient, and makes it editable again.
+     */
+    void pmap_reset();
+
+    /**
+     * Makes this transient no longer editable, as `persistent!` does.
+     */
+    void pmap_release();
+}
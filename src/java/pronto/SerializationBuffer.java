@@ -0,0 +1,91 @@
+package pronto;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer which messages are serialized into, meant to be reused across messages.
+ * <p>
+ * Messages are appended straight into the backing array, which only grows when a message does not fit,
+ * so serializing into a buffer which is cleared and reused allocates no byte arrays once it is large enough.
+ * The contents are exposed without copying, via {@link #array()} and {@link #size()}, {@link #byteBuffer()}
+ * or {@link #writeTo(OutputStream)}.
+ **/
+public final class SerializationBuffer {
+
+    private byte[] array;
+    private int size;
+
+    public SerializationBuffer(int capacity) {
+        this.array = new byte[capacity];
+    }
+
+    /**
+     * Appends `message`, preceded by its size as a varint when `delimited`. Returns the number of bytes written.
+     */
+    public int write(MessageLite message, boolean delimited) throws IOException {
+        int messageSize = message.getSerializedSize();
+        int n = delimited ? CodedOutputStream.computeUInt32SizeNoTag(messageSize) + messageSize : messageSize;
+        ensureCapacity(size + n);
+        CodedOutputStream out = CodedOutputStream.newInstance(array, size, n);
+        if (delimited) {
+            out.writeUInt32NoTag(messageSize);
+        }
+        message.writeTo(out);
+        out.checkNoSpaceLeft();
+        size += n;
+        return n;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new OutOfMemoryError("Serialization buffer size overflow");
+        }
+        if (capacity > array.length) {
+            array = Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+        }
+    }
+
+    /**
+     * Returns the backing array, whose first {@link #size()} bytes are the contents of the buffer.
+     * Note that the backing array is replaced when the buffer grows.
+     */
+    public byte[] array() {
+        return array;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return array.length;
+    }
+
+    /**
+     * Empties the buffer, keeping its backing array.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns a `ByteBuffer` over the contents of the buffer, sharing its backing array.
+     */
+    public ByteBuffer byteBuffer() {
+        return ByteBuffer.wrap(array, 0, size);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(array, 0, size);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(array, size);
+    }
+}
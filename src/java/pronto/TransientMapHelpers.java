@@ -1,5 +1,8 @@
 package pronto;
 
+import clojure.lang.AFn;
+import clojure.lang.IKVReduce;
+import clojure.lang.IPersistentMap;
 import clojure.lang.IPersistentVector;
 import clojure.lang.ISeq;
 import clojure.lang.ITransientMap;
@@ -9,6 +12,13 @@ import java.util.Map;
 
 public class TransientMapHelpers {
 
+    private static final AFn ASSOC = new AFn() {
+        @Override
+        public Object invoke(Object map, Object key, Object val) {
+            return ((ITransientMap) map).assoc(key, val);
+        }
+    };
+
     /**
      * Code taken from Clojure, see https://github.com/clojure/clojure/blob/b1b88dd25373a86e41310a525a21b497799dbbf2/src/jvm/clojure/lang/ATransientMap.java
      */
@@ -24,6 +34,11 @@ public class TransientMapHelpers {
             return map.assoc(v.nth(0), v.nth(1));
         }
 
+        if (o instanceof IPersistentMap && o instanceof IKVReduce) {
+            // saves allocating an entry per field
+            return (ITransientMap) ((IKVReduce) o).kvreduce(ASSOC, map);
+        }
+
         ITransientMap ret = map;
         for (ISeq es = RT.seq(o); es != null; es = es.next()) {
             Map.Entry e = (Map.Entry) es.first();
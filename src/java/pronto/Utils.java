@@ -3,36 +3,14 @@ package pronto;
 import clojure.lang.ArityException;
 import clojure.lang.Compiler;
 
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
 public class Utils {
-    public interface PairXf {
-        Object transformKey(Object key);
-        Object transformVal(Object val);
-    }
-
-    public static Object[] mapToArray(Map in, PairXf xf) {
-        Object[] res = new Object[in.size() * 2];
-        int i = 0;
-        for (Object entry : in.entrySet()) {
-            Map.Entry e = (Map.Entry) entry;
-            res[i] = xf.transformKey(e.getKey());
-            res[i + 1] = xf.transformVal(e.getValue());
-            i += 2;
-        }
-
-        return res;
-    }
-
-    public static Map transformMap(Map in, PairXf xf) {
-        Map m = new HashMap(in.size());
+    public static void transformMap(Map in, ProntoMap.Transformer xf, ProntoMap.Writer out) {
         in.forEach((key, value) -> {
-            m.put(xf.transformKey(key), xf.transformVal(value));
+            out.put(xf.keyToProto(key), xf.valToProto(value));
         });
-
-        return m;
     }
 
     public static Object[] iterableToArray(Iterable iterable, int size) {
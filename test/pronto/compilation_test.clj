@@ -1,10 +1,91 @@
 (ns pronto.compilation-test
   (:require [clojure.test :refer :all]
-            [pronto.core :refer [defmapper]])
-  (:import (protogen.generated Cycle$A)))
+            [pronto.core :refer [defmapper] :as p]
+            [pronto.reflection :as r])
+  (:import (protogen.generated Cycle$A People$Person People$Address)
+           (pronto ProtoMapper)))
 
 (deftest cyclic-schema-test
   (testing "defmapper should pass without errors"
     (eval '(pronto.core/defmapper
              cyclic-mapper
              [protogen.generated.Cycle$A]))))
+
+(defmapper eager-mapper [People$Person])
+
+(defmapper lazy-mapper [People$Person] :lazy? true)
+
+(defn- proto-map-class-name [mapper-ns class-name]
+  (str mapper-ns ".protogen_generated_People__" class-name "ProtoMap"))
+
+(deftest lazy-mapper-test
+  (testing "proto-map classes are generated on first use"
+    ;; compiling hinted code (e.g, `proto-map` with key-value pairs) also counts as a use,
+    ;; so this mapper is only used via the `ProtoMapper` interface
+    (let [^ProtoMapper m (binding [*ns* (the-ns 'pronto.compilation-test)]
+                           (eval '(do (pronto.core/defmapper on-demand-mapper
+                                        [protogen.generated.People$Person]
+                                        :lazy? true)
+                                      on-demand-mapper)))
+          mapper-ns      "pronto.protos.pronto.compilation_test.on_demand_mapper"]
+      (is (not (r/class-defined? (proto-map-class-name mapper-ns "Address"))))
+      (is (not (r/class-defined? (proto-map-class-name mapper-ns "Person"))))
+
+      (is (= (p/proto-map eager-mapper People$Address)
+             (.getProto m People$Address)))
+      (is (r/class-defined? (proto-map-class-name mapper-ns "Address")))
+      (is (not (r/class-defined? (proto-map-class-name mapper-ns "Person"))))
+
+      (is (= (p/proto-map eager-mapper People$Person :id 3)
+             (.fromCljMap m People$Person {:id 3})))
+      (is (r/class-defined? (proto-map-class-name mapper-ns "Person")))))
+
+  (testing "lazy mappers behave like eager ones"
+    (let [m {:id 1 :name "joe" :address {:city "NYC"} :relations {"a" {:id 2}}}]
+      (is (= (p/clj-map->proto-map eager-mapper People$Person m)
+             (p/clj-map->proto-map lazy-mapper People$Person m)))
+      (is (= (p/proto-map->clj-map (p/clj-map->proto-map eager-mapper People$Person m))
+             (p/proto-map->clj-map (p/clj-map->proto-map lazy-mapper People$Person m))))
+      (is (= (p/proto-map lazy-mapper People$Person :id 1)
+             (p/bytes->proto-map lazy-mapper People$Person
+                                 (p/proto-map->bytes (p/proto-map eager-mapper People$Person :id 1)))))
+      (is (= (p/bytes->proto-map eager-mapper People$Person
+                                 (p/proto-map->bytes (p/clj-map->proto-map eager-mapper People$Person m))
+                                 {:fields [:id [:address :city]]})
+             (p/bytes->proto-map lazy-mapper People$Person
+                                 (p/proto-map->bytes (p/clj-map->proto-map eager-mapper People$Person m))
+                                 {:fields [:id [:address :city]]})))
+      (is (= (class (p/proto-map lazy-mapper People$Address))
+             (class (:address (p/clj-map->proto-map lazy-mapper People$Person m)))))))
+
+  (testing "hints on lazy mappers"
+    (let [person (p/proto-map lazy-mapper People$Person)]
+      (is (= "LA"
+             (p/with-hints [(p/hint person People$Person lazy-mapper)]
+               (p/p-> person
+                      (assoc-in [:address :city] "LA")
+                      :address
+                      :city)))))))
+
+(deftest lazy-mapper-concurrency-test
+  ;; as in `lazy-mapper-test`, the mapper is only used via the `ProtoMapper` interface,
+  ;; so its classes are generated by the racing threads rather than at compile time
+  (let [^ProtoMapper m (binding [*ns* (the-ns 'pronto.compilation-test)]
+                         (eval '(do (pronto.core/defmapper concurrent-lazy-mapper
+                                      [protogen.generated.People$Person]
+                                      :lazy? true)
+                                    concurrent-lazy-mapper)))
+        mapper-ns      "pronto.protos.pronto.compilation_test.concurrent_lazy_mapper"
+        clazz          People$Person
+        n              8
+        start          (promise)
+        futures        (doall
+                         (repeatedly n #(future
+                                          @start
+                                          (persistent! (assoc! (.getTransient m clazz) :id 1)))))]
+    (is (not (r/class-defined? (proto-map-class-name mapper-ns "Person"))))
+    (deliver start true)
+    (let [results (map deref futures)]
+      (is (= 1 (count (set (map class results)))))
+      (is (= 1 (count (set results))))
+      (is (= (p/proto-map eager-mapper People$Person :id 1) (first results))))))
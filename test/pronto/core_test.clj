@@ -4,14 +4,16 @@
             [pronto.lens]
             [pronto.utils :as u]
             [clojure.string :as s]
-            [clojure.walk])
+            [clojure.walk]
+            [clojure.core.reducers :as r])
   (:import [protogen.generated People$Person People$Person$Builder
             People$Address People$Like People$Level
             People$House People$Apartment
             People$UUID People$PersonOrBuilder]
            [com.google.protobuf ByteString]
            [clojure.lang ExceptionInfo]
-           [pronto ProntoVector]))
+           [pronto ProntoVector ProntoMap DeferredProtoMap
+            PrimitiveProntoVector$Ints PrimitiveProntoVector$Doubles PrimitiveProntoVector$Booleans]))
 
 
 ;; TODO: break this file into multiple ns's
@@ -539,6 +541,46 @@
       (is (= (p/p-> person (get :name)) "Joe")))))
 
 
+(deftest p->-test-hinted-elements []
+  (let [person (p/clj-map->proto-map mapper People$Person
+                                     {:name      "Joe"
+                                      :likes     [{:desc "a"} {:desc "b" :level :LOW}]
+                                      :relations {"bff" {:name "bob"}}
+                                      :s2s       {"x" "1"}
+                                      :ids_list  [1 2 3]})
+        i      1]
+    (p/with-hints
+      [(p/hint person People$Person mapper)]
+      (testing "updating elements of repeated and map fields in place"
+        (is (= (p/p-> person
+                      (update-in [:likes i :desc] s/upper-case)
+                      (assoc-in [:likes 0 :level] :HIGH)
+                      (assoc-in [:likes 2 :desc] "c")
+                      (assoc-in [:likes 3] {:desc "d"})
+                      (update-in [:relations "bff" :name] s/capitalize)
+                      (assoc-in [:relations "new" :age_millis] 5)
+                      (assoc-in [:s2s "y"] "2")
+                      (update-in [:s2s "x"] str "!")
+                      (update-in [:ids_list 1] * 10))
+               (p/clj-map->proto-map mapper People$Person
+                                     {:name      "Joe"
+                                      :likes     [{:desc "a" :level :HIGH} {:desc "B" :level :LOW} {:desc "c"} {:desc "d"}]
+                                      :relations {"bff" {:name "Bob"} "new" {:age_millis 5}}
+                                      :s2s       {"x" "1!" "y" "2"}
+                                      :ids_list  [1 20 3]})))
+        (is (= ["a" "b"] (map :desc (:likes person)))))
+      (testing "out of range indices"
+        (is (thrown? IndexOutOfBoundsException
+                     (p/p-> person (assoc-in [:likes 5 :desc] "x"))))
+        (is (thrown? IndexOutOfBoundsException
+                     (p/p-> person (assoc-in [:ids_list 5] 1)))))
+      (testing "type errors"
+        (is (thrown-with-msg? ExceptionInfo #"Invalid type"
+                              (p/p-> person (assoc-in [:ids_list 0] "x"))))
+        (is (thrown-with-msg? ExceptionInfo #"Invalid type"
+                              (p/p-> person (assoc-in [:s2s "x"] 1))))))))
+
+
 (deftest assoc-if-test []
   (let [person (assoc empty-person :name "Joe")]
     (is (= "Bob" (p/p-> person
@@ -630,6 +672,169 @@
       (is (= (pop v) (pop likes))))))
 
 
+(deftest transient-vector-test []
+  (let [likes (mapv #(make-like :desc (str "desc" %) :level People$Level/LOW) (range 100))
+        p     (p/proto-map mapper People$Person :likes likes :pet_names ["a" "b" "c"])
+        v     (:likes p)]
+    (testing "updates do not copy the underlying list"
+      (let [v2 (-> v (assoc 5 {:desc "five"}) pop pop (conj {:desc "last"}))]
+        (is (= 99 (count v2)))
+        (is (= "five" (:desc (nth v2 5))))
+        (is (= "last" (:desc (peek v2))))
+        (is (= (-> likes (assoc 5 (make-like :desc "five")) pop pop (conj (make-like :desc "last")))
+               v2))
+        (is (= v2 (:likes (assoc p :likes v2))))
+        (is (= likes v))))
+    (testing "many updates"
+      (let [v2 (reduce #(assoc %1 %2 {:desc "x"}) v (range 0 100 2))]
+        (is (= (map-indexed (fn [i l] (if (even? i) (make-like :desc "x") l)) likes) v2))
+        (is (= likes v))))
+    (testing "transients"
+      (let [t  (transient v)
+            t  (-> t (assoc! 0 {:desc "first"}) (conj! {:desc "new"}) pop! pop!)
+            v2 (persistent! t)]
+        (is (= 99 (count v2)))
+        (is (= "first" (:desc (first v2))))
+        (is (= (pop (assoc likes 0 (make-like :desc "first"))) v2))
+        (is (= likes v))
+        (is (thrown? IllegalAccessError (conj! t {})))
+        (is (thrown? Exception (pop! (transient (pop (pop (pop (:pet_names p)))))))))
+      (is (= ["b" "c" "e"]
+             (-> (:pet_names p) transient (assoc! 0 "b") (assoc! 1 "c") (conj! "d") pop! pop! (conj! "e")
+                 persistent!))))
+    (testing "persistent! compacts a large overlay into a new list"
+      (let [overlay (doto (.getDeclaredField ProntoVector "overlay") (.setAccessible true))
+            v2      (persistent! (reduce #(assoc! %1 %2 {:desc "x"}) (transient v) (range 0 100 2)))
+            ids     (:ids_list (p/proto-map mapper People$Person :ids_list (range 100)))
+            ids2    (persistent! (reduce #(assoc! %1 %2 0) (transient ids) (range 50)))]
+        (is (= (map-indexed (fn [i l] (if (even? i) (make-like :desc "x") l)) likes) v2))
+        (is (zero? (count (.get overlay v2))))
+        (is (= likes v))
+        (is (= (concat (repeat 50 0) (range 50 100)) ids2))
+        (is (zero? (count (.get overlay ids2))))
+        (is (= (range 100) ids))))
+    (testing "vectors over a transient proto-map write to its builder only when assoc!ed back"
+      (let [t (transient p)]
+        (-> (:pet_names t) transient (assoc! 0 "z") (conj! "d"))
+        (-> (:ids_list t) transient (conj! 1) (conj! 2))
+        (is (= [9] (into (:ids_list t) [9])))
+        (is (= ["a" "b" "c" "x"] (into (:pet_names t) ["x"])))
+        (is (= [] (:ids_list t)))
+        (is (= ["a" "b" "c"] (:pet_names t)))
+        (assoc! t :pet_names (-> (:pet_names t) (assoc 0 "z") (conj "d")))
+        (assoc! t :ids_list (persistent! (-> (:ids_list t) transient (conj! 1) (conj! 2))))
+        (assoc! t :likes (assoc (:likes t) 1 {:desc "one"}))
+        (assoc! t :pet_names (conj (:pet_names t) "e"))
+        (let [p2 (persistent! t)]
+          (is (= ["z" "b" "c" "d" "e"] (:pet_names p2)))
+          (is (= [1 2] (:ids_list p2)))
+          (is (= "one" (:desc (nth (:likes p2) 1))))
+          (is (= ["a" "b" "c"] (:pet_names p))))))
+    (testing "vectors read before the field was written to are written back as a whole"
+      (let [t (transient p)
+            v (:pet_names t)]
+        (assoc! t :pet_names (assoc v 0 "q"))
+        (assoc! t :pet_names (assoc v 1 "r"))
+        (is (= ["a" "r" "c"] (:pet_names (persistent! t)))))
+      (let [t (transient p)
+            v (:pet_names t)]
+        (assoc! t :pet_names ["x" "y" "z"])
+        (assoc! t :pet_names (assoc v 0 "q"))
+        (is (= ["q" "b" "c"] (:pet_names (persistent! t)))))
+      (let [t (transient p)
+            v (:likes t)]
+        (p/clear-field! t :likes)
+        (assoc! t :likes (conj v {:desc "new"}))
+        (is (= (conj likes (make-like :desc "new")) (:likes (persistent! t)))))
+      (let [t (assoc! (transient p) :pet_names ["a" "b" "c"])
+            v (:pet_names t)]
+        (assoc! t :pet_names (assoc v 0 "q"))
+        (is (= ["a" "b" "c"] v))
+        (assoc! t :pet_names (assoc v 1 "r"))
+        (is (= ["a" "r" "c"] (:pet_names (persistent! t))))))
+    (testing "vectors read from builders by hinted updates"
+      (is (= ["a" "b" "c" "d"]
+             (:pet_names (p/with-hints [(p/hint p People$Person mapper)]
+                           (p/p-> p (update :pet_names conj "d")))))))
+    (testing "persistent! snapshots vectors over a transient proto-map"
+      (let [t  (transient (p/proto-map mapper People$Person :ids_list [1 2 3]))
+            v  (:ids_list t)
+            v2 (persistent! (assoc! (transient v) 0 10))
+            v3 (persistent! (assoc! (transient v2) 0 20))]
+        (is (= [10 2 3] v2))
+        (is (= [20 2 3] v3))
+        (is (= [1 2 3] v))
+        (assoc! t :ids_list [7 8 9])
+        (is (= [10 2 3] v2))
+        (is (= [7 8 9] (:ids_list (persistent! t))))))))
+
+
+(deftest pronto-map-test []
+  (let [p (p/proto-map mapper People$Person
+                       :s2s {"a" "1" "b" "2"}
+                       :relations_like_level {"x" :HIGH})
+        m (:s2s p)]
+    (is (instance? ProntoMap m))
+    (is (= {"a" "1" "b" "2"} m))
+    (is (= (hash {"a" "1" "b" "2"}) (hash m)))
+    (is (= "1" (get m "a")))
+    (is (nil? (get m 123)))
+    (is (= :nope (get m "c" :nope)))
+    (is (thrown? ExceptionInfo (assoc m "c" 3)))
+    (ensure-immutable
+      m
+      (is (= {"a" "1" "b" "2" "c" "3"} (assoc m "c" "3"))))
+    (ensure-immutable
+      m
+      (is (= {"b" "2"} (dissoc m "a")))
+      (is (= 1 (count (dissoc m "a" "c")))))
+    (ensure-immutable
+      m
+      (is (= {"a" "x" "b" "2"} (reduce-kv (fn [acc k v] (assoc acc k v))
+                                          {}
+                                          (assoc m "a" "x")))))
+    (is (= {} (empty m)))
+    (is (= {"x" :LOW} (:relations_like_level (update p :relations_like_level assoc "x" :LOW))))
+    (is (= {"b" "2" "c" "3"}
+           (:s2s (update p :s2s #(-> % (dissoc "a") (assoc "c" "3"))))))
+    (testing "writing a view back into the transient it came from"
+      (let [t (transient p)]
+        (assoc! t :s2s (-> (get t :s2s) (dissoc "a") (assoc "c" "3")))
+        (is (= {"b" "2" "c" "3"} (:s2s (persistent! t))))))
+    (testing "views over a transient count the entries of its builder"
+      (let [t (transient p)
+            _ (assoc! t :s2s {"a" "1" "b" "2"})
+            v (get t :s2s)
+            w (dissoc v "a")]
+        (assoc! t :s2s {"a" "1" "b" "2" "c" "3"})
+        (is (= (count (seq v)) (count v)))
+        (is (= (into {} (seq v)) v))
+        (is (= (count (seq w)) (count w)))
+        (is (= (into {} (seq w)) w))
+        (is (= {"a" "1" "b" "2" "c" "3"} (:s2s (persistent! t))))))
+    (testing "views read before the field was written to are written back as a whole"
+      (let [t (transient p)
+            v (:s2s t)]
+        (assoc! t :s2s (assoc v "c" "3"))
+        (assoc! t :s2s (assoc v "d" "4"))
+        (is (= {"a" "1" "b" "2" "d" "4"} (:s2s (persistent! t)))))
+      (let [t (transient p)
+            v (:s2s t)]
+        (assoc! t :s2s {"x" "0"})
+        (assoc! t :s2s (dissoc v "a"))
+        (is (= {"b" "2"} (:s2s (persistent! t)))))
+      (let [t (assoc! (transient p) :s2s {"a" "1" "b" "2"})
+            v (:s2s t)]
+        (assoc! t :s2s (assoc v "c" "3"))
+        (is (= {"a" "1" "b" "2"} v))
+        (assoc! t :s2s (assoc v "d" "4"))
+        (is (= {"a" "1" "b" "2" "d" "4"} (:s2s (persistent! t))))))
+    (is (= {"b" "2" "c" "3"}
+           (:s2s (p/p-> p
+                        (update :s2s dissoc "a")
+                        (assoc-in [:s2s "c"] "3")))))))
+
+
 (deftest proto-map->clj-map-test []
   (let [p        (p/proto-map mapper
                               People$Person
@@ -842,3 +1047,648 @@ an error in the generated code"
 
       (is (= (assoc p2 :level :LOW) p1))
       (is (p/has-field? (assoc p2 :level :LOW) :level)))))
+
+
+(defmapper deferred-mapper [People$Person]
+  :max-deferred-writes 4)
+
+(defmapper metered-deferred-mapper [People$Person]
+  :max-deferred-writes 64
+  :metrics? true)
+
+(deftest deferred-writes-test
+  (let [p0 (p/proto-map deferred-mapper People$Person)
+        p1 (assoc p0 :id 1)
+        p2 (-> p1 (assoc :name "foo") (assoc :num 5))
+        p3 (-> p2 (assoc :str "bar") (assoc :email "a") (assoc :age_millis 2) (assoc :id 3))]
+    (is (instance? DeferredProtoMap p1))
+    (testing "every map in a chain keeps its own value"
+      (is (= 1 (:id p1)))
+      (is (= "" (:name p1)))
+      (is (= 5 (:num p2)))
+      (is (= :num (p/which-one-of p2 :thing)))
+      (is (= :str (p/which-one-of p3 :thing)))
+      (is (= 3 (:id p3)))
+      (is (= {:id 3 :name "foo" :str "bar" :email "a" :age_millis 2}
+             (select-keys p3 [:id :name :str :email :age_millis]))))
+    (testing "forking a chain"
+      (let [p2' (assoc p1 :name "baz")]
+        (is (= "baz" (:name p2')))
+        (is (= "foo" (:name p2)))
+        (is (= 1 (:id p2')))))
+    (testing "equality, hashing and serialization"
+      (let [expected (p/proto-map mapper People$Person :id 1 :name "foo" :num 5)
+            p2'      (-> (p/proto-map deferred-mapper People$Person) (assoc :id 1) (assoc :name "foo") (assoc :num 5))]
+        (is (= expected p2))
+        (is (= p2 expected))
+        (is (= p2 p2'))
+        (is (= (hash p2) (hash p2')))
+        (is (= (p/proto-map->proto expected) (p/proto-map->proto p2)))
+        (is (= expected (p/bytes->proto-map mapper People$Person (p/proto-map->bytes p2))))))
+    (testing "type errors are still thrown on assoc"
+      (is (thrown? Exception (assoc p1 :id "foo")))
+      (is (= 1 (:id p1))))
+    (testing "nested and transient updates"
+      (let [p (-> p1 (assoc :address {:city "x"}) (assoc-in [:address :house_num] 3))]
+        (is (= {:city "x" :house_num 3} (select-keys (:address p) [:city :house_num]))))
+      (is (= 2 (:id (p/p-> p1 (assoc :id 2))))))
+    (testing "a deferred proto-map is a valid field value"
+      (let [p (assoc (p/proto-map mapper People$Person) :person p2)]
+        (is (= 5 (get-in p [:person :num])))))
+    (testing "hinted p->"
+      (p/with-hints [(p/hint p2 People$Person deferred-mapper)]
+        (is (= "foo" (p/p-> p2 :name)))
+        (is (= 7 (:num (p/p-> p2 (assoc :num 7)))))
+        (is (= "x" (p/p-> p2 (assoc-in [:address :city] "x") :address :city))))
+      (is (= 5 (p/p-> (p/hint p2 People$Person deferred-mapper) :num))))
+    (testing "reads of the most recent map of a chain do not build it"
+      (let [builds #(get-in (p/metrics metered-deferred-mapper) [People$Person :build] 0)
+            p      (p/proto-map metered-deferred-mapper People$Person)
+            before (builds)
+            p'     (reduce (fn [m _] (-> m (update :id inc) (update :likes conj {:desc "x"})))
+                           (assoc p :id 0)
+                           (range 10))]
+        (is (= 10 (:id p')))
+        (is (= 10 (count (:likes p'))))
+        (is (= [:id 10] (find p' :id)))
+        (let [p'' (-> p' (assoc :num 1) (assoc :address {}))]
+          (is (= :num (p/which-one-of p'' :thing)))
+          (is (p/has-field? p'' :address))
+          (is (= before (builds)))
+          (is (= 10 (.getId ^People$Person (p/proto-map->proto p''))))
+          (is (= (inc before) (builds))))))
+    (testing "metadata"
+      (let [p (with-meta p2 {:a 1})]
+        (is (= {:a 1} (meta p)))
+        (is (nil? (meta (with-meta p nil))))
+        (is (= p2 (with-meta p nil)))
+        (is (identical? p2 (with-meta p2 nil)))))))
+
+
+(defmapper skip-defaults-mapper [People$Person]
+  :skip-default-values? true)
+
+(deftest reduce-test
+  (let [p (p/proto-map mapper People$Person :id 3 :name "foo" :pet_names ["a"])]
+    (is (= (into {} (seq p)) (into {} p)))
+    (is (= (into {} (seq p))
+           (reduce-kv assoc {} p)))
+    (is (= (count p) (count (seq p)) (reduce (fn [n _] (inc n)) 0 p)))
+    (testing "early termination"
+      (is (= [:id 3]
+             (reduce (fn [_ e] (reduced e)) nil p)))
+      (is (= 1 (reduce-kv (fn [n _ _] (if (= n 1) (reduced n) (inc n))) 0 p))))
+    (testing "iterator"
+      (let [it (.iterator ^Iterable p)]
+        (is (= [:id 3] (.next it)))
+        (is (= [:name "foo"] (.next it)))))))
+
+(deftest skip-default-values-test
+  (let [p (p/proto-map skip-defaults-mapper People$Person
+                       :id 3 :pet_names ["a"] :num 0 :address {:city "x"})]
+    (testing "a one-of member which is set is kept even if it holds a default value"
+      (is (= {:id 3 :pet_names ["a"] :num 0 :address {:city "x"}}
+             (update (into {} p) :address #(into {} %))
+             (update (reduce-kv assoc {} p) :address #(reduce-kv assoc {} %)))))
+    (is (= #{:id :pet_names :num :address} (set (keys p))))
+    (is (= {:city "x"} (into {} (:address p))))
+    (is (empty? (seq (p/proto-map skip-defaults-mapper People$Person))))
+    (testing "lookups are not affected"
+      (is (= "" (:name p)))
+      (is (contains? p :name)))))
+
+
+(deftest clj-map-converters-test []
+  (let [m  {:id        1
+            :name      "joe"
+            :address   {:city "x" :house {:num_rooms 3}}
+            :likes     [{:desc "a" :level :HIGH}
+                        (make-like :desc "b" :level People$Level/LOW)]
+            :pet_names ["p"]
+            :relations {"friend" {:name "jane"}}
+            :person    {:name "nested" :likes [{:desc "c"}]}}
+        p  (p/clj-map->proto-map mapper People$Person m)
+        c  (p/proto-map->clj-map p)
+        p2 (p/proto-map mapper People$Person
+                        :id 1 :name "joe" :pet_names ["p"]
+                        :address (p/proto-map mapper People$Address
+                                              :city "x"
+                                              :house (p/proto-map mapper People$House :num_rooms 3))
+                        :likes [(make-like :desc "a" :level People$Level/HIGH) (make-like :desc "b" :level People$Level/LOW)]
+                        :relations {"friend" (p/proto-map mapper People$Person :name "jane")}
+                        :person (p/proto-map mapper People$Person
+                                             :name "nested"
+                                             :likes [(make-like :desc "c")]))]
+    (testing "clj-map->proto-map"
+      (is (= p2 p))
+      (is (= :person (p/which-one-of p :thing)))
+      (is (= (p/proto-map->proto p2) (p/proto-map->proto p)))
+      (is (= {:x 1} (meta (p/clj-map->proto-map mapper People$Person (with-meta {:id 1} {:x 1})))))
+      (is (thrown? IllegalArgumentException
+                   (p/clj-map->proto-map mapper People$Person {:no-such-key 1})))
+      (is (thrown? Exception
+                   (p/clj-map->proto-map mapper People$Person {:address {:city 1}})))
+      (is (thrown? Exception
+                   (p/clj-map->proto-map mapper People$Person {:likes [1]}))))
+    (testing "proto-map->clj-map"
+      (is (= (p/proto-map->clj-map p (map identity)) c))
+      (is (not (p/proto-map? (:address c))))
+      (is (not (p/proto-map? (get-in c [:address :house]))))
+      (is (not (p/proto-map? (get-in c [:person :likes 0]))))
+      (is (= {:desc "a" :level :HIGH} (select-keys (get-in c [:likes 0]) [:desc :level])))
+      (is (= (p/proto-map->clj-map (p/proto-map skip-defaults-mapper People$Person :id 3 :address {})
+                                   (map identity))
+             (p/proto-map->clj-map (p/proto-map skip-defaults-mapper People$Person :id 3 :address {}))
+             {:id 3 :address {}})))))
+
+
+(deftest batch-conj-test
+  (let [p (with-meta (p/proto-map mapper People$Person :id 1 :name "a" :pet_names ["x"])
+            {:k 1})]
+    (testing "maps"
+      (let [p2 (merge p {:name "b" :age_millis 3 :pet_names ["y" "z"]})]
+        (is (= {:k 1} (meta p2)))
+        (is (= [1 "b" 3 ["y" "z"]] ((juxt :id :name :age_millis :pet_names) p2)))
+        (is (= p2 (reduce-kv assoc p {:name "b" :age_millis 3 :pet_names ["y" "z"]})))
+        (is (= p2 (into p {:name "b" :age_millis 3 :pet_names ["y" "z"]})))
+        (is (= p2 (into p [[:name "b"] [:age_millis 3] [:pet_names ["y" "z"]]])))
+        (is (identical? p (merge p {})))
+        (is (thrown? Exception (merge p {:name "b" :no-such-key 1})))
+        (is (= "a" (:name p)))))
+    (testing "proto-maps of the same class"
+      (let [other (p/proto-map mapper People$Person :id 2 :pet_names ["y"])
+            p2    (merge p other)]
+        (is (= other p2))
+        (is (= [] (:pet_names (conj p (p/proto-map mapper People$Person)))))
+        (is (= {:k 1} (meta p2)))
+        (is (= other (persistent! (conj! (transient p) other))))
+        (is (= other (into p other)))))
+    (testing "proto-maps which are iterated partially"
+      (let [p     (p/proto-map skip-defaults-mapper People$Person :id 1 :name "a")
+            other (p/proto-map skip-defaults-mapper People$Person :id 2)
+            p2    (merge p other)]
+        (is (= [2 "a"] ((juxt :id :name) p2)))
+        (is (= p2 (persistent! (conj! (transient p) other))))))))
+
+
+(defmapper caching-mapper [People$Person]
+  :cache-children? true)
+
+(deftest cache-children-test
+  (let [p (p/proto-map caching-mapper People$Person
+                       :id 1
+                       :address {:city "x"}
+                       :likes [{:desc "a"}]
+                       :relations {"friend" {:name "jane"}}
+                       :ids_list [1 2])]
+    (is (identical? (:address p) (:address p)))
+    (is (identical? (:likes p) (:likes p)))
+    (is (identical? (:relations p) (:relations p)))
+    (is (identical? (:ids_list p) (:ids_list p)))
+    (is (identical? (:address p) (val (first (filter #(= :address (key %)) p)))))
+    (is (identical? (:address p) (:address (with-meta p {:a 1}))))
+    (is (nil? (:person p)))
+    (testing "updates are not affected"
+      (let [p2 (assoc-in p [:address :city] "y")]
+        (is (= "y" (get-in p2 [:address :city])))
+        (is (= "x" (get-in p [:address :city])))
+        (is (= [1 2 3] (:ids_list (update p :ids_list conj 3))))
+        (is (= [1 2] (:ids_list p)))
+        (is (= "z" (-> p transient (assoc! :address {:city "z"}) persistent! :address :city)))))
+    (is (= (p/proto-map->proto p)
+           (p/proto-map->proto (p/proto-map mapper People$Person
+                                            :id 1
+                                            :address {:city "x"}
+                                            :likes [{:desc "a"}]
+                                            :relations {"friend" {:name "jane"}}
+                                            :ids_list [1 2]))))))
+
+
+(deftest keyword-lookup-test
+  (let [p      (p/proto-map mapper People$Person :id 1 :address {:city "x"} :ids_list [1 2])
+        cached (p/proto-map caching-mapper People$Person :id 2 :address {:city "y"})
+        id     (fn [m] (:id m))
+        city   (fn [m] (:city (:address m)))]
+    (is (instance? clojure.lang.IKeywordLookup p))
+    (is (some? (.getLookupThunk ^clojure.lang.IKeywordLookup p :id)))
+    (is (nil? (.getLookupThunk ^clojure.lang.IKeywordLookup p :no-such-key)))
+    (testing "call sites which see several classes"
+      (dotimes [_ 3]
+        (is (= [1 2 3 nil 1]
+               (map id [p cached {:id 3} {} (transient p)])))
+        (is (= ["x" "y" nil] (map city [p cached {}])))))
+    (is (= [1 2] (:ids_list p)))
+    (is (thrown? IllegalArgumentException (:no-such-key p)))
+    (is (identical? (:address cached) (:address cached)))))
+
+
+(deftest primitive-vector-test
+  (let [p  (p/proto-map mapper People$Person
+                        :ids_list [1 2 3]
+                        :repeated_doubles (mapv double (range 100))
+                        :repeated_bools [true false])
+        ds (:repeated_doubles p)
+        xs (:ids_list p)]
+    (is (instance? PrimitiveProntoVector$Doubles ds))
+    (is (instance? PrimitiveProntoVector$Ints xs))
+    (is (instance? PrimitiveProntoVector$Booleans (:repeated_bools p)))
+    (is (= (mapv double (range 100)) ds))
+    (is (= [1 2 3] xs))
+    (is (= 4950.0 (reduce (fn [acc ^double x] (+ (double acc) x)) 0.0 ds)))
+    (is (= 4950.0 (reduce + ds)))
+    (is (= 6 (reduce (fn [acc ^long x] (+ (long acc) x)) 0 xs)))
+    (is (= 3.0 (reduce (fn [acc x] (if (= x 3.0) (reduced x) acc)) nil ds)))
+    (is (chunked-seq? (seq ds)))
+    (is (= (range 100) (map long ds)))
+    (testing "updates"
+      (let [is2 (-> xs (conj 4) (assoc 0 0) pop (conj 5))]
+        (is (instance? PrimitiveProntoVector$Ints is2))
+        (is (= [0 2 3 5] is2))
+        (is (= 10 (reduce (fn [acc ^long x] (+ (long acc) x)) 0 is2)))
+        (is (= [0 2 3 5] (:ids_list (assoc p :ids_list is2))))
+        (is (= [1 2 3 6] (:ids_list (update p :ids_list conj 6))))
+        (is (= [1 2 3 7] (:ids_list (p/p-> p (update :ids_list conj 7)))))
+        (is (= [] (empty is2)))
+        (is (thrown? Exception (conj xs "a")))))
+    (testing "transient reads"
+      (is (= [1 2 3] (:ids_list (transient p)))))))
+
+
+(defmapper metered-mapper [People$Person]
+  :metrics? true)
+
+(deftest metrics-test
+  (let [counts (fn [clazz] (get (p/metrics metered-mapper) clazz))
+        delta  (fn [clazz f]
+                 (let [before (counts clazz)]
+                   (f)
+                   (merge-with - (counts clazz) before)))
+        p      (p/clj-map->proto-map metered-mapper People$Person {:id 1 :address {:city "x"}})]
+    (is (nil? (p/metrics mapper)))
+    (is (= #{People$Person People$Address People$Like People$House People$Apartment}
+           (into #{} (filter #{People$Person People$Address People$Like People$House People$Apartment})
+                 (keys (p/metrics metered-mapper)))))
+    (is (= {:assoc 1 :to-builder 1 :build 1 :wrap 1}
+           (select-keys (delta People$Person #(assoc p :id 2))
+                        [:assoc :to-builder :build :wrap])))
+    (is (= {:assoc 2 :to-builder 1 :build 1 :persistent 1}
+           (select-keys (delta People$Person #(-> p transient (assoc! :id 2) (assoc! :name "a") persistent!))
+                        [:assoc :to-builder :build :persistent])))
+    (let [bytes (p/proto-map->bytes p)]
+      (is (= {:serialize 1 :bytes-serialized (count bytes)}
+             (select-keys (delta People$Person #(p/proto-map->bytes p)) [:serialize :bytes-serialized])))
+      (is (= {:parse 1 :bytes-parsed (count bytes)}
+             (select-keys (delta People$Person #(p/bytes->proto-map metered-mapper People$Person bytes))
+                          [:parse :bytes-parsed]))))
+    (is (= {:to-clj-map 1 :from-clj-map 1}
+           (select-keys (delta People$Person #(p/clj-map->proto-map metered-mapper People$Person
+                                                                     (p/proto-map->clj-map p)))
+                        [:to-clj-map :from-clj-map])))
+    (is (= 1 (:to-clj-map (delta People$Address #(p/proto-map->clj-map p)))))
+    (is (= 1 (:type-error (delta People$Person #(is (thrown? ExceptionInfo (assoc p :id "1")))))))
+    (is (= 1 (:type-error (delta People$Person #(is (thrown? ExceptionInfo (assoc! (transient p) :id "1")))))))))
+
+
+(deftest fold-test
+  (let [p     (p/proto-map mapper People$Person
+                           :likes (map #(hash-map :desc (str %)) (range 1000))
+                           :ids_list (range 1000))
+        likes (-> (:likes p) (assoc 3 {:desc "x"}) (conj {:desc "1000"}))
+        ids   (:ids_list p)
+        descs (map :desc likes)]
+    (testing "fold"
+      (is (= (reduce + ids) (r/fold 10 + + ids)))
+      (is (= (reduce + (range 1000)) (r/fold + ids)))
+      (is (= (frequencies descs)
+             (r/fold 7
+                     (r/monoid (partial merge-with +) hash-map)
+                     (fn [m x] (update m (:desc x) (fnil inc 0)))
+                     likes)))
+      (is (= descs (r/fold 16 (r/monoid into vector) (fn [acc x] (conj acc (:desc x))) likes)))
+      (is (= 0 (r/fold + (:likes (p/proto-map mapper People$Person))))))
+    (testing "spliterator"
+      (is (= (range 1000) (iterator-seq (.iterator (.stream ^ProntoVector ids)))))
+      (is (= (reduce + (range 1000))
+             (.sum (.mapToLong (.parallelStream ^ProntoVector ids)
+                               (reify java.util.function.ToLongFunction (applyAsLong [_ x] (long x)))))))
+      (is (= 1000 (.count (.parallelStream ^ProntoVector ids))))
+      (is (= (map p/proto-map->proto likes)
+             (iterator-seq (.iterator (.stream ^ProntoVector likes))))))))
+
+
+(defmapper reusable-mapper [People$Person]
+  :reusable-transients? true)
+
+
+(deftest reusable-transient-test
+  (let [build  (fn [id]
+                 (p/with-reusable-transient [t reusable-mapper People$Person]
+                   (assoc! t :id id)
+                   (assoc! t :address {:city (str "city-" id)})
+                   (persistent! t)))
+        leaked (atom nil)
+        p1     (build 1)
+        p2     (build 2)]
+    (is (= [1 "city-1"] ((juxt :id (comp :city :address)) p1)))
+    (is (= [2 "city-2"] ((juxt :id (comp :city :address)) p2)))
+    (testing "transients are reset between uses"
+      (is (= 0 (p/with-reusable-transient [t reusable-mapper People$Person]
+                 (:id (persistent! t))))))
+    (testing "transients are reused per thread"
+      (is (identical? (p/with-reusable-transient [t reusable-mapper People$Person] t)
+                      (p/with-reusable-transient [t reusable-mapper People$Person] t)))
+      (is (not (identical? (p/with-reusable-transient [t reusable-mapper People$Person] t)
+                           @(future (p/with-reusable-transient [t reusable-mapper People$Person] t))))))
+    (testing "nested uses get a new transient"
+      (is (= [3 4]
+             (p/with-reusable-transient [t reusable-mapper People$Person]
+               (assoc! t :id 3)
+               (let [inner (p/with-reusable-transient [t2 reusable-mapper People$Person]
+                             (is (not (identical? t t2)))
+                             (persistent! (assoc! t2 :id 4)))]
+                 [(:id (persistent! t)) (:id inner)])))))
+    (testing "transients cannot be used after persistent! or outside of the body"
+      (is (thrown? IllegalAccessError
+                   (p/with-reusable-transient [t reusable-mapper People$Person]
+                     (persistent! t)
+                     (assoc! t :id 1))))
+      (is (thrown? IllegalAccessError
+                   (p/with-reusable-transient [t reusable-mapper People$Person]
+                     (persistent! t)
+                     (persistent! t))))
+      (p/with-reusable-transient [t reusable-mapper People$Person]
+        (reset! leaked t))
+      (is (thrown? IllegalAccessError (assoc! @leaked :id 1))))
+    (testing "unresolved classes"
+      (let [clazz People$Address]
+        (is (= "x" (:city (p/with-reusable-transient [t reusable-mapper clazz]
+                            (persistent! (assoc! t :city "x"))))))))
+    (testing "mappers defined without `:reusable-transients? true`"
+      (is (thrown? UnsupportedOperationException
+                   (p/with-reusable-transient [t mapper People$Person] t)))
+      (let [clazz People$Person]
+        (is (thrown? UnsupportedOperationException
+                     (p/with-reusable-transient [t mapper clazz] t)))))
+    (is (= [1 "city-1"] ((juxt :id (comp :city :address)) p1)))))
+
+
+(defmapper diff-mapper [People$Person]
+  :diff? true)
+
+
+(deftest diff-patch-test
+  (let [a (p/clj-map->proto-map diff-mapper People$Person
+                                {:id           1
+                                 :name         "Joe"
+                                 :email        "joe@example.com"
+                                 :address      {:city "NYC" :street "Broadway" :house {:num_rooms 3}}
+                                 :likes        [{:desc "a"}]
+                                 :relations    {"bff" {:name "bob"} "ex" {:name "alice"}}
+                                 :levels       [:LOW]
+                                 :s2s          {"x" "1" "y" "2"}
+                                 :level        :HIGH
+                                 :maiden_name  "Doe"})
+        b (p/p-> a
+                 (assoc :name "Joseph")
+                 (assoc :email "")
+                 (assoc-in [:address :city] "Boston")
+                 (assoc-in [:address :street] "")
+                 (assoc :likes [])
+                 (assoc :relations {"bff" {:name "bob"} "new" {:name "eve"}})
+                 (assoc :s2s {"x" "1" "y" "3"})
+                 (assoc :str "thing")
+                 (assoc :uuid {:value "id"})
+                 (assoc :levels [:HIGH :LOW])
+                 (assoc :relations_like_level {"a" :HIGH})
+                 (p/clear-field :maiden_name))]
+    (testing "the delta"
+      (let [{:keys [changes cleared]} (p/diff a b)]
+        (is (= (p/clj-map->proto-map diff-mapper People$Person
+                                     {:name      "Joseph"
+                                      :address   {:city "Boston"}
+                                      :relations {"new" {:name "eve"}}
+                                      :s2s       {"y" "3"}
+                                      :str       "thing"
+                                      :uuid      {:value "id"}
+                                      :levels    [:HIGH :LOW]
+                                      :relations_like_level {"a" :HIGH}})
+               changes))
+        (is (= #{[:email] [:address :street] [:likes] [:relations "ex"] [:level] [:maiden_name]}
+               cleared))))
+    (testing "patching"
+      (is (= b (p/patch a (p/diff a b))))
+      (is (= a (p/patch b (p/diff b a))))
+      (testing "with a delta whose changes went through bytes"
+        (let [{:keys [changes cleared]} (p/diff a b)
+              changes                   (p/bytes->proto-map diff-mapper People$Person (p/proto-map->bytes changes))]
+          (is (= b (p/patch a {:changes changes :cleared cleared}))))))
+    (testing "equal proto-maps"
+      (is (= {:changes (p/proto-map diff-mapper People$Person) :cleared #{}} (p/diff a a)))
+      (is (= {:changes (p/proto-map diff-mapper People$Person) :cleared #{}}
+             (p/diff a (p/proto->proto-map diff-mapper (p/proto-map->proto a)))))
+      (testing "with equal but distinct messages"
+        (let [{:keys [changes cleared]} (p/diff a (p/bytes->proto-map diff-mapper People$Person (p/proto-map->bytes a)))]
+          (is (= (p/proto-map diff-mapper People$Person) changes))
+          (is (false? (p/has-field? changes :address)))
+          (is (= #{} cleared)))))
+    (testing "messages whose only changes are cleared fields"
+      (let [c                         (assoc-in a [:address :street] "")
+            {:keys [changes cleared]} (p/diff a c)]
+        (is (false? (p/has-field? changes :address)))
+        (is (= #{[:address :street]} cleared))
+        (is (= c (p/patch a (p/diff a c))))))
+    (testing "new and removed messages"
+      (let [c (assoc a :address nil)]
+        (is (= #{[:address]} (:cleared (p/diff a c))))
+        (is (= c (p/patch a (p/diff a c))))
+        (is (= a (p/patch c (p/diff c a))))))
+    (testing "clearing paths through unset messages"
+      (is (= (p/proto-map diff-mapper People$Person) (p/patch (p/proto-map diff-mapper People$Person) {:cleared #{[:address :city]}}))))
+    (testing "invalid deltas"
+      (is (thrown? IllegalArgumentException (p/patch a {:cleared #{[:name :first]}})))
+      (is (thrown? IllegalArgumentException (p/patch a {:changes (p/proto-map diff-mapper People$Address)})))
+      (is (thrown? IllegalArgumentException (p/diff a (p/proto-map diff-mapper People$Address))))
+      (is (thrown? IllegalArgumentException (p/diff (transient a) b))))
+    (testing "mappers defined without `:diff? true`"
+      (let [c (p/clj-map->proto-map mapper People$Person {:id 1})]
+        (is (thrown? IllegalArgumentException (p/diff c c)))
+        (is (thrown? IllegalArgumentException (p/patch c {:cleared #{[:id]}})))))))
+
+
+(defmapper json-mapper [People$Person]
+  :json? true
+  :encoders
+  {protogen.generated.People$UUID
+   {:from-proto #(try
+                   (java.util.UUID/fromString (.getValue ^People$UUID %))
+                   (catch Exception _))
+    :to-proto   #(let [b (People$UUID/newBuilder)]
+                   (.setValue b (str %))
+                   (.build b))}})
+
+(defmapper json-skip-defaults-mapper [People$Person]
+  :json? true
+  :skip-default-values? true)
+
+(deftest json-test
+  (let [m    (p/clj-map->proto-map json-mapper People$Person
+                                   {:id                   5
+                                    :name                 "Jo\"e\n\u0001é"
+                                    :address              {:city "NYC" :house_num 3 :house {:num_rooms 4}}
+                                    :likes                [{:desc "a" :level :HIGH} {:desc "b"}]
+                                    :relations            {"bro" {:name "B"}}
+                                    :pet_names            ["x" "y"]
+                                    :private_key          (ByteString/copyFromUtf8 "secret")
+                                    :age_millis           Long/MIN_VALUE
+                                    :is_vegetarian        true
+                                    :height_cm            180.5
+                                    :weight_kg            (float 70.1)
+                                    :levels               [:HIGH :MEDIUM]
+                                    :social_security      7
+                                    :maiden_name          "X"
+                                    :uuid                 (java.util.UUID/randomUUID)
+                                    :bla                  {"a" 1.5}
+                                    :ids_list             [1 2 -3]
+                                    :relations_like_level {"x" :MEDIUM}
+                                    :str                  "thing"
+                                    :s2s                  {"k" "v"}
+                                    :repeated_bytes       [(ByteString/copyFromUtf8 "a")]
+                                    :repeated_bools       [true false]
+                                    :repeated_doubles     [1.0 ##NaN]
+                                    :repeated_floats      [(float 1.5)]})
+        s    (p/proto-map->json m)
+        read #(p/json->proto-map json-mapper People$Person %)]
+    (testing "round trips"
+      ;; compare the protos, as NaN is not equal to itself in proto-maps
+      (is (= (p/proto-map->proto m) (p/proto-map->proto (read s))))
+      (is (= s (p/proto-map->json (read s))))
+      (is (= (p/proto-map->proto m) (p/proto-map->proto (read (java.io.StringReader. s)))))
+      (is (= (p/proto-map->proto m)
+             (p/proto-map->proto (read (java.io.ByteArrayInputStream. (.getBytes s "UTF-8"))))))
+      (let [clazz People$Person]
+        (is (= (p/proto-map->proto m)
+               (p/proto-map->proto (p/json->proto-map json-mapper clazz s))))))
+    (testing "writing into sinks"
+      (let [w (java.io.StringWriter.)]
+        (p/write-json w m)
+        (is (= s (str w))))
+      (let [out (java.io.ByteArrayOutputStream.)]
+        (p/write-json out m)
+        (is (= s (.toString out "UTF-8")))))
+    (testing "the JSON matches proto-map->clj-map"
+      (is (= "{\"desc\":\"a\",\"level\":\"HIGH\"}"
+             (p/proto-map->json (first (:likes m)))))
+      (is (= "c2VjcmV0" (re-find #"c2VjcmV0" s))))
+    (testing "unset oneof members and optional fields are written as null, and read as unset"
+      (let [like (p/proto-map json-mapper People$Like)]
+        (is (= "{\"desc\":\"\",\"level\":null}" (p/proto-map->json like)))
+        (is (= like (p/json->proto-map json-mapper People$Like (p/proto-map->json like)))))
+      (is (= :str (p/which-one-of (read s) :thing)))
+      (is (nil? (p/which-one-of (read (p/proto-map->json (p/proto-map json-mapper People$Person))) :thing))))
+    (testing "lenient values"
+      (let [m (read "{\"levels\":[10, 5, \"LOW\"], \"age_millis\": \"12\", \"id\": null, \"address\": null}")]
+        (is (= [:HIGH :MEDIUM :LOW] (:levels m)))
+        (is (= 12 (:age_millis m)))
+        (is (= 0 (:id m)))
+        (is (nil? (:address m)))))
+    (testing "skipping default values"
+      (is (= "{}" (p/proto-map->json (p/proto-map json-skip-defaults-mapper People$Person))))
+      (is (= "{\"id\":3}" (p/proto-map->json (p/clj-map->proto-map json-skip-defaults-mapper People$Person {:id 3})))))
+    (testing "invalid JSON"
+      (doseq [bad ["{\"nope\":1}" "{\"id\":1}x" "{\"id\":\"a\"}" "{\"id\":1,"
+                   "{\"id\":3000000000}" "{\"private_key\":\"!\"}"]]
+        (is (thrown? IllegalArgumentException (read bad)) bad))
+      (is (thrown? ExceptionInfo (read "{\"levels\":[\"NOPE\"]}"))))
+    (testing "mappers without JSON support"
+      (is (thrown? UnsupportedOperationException
+                   (p/json->proto-map mapper People$Person "{}")))
+      (is (thrown? IllegalArgumentException
+                   (p/proto-map->json (p/proto-map mapper People$Person)))))))
+
+
+(defmapper byte-buffer-mapper [People$Person]
+  :byte-buffer-views? true)
+
+(deftest byte-buffer-views-test
+  (let [bytes  (ByteString/copyFromUtf8 "secret")
+        person (p/clj-map->proto-map byte-buffer-mapper People$Person
+                                     {:private_key    bytes
+                                      :repeated_bytes [bytes]
+                                      :bv             bytes})]
+    (testing "bytes fields are read as read-only views"
+      (doseq [^java.nio.ByteBuffer v [(:private_key person) (first (:repeated_bytes person)) (:bv person)]]
+        (is (.isReadOnly v))
+        (is (= (.asReadOnlyByteBuffer bytes) v))))
+    (testing "setting buffers copies them"
+      (let [buf    (java.nio.ByteBuffer/wrap (.getBytes "abc"))
+            person (p/p-> person
+                          (assoc :private_key buf)
+                          (assoc :repeated_bytes [buf])
+                          (assoc :bv buf))]
+        (.put buf 0 (byte 0))
+        (is (= (ByteString/copyFromUtf8 "abc") (.getPrivateKey ^People$Person (p/proto-map->proto person))))
+        (is (= [(ByteString/copyFromUtf8 "abc")] (.getRepeatedBytesList ^People$Person (p/proto-map->proto person))))
+        (is (= "abc" (.toStringUtf8 (.getValue (.getBv ^People$Person (p/proto-map->proto person))))))))
+    (testing "setting byte strings"
+      (is (= (ByteString/copyFromUtf8 "x")
+             (.getPrivateKey ^People$Person (p/proto-map->proto (assoc person :private_key (ByteString/copyFromUtf8 "x")))))))
+    (testing "empty buffers are default values"
+      (is (not (contains? (into {} p/remove-default-values-xf (p/proto-map byte-buffer-mapper People$Person))
+                          :private_key))))
+    (is (thrown? ExceptionInfo (assoc person :private_key "secret")))))
+
+
+(defmapper columns-mapper [People$Person]
+  :columns? true)
+
+
+(deftest columns-test
+  (let [people (mapv #(p/clj-map->proto-map columns-mapper People$Person
+                                            {:id            %
+                                             :name          (str "person-" % "-é")
+                                             :age_millis    (* % 1000)
+                                             :is_vegetarian (even? %)
+                                             :height_cm     (+ 150.5 %)
+                                             :weight_kg     (float %)
+                                             :level         (if (even? %) :LOW :HIGH)
+                                             :levels        [:HIGH]})
+                     (range 100))
+        cols   (p/->columns columns-mapper People$Person people)]
+    (testing "columns"
+      (is (= 100 (count cols)))
+      (is (= [:id :name :email :age_millis :is_vegetarian :height_cm :weight_kg :num :str :level] (.keys cols)))
+      (is (= (range 100) (seq ^ints (:id cols))))
+      (is (= (reduce + (map :age_millis people)) (areduce ^longs (:age_millis cols) i acc 0 (+ acc (aget ^longs (:age_millis cols) i)))))
+      (is (= (map :height_cm people) (seq ^doubles (:height_cm cols))))
+      (is (= (map :weight_kg people) (seq ^floats (:weight_kg cols))))
+      (is (= (map :is_vegetarian people) (seq ^booleans (:is_vegetarian cols))))
+      (is (= (map :name people) (seq (:name cols))))
+      (is (= (map :level people) (seq (:level cols))))
+      (is (= :HIGH (nth (:level cols) 1) (.get ^pronto.Columns$Enums (:level cols) 1)))
+      (is (= [:LOW :MEDIUM :HIGH :UNRECOGNIZED] (.dictionary ^pronto.Columns$Enums (:level cols))))
+      (is (nil? (:likes cols))))
+    (testing "rows"
+      (is (= (map #(select-keys % (.keys cols)) people) (seq cols)))
+      (is (= (into [] (map :name) people) (into [] (map :name) cols)))
+      (is (= "person-3-é" (:name (nth cols 3))))
+      (is (thrown? UnsupportedOperationException (assoc (nth cols 3) :id 1))))
+    (testing "selected columns"
+      (let [cols (p/->columns columns-mapper People$Person people {:fields [:id :level]})]
+        (is (= [:id :level] (.keys cols)))
+        (is (= {:id 4 :level :LOW} (nth cols 4))))
+      (is (thrown? IllegalArgumentException (p/->columns columns-mapper People$Person people {:fields [:likes]}))))
+    (testing "from serialized messages"
+      (let [byte-arrays (map p/proto-map->bytes people)]
+        (is (= (seq cols) (seq (p/bytes-seq->columns columns-mapper People$Person byte-arrays))))
+        (is (= (seq (p/->columns columns-mapper People$Person people {:fields [:name :height_cm]}))
+               (seq (p/bytes-seq->columns columns-mapper People$Person byte-arrays {:fields [:name :height_cm]}))))))
+    (testing "unrecognized enum values"
+      (let [person (p/proto->proto-map columns-mapper (.build (.setLevelValue (People$Person/newBuilder) 3)))]
+        (is (= :UNRECOGNIZED (:level (first (p/->columns columns-mapper People$Person [person] {:fields [:level]})))))))
+    (testing "empty batches"
+      (is (zero? (count (p/->columns columns-mapper People$Person []))))
+      (is (nil? (seq (p/->columns columns-mapper People$Person nil)))))
+    (testing "mappers defined without `:columns? true`"
+      (is (thrown? UnsupportedOperationException (p/->columns mapper People$Person people)))
+      (is (thrown? UnsupportedOperationException
+                   (p/bytes-seq->columns mapper People$Person (map p/proto-map->bytes people)))))))
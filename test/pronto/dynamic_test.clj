@@ -0,0 +1,114 @@
+(ns pronto.dynamic-test
+  (:require [clojure.test :refer :all]
+            [pronto.core :refer [defmapper] :as p]
+            [pronto.dynamic :as d])
+  (:import [protogen.generated People$Person People$Level]
+           [com.google.protobuf ByteString DescriptorProtos$FileDescriptorSet Descriptors$FileDescriptor]
+           [clojure.lang ExceptionInfo]))
+
+(defmapper mapper [People$Person])
+
+(def descriptor-set
+  ;; well-known types are left out on purpose
+  (-> (DescriptorProtos$FileDescriptorSet/newBuilder)
+      (.addFile (.toProto (.getFile (People$Person/getDescriptor))))
+      (.build)))
+
+(def dmapper (d/mapper (.toByteArray ^DescriptorProtos$FileDescriptorSet descriptor-set)))
+
+(def person-type "protogen.generated.Person")
+
+(def person-fields
+  {:id              5
+   :name            "Joe"
+   :address         {:city "NYC" :house_num 3 :house {:num_rooms 2}}
+   :likes           [{:desc "desc" :level :HIGH} {:desc "other"}]
+   :relations       {"friend" {:id 6 :name "Jane"}}
+   :pet_names       ["a" "b"]
+   :private_key     (ByteString/copyFromUtf8 "key")
+   :age_millis      10
+   :height_cm       1.5
+   :levels          [:LOW :MEDIUM]
+   :maiden_name     "Doe"
+   :num             7
+   :s2s             {"a" "b"}
+   :repeated_floats [1.5 2.5]})
+
+(deftest dynamic-mapper-test
+  (is (contains? (d/message-types dmapper) person-type))
+  (is (contains? (d/message-types dmapper) "protogen.generated.Address"))
+  (is (thrown-with-msg? IllegalArgumentException #"is not loaded by mapper"
+                        (d/proto-map dmapper "protogen.generated.Nope")))
+
+  (let [dm (d/clj-map->proto-map dmapper person-type person-fields)
+        gm (p/clj-map->proto-map mapper People$Person person-fields)]
+    (testing "reads match generated proto-maps"
+      (is (= gm dm))
+      (is (= dm gm))
+      (is (= (p/proto-map->clj-map gm) (p/proto-map->clj-map dm)))
+      (is (= (keys gm) (keys dm)))
+      (is (= 5 (:id dm) (get dm :id)))
+      (is (= :HIGH (get-in dm [:likes 0 :level])))
+      (is (= "Jane" (get-in dm [:relations "friend" :name])))
+      (is (= "Doe" (:maiden_name dm)))
+      (is (nil? (:social_security dm)))
+      (is (nil? (:person dm)))
+      (is (= :num (d/which-one-of dm :thing)))
+      (is (= :house (d/which-one-of (:address dm) :home)))
+      (is (d/has-field? dm :address))
+      (is (not (d/has-field? (get-in dm [:likes 1]) :level)))
+      (is (thrown? IllegalArgumentException (:foo dm)))
+      (is (thrown? IllegalArgumentException (d/has-field? dm :id))))
+
+    (testing "serialization is interchangeable with generated proto-maps"
+      (is (= gm (p/bytes->proto-map mapper People$Person (d/proto-map->bytes dm))))
+      (is (= dm (d/bytes->proto-map dmapper person-type (p/proto-map->bytes gm))))
+      (is (= dm (d/proto->proto-map dmapper (p/proto-map->proto gm)))))
+
+    (testing "writes"
+      (let [update-fn #(-> %
+                           (assoc :name "Bob")
+                           (update :likes conj {:desc "new" :level People$Level/MEDIUM})
+                           (assoc-in [:address :city] "LA")
+                           (assoc :maiden_name nil)
+                           (update :relations assoc "foe" gm))
+            dm2       (update-fn dm)]
+        (is (= "Bob" (:name dm2)))
+        (is (= "Joe" (:name dm)))
+        (is (= [:HIGH nil :MEDIUM] (map :level (:likes dm2))))
+        (is (= "LA" (get-in dm2 [:address :city])))
+        (is (nil? (:maiden_name dm2)))
+        (is (= (update-fn gm) dm2))))
+
+    (testing "transients"
+      (let [t (transient dm)]
+        (assoc! t :id 100)
+        (conj! t {:name "Tim" :pet_names ["c"]})
+        (is (= 100 (:id t)))
+        (let [dm3 (persistent! t)]
+          (is (= [100 "Tim" ["c"]] ((juxt :id :name :pet_names) dm3)))
+          (is (= 5 (:id dm)))
+          (is (thrown? IllegalAccessError (assoc! t :id 1))))))
+
+    (testing "errors"
+      (is (thrown? UnsupportedOperationException (dissoc dm :id)))
+      (is (thrown? IllegalArgumentException (assoc dm :foo 1)))
+      (is (thrown? ExceptionInfo (assoc dm :id "1")))
+      (is (thrown? ExceptionInfo (assoc dm :name nil)))
+      (is (thrown? ExceptionInfo (assoc-in dm [:likes 0 :level] :NOPE))))
+    (testing "narrowing conversions are range checked, like those of generated proto-maps"
+      (is (= 7 (:id (assoc dm :id 7N)) (:id (assoc gm :id 7N))))
+      (is (= 1.5 (:weight_kg (assoc dm :weight_kg 1.5)) (:weight_kg (assoc gm :weight_kg 1.5))))
+      (doseq [m [dm gm]]
+        (is (thrown? IllegalArgumentException (assoc m :id 4294967297)))
+        (is (thrown? IllegalArgumentException (assoc m :age_millis 1e300)))
+        (is (thrown? IllegalArgumentException (assoc m :weight_kg 1e300)))))))
+
+(deftest dynamic-mapper-options-test
+  (let [dmapper (d/mapper descriptor-set
+                          :key-name-fn p/->kebab-case
+                          :enum-value-fn p/->kebab-case)
+        m       (d/proto-map dmapper person-type :age-millis 3 :levels [:high])]
+    (is (= 3 (:age-millis m)))
+    (is (= [:high] (:levels m)))
+    (is (= [:HIGH] (:levels (p/bytes->proto-map mapper People$Person (d/proto-map->bytes m)))))))
@@ -0,0 +1,281 @@
+(ns pronto.io-test
+  (:require [clojure.test :refer :all]
+            [pronto.core :refer [defmapper] :as p])
+  (:import [protogen.generated People$Person People$Address]
+           [com.google.protobuf ByteString]
+           [java.io ByteArrayInputStream ByteArrayOutputStream File]
+           [java.nio ByteBuffer]
+           [java.nio.channels FileChannel FileChannel$MapMode]
+           [java.nio.file OpenOption StandardOpenOption]))
+
+(defmapper mapper [People$Person])
+
+(def people
+  (mapv #(p/proto-map mapper People$Person
+                      :id %
+                      :name (str "person-" %)
+                      :private_key (ByteString/copyFromUtf8 (str "key-" %))
+                      :address {:city "NYC" :house_num %})
+        (range 100)))
+
+(defn- ->delimited-bytes ^bytes [proto-maps]
+  (let [out (ByteArrayOutputStream.)]
+    (is (= (count proto-maps) (p/proto-maps->delimited out proto-maps)))
+    (.toByteArray out)))
+
+(deftest delimited-input-stream-test
+  (let [bytea (->delimited-bytes people)]
+    (is (= people (into [] (p/delimited->proto-maps mapper People$Person (ByteArrayInputStream. bytea)))))
+    (is (= (reduce + (range 100))
+           (transduce (map :id) + 0
+                      (p/delimited->proto-maps mapper People$Person (ByteArrayInputStream. bytea)))))
+    (testing "early termination"
+      (is (= (take 3 people)
+             (into [] (take 3) (p/delimited->proto-maps mapper People$Person (ByteArrayInputStream. bytea))))))))
+
+(deftest delimited-byte-buffer-test
+  (let [bytea  (->delimited-bytes people)
+        source (p/delimited->proto-maps mapper People$Person (ByteBuffer/wrap bytea))]
+    (is (= people (into [] source)))
+    (testing "a buffer source can be reduced more than once"
+      (is (= people (into [] source))))
+    (is (= people (into [] (p/delimited->proto-maps mapper People$Person bytea))))))
+
+(deftest delimited-write-to-byte-buffer-test
+  (let [buf (ByteBuffer/allocate 8192)]
+    (p/proto-maps->delimited buf people)
+    (.flip buf)
+    (is (= people (into [] (p/delimited->proto-maps mapper People$Person buf))))))
+
+(deftest delimited-mapped-region-test
+  (let [f (File/createTempFile "pronto" ".bin")]
+    (try
+      (let [bytea (->delimited-bytes people)]
+        (with-open [out (java.io.FileOutputStream. f)]
+          (.write out bytea))
+        (with-open [ch (FileChannel/open (.toPath f) (into-array OpenOption [StandardOpenOption/READ]))]
+          (is (= people
+                 (into [] (p/delimited->proto-maps mapper People$Person (p/map-region ch 0 (.size ch))))))))
+      (finally
+        (.delete f)))))
+
+(deftest delimited-unresolved-class-test
+  (let [clazz People$Address
+        addrs [(p/proto-map mapper People$Address :city "a")
+               (p/proto-map mapper People$Address :city "b")]]
+    (is (= addrs
+           (into [] (p/delimited->proto-maps mapper clazz (ByteArrayInputStream. (->delimited-bytes addrs))))))))
+
+(deftest projected-bytes->proto-map-test
+  (let [person (first (drop 7 people))
+        bytea  (p/proto-map->bytes (assoc person :pet_names ["a" "b"]))]
+    (testing "only projected fields are decoded"
+      (is (= (p/proto-map mapper People$Person :id 7 :name "person-7")
+             (p/bytes->proto-map mapper People$Person bytea {:fields [:id :name]}))))
+    (testing "nested projection"
+      (is (= (p/proto-map mapper People$Person :id 7 :address {:house_num 7})
+             (p/bytes->proto-map mapper People$Person bytea {:fields [:id [:address :house_num]]}))))
+    (testing "a whole field overrides nested projections of it"
+      (is (= (p/proto-map mapper People$Person :address {:city "NYC" :house_num 7})
+             (p/bytes->proto-map mapper People$Person bytea {:fields [[:address :city] :address]}))))
+    (testing "repeated fields"
+      (is (= ["a" "b"]
+             (:pet_names (p/bytes->proto-map mapper People$Person bytea {:fields [:pet_names]})))))
+    (testing "nested projection of repeated messages"
+      (let [bytea (p/proto-map->bytes (assoc person :likes [{:desc "a" :level :LOW} {:desc "b" :level :HIGH}]))]
+        (is (= (p/proto-map mapper People$Person :id 7 :likes [{:level :LOW} {:level :HIGH}])
+               (p/bytes->proto-map mapper People$Person bytea {:fields [:id [:likes :level]]})))))
+    (testing "included fields around a nested projection"
+      (is (= (p/proto-map mapper People$Person :id 7 :name "person-7" :address {:city "NYC"} :pet_names ["a" "b"])
+             (p/bytes->proto-map mapper People$Person bytea {:fields [:id :name [:address :city] :pet_names]}))))
+    (testing "precompiled projection"
+      (let [projection (p/projection mapper People$Person [:name])]
+        (is (= (p/proto-map mapper People$Person :name "person-7")
+               (p/bytes->proto-map mapper People$Person bytea {:fields projection})))))
+    (testing "no projection"
+      (is (= (p/bytes->proto-map mapper People$Person bytea)
+             (p/bytes->proto-map mapper People$Person bytea {}))))
+    (testing "unresolved class"
+      (let [clazz People$Person]
+        (is (= (p/proto-map mapper People$Person :id 7)
+               (p/bytes->proto-map mapper clazz bytea {:fields [:id]})))))
+    (testing "bad fields"
+      (is (thrown? IllegalArgumentException
+                   (p/bytes->proto-map mapper People$Person bytea {:fields [:no_such_field]})))
+      (is (thrown? IllegalArgumentException
+                   (p/bytes->proto-map mapper People$Person bytea {:fields [[:name :x]]}))))))
+
+
+(deftest batch-test
+  (let [byte-arrays (mapv p/proto-map->bytes people)
+        pool        (java.util.concurrent.Executors/newFixedThreadPool 3)]
+    (try
+      (is (= people (p/bytes-seq->proto-maps mapper People$Person byte-arrays)))
+      (is (= people (p/bytes-seq->proto-maps mapper People$Person (seq byte-arrays)
+                                             {:executor pool :chunk-size 7})))
+      (let [clazz People$Person]
+        (is (= people (p/bytes-seq->proto-maps mapper clazz byte-arrays {:chunk-size 1}))))
+      (is (= [] (p/bytes-seq->proto-maps mapper People$Person [])))
+      (is (= (map seq byte-arrays)
+             (map seq (p/proto-maps->byte-arrays people {:executor pool :chunk-size 10}))))
+      (is (= (conj people :x) (conj (p/bytes-seq->proto-maps mapper People$Person byte-arrays) :x)))
+      (testing "errors are rethrown"
+        (is (thrown? com.google.protobuf.InvalidProtocolBufferException
+                     (p/bytes-seq->proto-maps mapper People$Person
+                                              (assoc byte-arrays 50 (byte-array [1 2 3]))
+                                              {:executor pool :chunk-size 10}))))
+      (finally
+        (.shutdown pool)))))
+
+
+(deftest write-proto-map-test
+  (let [person (nth people 5)
+        bytes  (p/proto-map->bytes person)
+        size   (alength ^bytes bytes)]
+    (is (= size (p/serialized-size person)))
+    (is (= size (p/serialized-size (transient person))))
+
+    (testing "output streams"
+      (let [out (ByteArrayOutputStream.)]
+        (is (= size (p/write-proto-map out person)))
+        (is (= (seq bytes) (seq (.toByteArray out))))))
+
+    (testing "byte buffers"
+      (doseq [^ByteBuffer buf [(ByteBuffer/allocate 1000) (ByteBuffer/allocateDirect 1000)]]
+        (.position buf 3)
+        (is (= size (p/write-proto-map buf person)))
+        (is (= (+ 3 size) (.position buf)))
+        (.flip buf)
+        (.position buf 3)
+        (is (= person (p/bytes->proto-map mapper People$Person (let [a (byte-array (.remaining buf))] (.get buf a) a)))))
+      (is (thrown? java.nio.BufferOverflowException
+                   (p/write-proto-map (ByteBuffer/allocate (dec size)) person))))
+
+    (testing "serialization buffers"
+      (let [buf (p/serialization-buffer 1)]
+        (is (= size (p/write-proto-map buf person)))
+        (is (= (seq bytes) (seq (.toByteArray buf))))
+        (.clear buf)
+        (doseq [person people]
+          (p/write-proto-map buf person {:delimited? true}))
+        (is (= people (into [] (p/delimited->proto-maps mapper People$Person (.byteBuffer buf)))))
+        (let [out (ByteArrayOutputStream.)]
+          (.writeTo buf out)
+          (is (= people (into [] (p/delimited->proto-maps mapper People$Person (.toByteArray out))))))))
+
+    (testing "delimited"
+      (let [out (ByteArrayOutputStream.)]
+        (doseq [person people]
+          (p/write-proto-map out person {:delimited? true}))
+        (is (= people (into [] (p/delimited->proto-maps mapper People$Person (.toByteArray out)))))))
+
+    (testing "transients"
+      (let [t   (assoc! (transient person) :name "transient")
+            out (ByteArrayOutputStream.)]
+        (p/write-proto-map out t)
+        (is (= "transient" (:name (p/bytes->proto-map mapper People$Person (.toByteArray out)))))
+        (assoc! t :id 1000)
+        (is (= [1000 "transient"] ((juxt :id :name) (persistent! t))))))))
+
+(defmapper zero-copy-mapper [People$Person]
+  :zero-copy? true)
+
+(defn- overwrite-key!
+  "Overwrites the bytes of the `key-` prefix of private keys in `buf`."
+  [^ByteBuffer buf]
+  (dotimes [i (- (.limit buf) 3)]
+    (when (and (= (.get buf (int i)) (byte (int \k)))
+               (= (.get buf (int (+ i 3))) (byte (int \-))))
+      (.put buf (int i) (byte (int \K))))))
+
+(deftest zero-copy-test
+  (let [person (nth people 5)
+        bytes  ^bytes (p/proto-map->bytes person)]
+    (testing "bytes fields alias the source"
+      (doseq [[source parse] [[(ByteBuffer/wrap (aclone bytes))
+                               #(p/bytes->proto-map zero-copy-mapper People$Person (.array ^ByteBuffer %))]
+                              [(ByteBuffer/wrap (aclone bytes))
+                               #(p/byte-buffer->proto-map zero-copy-mapper People$Person %)]
+                              [(doto (ByteBuffer/allocateDirect (alength bytes)) (.put bytes) (.flip))
+                               #(p/byte-buffer->proto-map zero-copy-mapper People$Person %)]
+                              [(ByteBuffer/wrap (->delimited-bytes [person]))
+                               #(first (into [] (p/delimited->proto-maps zero-copy-mapper People$Person %)))]]]
+        (let [parsed (parse source)]
+          (is (= person parsed))
+          (overwrite-key! source)
+          (is (= "Key-5" (.toStringUtf8 ^ByteString (:private_key parsed)))))))
+    (testing "bytes fields are copied by other mappers"
+      (doseq [[source parse] [[(ByteBuffer/wrap (aclone bytes))
+                               #(p/bytes->proto-map mapper People$Person (.array ^ByteBuffer %))]
+                              [(doto (ByteBuffer/allocateDirect (alength bytes)) (.put bytes) (.flip))
+                               #(p/byte-buffer->proto-map mapper People$Person %)]]]
+        (let [parsed (parse source)]
+          (overwrite-key! source)
+          (is (= "key-5" (.toStringUtf8 ^ByteString (:private_key parsed)))))))
+    (testing "the buffer's position is left unchanged"
+      (let [buf (ByteBuffer/wrap bytes)]
+        (is (= person (p/byte-buffer->proto-map zero-copy-mapper People$Person buf)))
+        (is (zero? (.position buf)))
+        (let [clazz People$Person]
+          (is (= person (p/byte-buffer->proto-map zero-copy-mapper clazz buf))))))
+    (testing "projections"
+      (is (= "key-5" (.toStringUtf8 ^ByteString (:private_key (p/bytes->proto-map zero-copy-mapper People$Person bytes
+                                                                                    {:fields [:private_key]}))))))))
+
+(deftest mapped-region-aliasing-test
+  (let [f (File/createTempFile "pronto" ".bin")]
+    (try
+      (with-open [out (java.io.FileOutputStream. f)]
+        (.write out (->delimited-bytes (take 10 people))))
+      (with-open [ch (FileChannel/open (.toPath f) (into-array OpenOption [StandardOpenOption/READ
+                                                                           StandardOpenOption/WRITE]))]
+        (let [read-keys (fn [mapper]
+                          (into [] (map :private_key) (p/delimited->proto-maps mapper People$Person
+                                                                               (p/map-region ch 0 (.size ch)))))
+              copied    (read-keys mapper)
+              aliased   (read-keys zero-copy-mapper)]
+          ;; the file changes under the read-only mapping
+          (overwrite-key! (.map ch FileChannel$MapMode/READ_WRITE 0 (.size ch)))
+          (testing "bytes fields are copied out of mapped regions"
+            (is (every? #(.startsWith (.toStringUtf8 ^ByteString %) "key-") copied)))
+          (testing "unless the mapper is zero-copy"
+            (is (every? #(.startsWith (.toStringUtf8 ^ByteString %) "Key-") aliased)))))
+      (finally
+        (.delete f)))))
+
+(defmapper decode-cache-mapper [People$Person]
+  :decode-cache {People$Person 2}
+  :zero-copy? true)
+
+(deftest decode-cache-test
+  (let [stats  #(get (p/decode-cache-stats decode-cache-mapper) People$Person)
+        person (nth people 5)
+        bytes  ^bytes (p/proto-map->bytes person)
+        parsed (p/bytes->proto-map decode-cache-mapper People$Person bytes)]
+    (is (nil? (p/decode-cache-stats mapper)))
+    (is (= #{People$Person} (set (keys (p/decode-cache-stats decode-cache-mapper)))))
+    (is (= person parsed))
+    (testing "identical payloads return the cached proto-map"
+      (is (identical? parsed (p/bytes->proto-map decode-cache-mapper People$Person (aclone bytes))))
+      (let [clazz People$Person]
+        (is (identical? parsed (p/bytes->proto-map decode-cache-mapper clazz bytes))))
+      (is (= {:hits 2 :misses 1 :size 1 :capacity 2}
+             (select-keys (stats) [:hits :misses :size :capacity]))))
+    (testing "the cache keeps its own copy of the payload"
+      (overwrite-key! (ByteBuffer/wrap bytes))
+      (is (= "key-5" (.toStringUtf8 ^ByteString (:private_key parsed))))
+      (let [changed (p/bytes->proto-map decode-cache-mapper People$Person bytes)]
+        (is (not (identical? parsed changed)))
+        (is (= "Key-5" (.toStringUtf8 ^ByteString (:private_key changed)))))
+      (is (= 2 (:misses (stats)))))
+    (testing "projections and other classes are not cached"
+      (is (not (identical? (p/bytes->proto-map decode-cache-mapper People$Person bytes {:fields [:id]})
+                           (p/bytes->proto-map decode-cache-mapper People$Person bytes {:fields [:id]}))))
+      (let [address-bytes (p/proto-map->bytes (:address person))]
+        (is (not (identical? (p/bytes->proto-map decode-cache-mapper People$Address address-bytes)
+                             (p/bytes->proto-map decode-cache-mapper People$Address address-bytes))))))
+    (testing "the cache is bounded"
+      (doseq [p (take 10 people)]
+        (is (= p (p/bytes->proto-map decode-cache-mapper People$Person (p/proto-map->bytes p)))))
+      (is (= 2 (:size (stats))))
+      (is (pos? (:evictions (stats)))))))